@@ -0,0 +1,158 @@
+package de.qabel.qabelbox.crypto;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import de.qabel.core.config.Contact;
+import de.qabel.core.config.Identity;
+import de.qabel.core.crypto.BinaryDropMessageV0;
+import de.qabel.core.crypto.QblECKeyPair;
+import de.qabel.core.drop.DropMessage;
+import de.qabel.core.drop.DropURL;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+@RunWith(AndroidJUnit4.class)
+public class SharedSecretCacheTest {
+
+    private static final String TAG = "SharedSecretCacheTest";
+    private static final int BENCHMARK_MESSAGES = 200;
+
+    private Identity sender;
+    private Identity recipient;
+    private SharedSecretCache cache;
+
+    @Before
+    public void setUp() {
+        sender = new Identity("sender", new ArrayList<DropURL>(), new QblECKeyPair());
+        recipient = new Identity("recipient", new ArrayList<DropURL>(), new QblECKeyPair());
+        cache = new SharedSecretCache();
+    }
+
+    private static Contact contactOf(Identity identity) {
+        return new Contact(identity.getAlias(), null, identity.getEcPublicKey());
+    }
+
+    @Test
+    public void testCachedSecretEqualsAgreement() {
+        QblECKeyPair keyPair = sender.getPrimaryKeyPair();
+        byte[] expected = keyPair.ECDH(recipient.getEcPublicKey());
+        assertArrayEquals(expected, cache.get(keyPair, recipient.getEcPublicKey()));
+        assertArrayEquals(expected, cache.get(keyPair, recipient.getEcPublicKey()));
+        assertThat(cache.size(), is(1));
+    }
+
+    @Test
+    public void testReturnsCopies() {
+        QblECKeyPair keyPair = sender.getPrimaryKeyPair();
+        byte[] secret = cache.get(keyPair, recipient.getEcPublicKey());
+        byte[] expected = secret.clone();
+        secret[0] ^= 1;
+        assertArrayEquals(expected, cache.get(keyPair, recipient.getEcPublicKey()));
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        SharedSecretCache small = new SharedSecretCache(2);
+        QblECKeyPair keyPair = sender.getPrimaryKeyPair();
+        QblECKeyPair first = new QblECKeyPair();
+        QblECKeyPair second = new QblECKeyPair();
+        QblECKeyPair third = new QblECKeyPair();
+        small.get(keyPair, first.getPub());
+        small.get(keyPair, second.getPub());
+        small.get(keyPair, first.getPub());
+        small.get(keyPair, third.getPub());
+        assertThat(small.size(), is(2));
+
+        // second was evicted and has to be computed again, the result is still correct
+        assertArrayEquals(keyPair.ECDH(second.getPub()), small.get(keyPair, second.getPub()));
+        assertThat(small.size(), is(2));
+        small.clear();
+        assertThat(small.size(), is(0));
+    }
+
+    @Test
+    public void testRoundTripWithCachingIdentities() throws Exception {
+        Identity cachingSender = CachingKeyPair.withCachedSecrets(sender,
+                Collections.singleton(contactOf(recipient)), cache);
+        Identity cachingRecipient = CachingKeyPair.withCachedSecrets(recipient,
+                Collections.singleton(contactOf(sender)), cache);
+        assertThat(cachingSender.getKeyIdentifier(), is(sender.getKeyIdentifier()));
+
+        for (int i = 0; i < 3; i++) {
+            byte[] cipher = encrypt("payload " + i, cachingSender, recipient);
+            DropMessage plain = new BinaryDropMessageV0(cipher).disassembleMessage(cachingRecipient);
+            assertThat(plain.getDropPayload(), is("payload " + i));
+            assertThat(plain.getSenderKeyId(), is(sender.getKeyIdentifier()));
+
+            // messages of a caching sender are readable without the cache and vice versa
+            plain = new BinaryDropMessageV0(cipher).disassembleMessage(recipient);
+            assertThat(plain.getDropPayload(), is("payload " + i));
+            cipher = encrypt("payload " + i, sender, recipient);
+            plain = new BinaryDropMessageV0(cipher).disassembleMessage(cachingRecipient);
+            assertThat(plain.getDropPayload(), is("payload " + i));
+        }
+        // one secret per direction
+        assertThat(cache.size(), is(2));
+    }
+
+    @Test
+    public void testBenchmarkDecrypt() throws Exception {
+        List<byte[]> cipherMessages = new ArrayList<>();
+        for (int i = 0; i < BENCHMARK_MESSAGES; i++) {
+            cipherMessages.add(encrypt("message " + i, sender, recipient));
+        }
+        Identity cachingRecipient = CachingKeyPair.withCachedSecrets(recipient,
+                Collections.singleton(contactOf(sender)), cache);
+
+        long plain = decryptAll(cipherMessages, recipient);
+        long cached = decryptAll(cipherMessages, cachingRecipient);
+        Log.i(TAG, "decrypt: " + messagesPerSecond(plain) + " msg/s without cache, "
+                + messagesPerSecond(cached) + " msg/s with cache");
+    }
+
+    @Test
+    public void testBenchmarkEncrypt() throws Exception {
+        Identity cachingSender = CachingKeyPair.withCachedSecrets(sender,
+                Collections.singleton(contactOf(recipient)), cache);
+
+        long plain = encryptAll(sender);
+        long cached = encryptAll(cachingSender);
+        Log.i(TAG, "encrypt: " + messagesPerSecond(plain) + " msg/s without cache, "
+                + messagesPerSecond(cached) + " msg/s with cache");
+    }
+
+    private long decryptAll(List<byte[]> cipherMessages, Identity identity) throws Exception {
+        long start = System.nanoTime();
+        for (byte[] cipher : cipherMessages) {
+            assertNotNull(new BinaryDropMessageV0(cipher).disassembleMessage(identity));
+        }
+        return System.nanoTime() - start;
+    }
+
+    private long encryptAll(Identity identity) throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_MESSAGES; i++) {
+            encrypt("message " + i, identity, recipient);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long messagesPerSecond(long nanos) {
+        return BENCHMARK_MESSAGES * 1000000000L / Math.max(nanos, 1);
+    }
+
+    private static byte[] encrypt(String payload, Identity from, Identity to) throws Exception {
+        return new BinaryDropMessageV0(new DropMessage(from, payload, "type"))
+                .assembleMessageFor(contactOf(to), from);
+    }
+}
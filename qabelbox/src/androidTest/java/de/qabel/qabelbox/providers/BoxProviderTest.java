@@ -119,6 +119,22 @@ public class BoxProviderTest extends MockedBoxProviderTest {
         assertThat(dl, is(content));
     }
 
+    public void testOpenDocumentStreamed() throws IOException, QblStorageException {
+        BoxNavigation rootNav = getVolume().navigate();
+        rootNav.upload("testfile.txt", new FileInputStream(new File(testFileName)), null);
+        rootNav.commit();
+        String testDocId = ROOT_DOC_ID + "testfile.txt";
+        Uri documentUri = DocumentsContract.buildDocumentUri(BoxProvider.AUTHORITY, testDocId);
+        byte[] content = IOUtils.toByteArray(new FileInputStream(new File(testFileName)));
+        // first read streams from the server, the second one from the file cache
+        for (int i = 0; i < 2; i++) {
+            InputStream inputStream = mockContentResolver.openInputStream(documentUri);
+            assertNotNull(inputStream);
+            assertThat(IOUtils.toByteArray(inputStream), is(content));
+            inputStream.close();
+        }
+    }
+
     @TargetApi(Build.VERSION_CODES.LOLLIPOP)
     public void testOpenDocumentForWrite() throws IOException, QblStorageException, InterruptedException {
         Uri parentUri = DocumentsContract.buildDocumentUri(BoxProvider.AUTHORITY, ROOT_DOC_ID);
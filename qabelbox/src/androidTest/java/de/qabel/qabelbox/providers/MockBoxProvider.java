@@ -18,6 +18,7 @@ import de.qabel.core.exceptions.QblInvalidEncryptionKeyException;
 import de.qabel.qabelbox.persistence.AndroidPersistence;
 import de.qabel.qabelbox.persistence.QblSQLiteParams;
 import de.qabel.qabelbox.services.LocalQabelService;
+import de.qabel.qabelbox.storage.BoxVolumeRegistry;
 
 public class MockBoxProvider extends BoxProvider {
 
@@ -115,6 +116,11 @@ public class MockBoxProvider extends BoxProvider {
             this.persistence = androidPersistence;
         }
 
+        @Override
+        protected BoxVolumeRegistry createVolumeRegistry() {
+            return new BoxVolumeRegistry(context);
+        }
+
         @Override
         public Identities getIdentities() {
             Identities identities = new Identities();
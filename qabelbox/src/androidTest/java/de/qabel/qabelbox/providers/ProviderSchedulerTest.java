@@ -0,0 +1,131 @@
+package de.qabel.qabelbox.providers;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+@RunWith(AndroidJUnit4.class)
+public class ProviderSchedulerTest {
+
+    private volatile String wanted;
+    private ProviderScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        wanted = "folder";
+        scheduler = new ProviderScheduler(new ProviderScheduler.ListingFilter() {
+            @Override
+            public boolean isWanted(String documentId) {
+                return documentId.equals(wanted);
+            }
+        });
+    }
+
+    @Test
+    public void testListingIsNotBlockedByDownloads() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        for (int i = 0; i < 4; i++) {
+            scheduler.submitDownload(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    release.await();
+                    return null;
+                }
+            });
+        }
+        final CountDownLatch listed = new CountDownLatch(1);
+        scheduler.submitListing("folder", new Runnable() {
+            @Override
+            public void run() {
+                listed.countDown();
+            }
+        });
+        assertTrue(listed.await(5, TimeUnit.SECONDS));
+        release.countDown();
+    }
+
+    @Test
+    public void testQueuedListingIsDeduplicated() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch blocked = new CountDownLatch(2);
+        // occupy both listing threads
+        for (String folder : new String[]{"folder", "folder2"}) {
+            wanted = folder;
+            scheduler.submitListing(folder, new Runnable() {
+                @Override
+                public void run() {
+                    blocked.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+            });
+        }
+        assertTrue(blocked.await(5, TimeUnit.SECONDS));
+        wanted = "folder";
+        final AtomicInteger runs = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(1);
+        Runnable listing = new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+                done.countDown();
+            }
+        };
+        assertTrue(scheduler.submitListing("folder", listing));
+        assertFalse(scheduler.submitListing("folder", listing));
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        assertThat(runs.get(), is(1));
+    }
+
+    @Test
+    public void testStaleListingIsDropped() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch blocked = new CountDownLatch(2);
+        for (String folder : new String[]{"folder", "folder2"}) {
+            wanted = folder;
+            scheduler.submitListing(folder, new Runnable() {
+                @Override
+                public void run() {
+                    blocked.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+            });
+        }
+        assertTrue(blocked.await(5, TimeUnit.SECONDS));
+        final AtomicInteger runs = new AtomicInteger();
+        scheduler.submitListing("left", new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+            }
+        });
+        final CountDownLatch current = new CountDownLatch(1);
+        wanted = "current";
+        scheduler.submitListing("current", new Runnable() {
+            @Override
+            public void run() {
+                current.countDown();
+            }
+        });
+        release.countDown();
+        assertTrue(current.await(5, TimeUnit.SECONDS));
+        assertThat(runs.get(), is(0));
+    }
+}
@@ -0,0 +1,125 @@
+package de.qabel.qabelbox.providers;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static android.support.test.InstrumentationRegistry.getTargetContext;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+@RunWith(AndroidJUnit4.class)
+public class WriteBackQueueTest {
+
+    private static final String DOCUMENT_ID = "key::::prefix::::/file.txt";
+    private static final long DELAY = 200;
+
+    private final List<String> uploads = Collections.synchronizedList(new ArrayList<String>());
+    private volatile boolean failUploads;
+    private volatile CountDownLatch uploaded;
+    private WriteBackQueue queue;
+
+    @Before
+    public void setUp() {
+        uploaded = new CountDownLatch(1);
+        queue = createQueue();
+    }
+
+    @After
+    public void tearDown() {
+        failUploads = false;
+        uploaded = new CountDownLatch(1);
+        createQueue().restore();
+    }
+
+    private WriteBackQueue createQueue() {
+        return createQueue(WriteBackQueue.INITIAL_RETRY_DELAY_MS);
+    }
+
+    private WriteBackQueue createQueue(long retryDelay) {
+        return new WriteBackQueue(getTargetContext(), new WriteBackQueue.Uploader() {
+            @Override
+            public boolean upload(String documentId, File content) {
+                try {
+                    uploads.add(FileUtils.readFileToString(content, "UTF-8"));
+                } catch (IOException e) {
+                    fail(e.getMessage());
+                }
+                boolean failed = failUploads;
+                uploaded.countDown();
+                return !failed;
+            }
+        }, DELAY, retryDelay);
+    }
+
+    private File content(String text) throws IOException {
+        File file = File.createTempFile("content", "", getTargetContext().getCacheDir());
+        FileUtils.writeStringToFile(file, text, "UTF-8");
+        return file;
+    }
+
+    @Test
+    public void testRapidClosesAreCoalesced() throws Exception {
+        queue.enqueue(DOCUMENT_ID, content("first"));
+        queue.enqueue(DOCUMENT_ID, content("second"));
+        queue.enqueue(DOCUMENT_ID, content("third"));
+        assertThat(FileUtils.readFileToString(queue.getPending(DOCUMENT_ID), "UTF-8"), is("third"));
+        assertTrue(uploaded.await(5, TimeUnit.SECONDS));
+        Thread.sleep(DELAY * 2);
+        assertThat(uploads, contains("third"));
+        assertNull(queue.getPending(DOCUMENT_ID));
+    }
+
+    @Test
+    public void testFailedUploadIsRestored() throws Exception {
+        failUploads = true;
+        queue.enqueue(DOCUMENT_ID, content("content"));
+        assertTrue(uploaded.await(5, TimeUnit.SECONDS));
+        Thread.sleep(DELAY);
+        assertNotNull(queue.getPending(DOCUMENT_ID));
+
+        // a new process restores the queued upload
+        failUploads = false;
+        uploaded = new CountDownLatch(1);
+        WriteBackQueue restored = createQueue();
+        restored.restore();
+        assertTrue(uploaded.await(5, TimeUnit.SECONDS));
+        Thread.sleep(DELAY);
+        assertThat(uploads, contains("content", "content"));
+        assertNull(restored.getPending(DOCUMENT_ID));
+    }
+
+    @Test
+    public void testFailedUploadIsRetried() throws Exception {
+        queue = createQueue(DELAY);
+        failUploads = true;
+        queue.enqueue(DOCUMENT_ID, content("content"));
+        assertTrue(uploaded.await(5, TimeUnit.SECONDS));
+
+        failUploads = false;
+        uploaded = new CountDownLatch(1);
+        assertTrue(uploaded.await(5, TimeUnit.SECONDS));
+        Thread.sleep(DELAY);
+        assertThat(uploads, contains("content", "content"));
+        assertNull(queue.getPending(DOCUMENT_ID));
+    }
+
+    @Test
+    public void testRetryDelay() {
+        assertThat(queue.retryDelay(1), is(WriteBackQueue.INITIAL_RETRY_DELAY_MS));
+        assertThat(queue.retryDelay(2), is(WriteBackQueue.INITIAL_RETRY_DELAY_MS * 2));
+        assertThat(queue.retryDelay(100), is(WriteBackQueue.MAX_RETRY_DELAY_MS));
+    }
+}
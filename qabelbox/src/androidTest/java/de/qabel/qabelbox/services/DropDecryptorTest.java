@@ -0,0 +1,113 @@
+package de.qabel.qabelbox.services;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import de.qabel.core.config.Contact;
+import de.qabel.core.config.Identity;
+import de.qabel.core.crypto.BinaryDropMessageV0;
+import de.qabel.core.crypto.QblECKeyPair;
+import de.qabel.core.drop.DropMessage;
+import de.qabel.core.drop.DropURL;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+@RunWith(AndroidJUnit4.class)
+public class DropDecryptorTest {
+
+    private static final int THREADS = 4;
+
+    private Identity sender;
+    private Identity stranger;
+    private Identity recipient1;
+    private Identity recipient2;
+    private DropDecryptor decryptor;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        sender = new Identity("sender", new ArrayList<DropURL>(), new QblECKeyPair());
+        stranger = new Identity("stranger", new ArrayList<DropURL>(), new QblECKeyPair());
+        recipient1 = new Identity("recipient1", new ArrayList<DropURL>(), new QblECKeyPair());
+        recipient2 = new Identity("recipient2", new ArrayList<DropURL>(), new QblECKeyPair());
+        decryptor = new DropDecryptor(Arrays.asList(recipient1, recipient2),
+                Collections.singletonList(contactOf(sender)));
+        executor = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private static Contact contactOf(Identity identity) {
+        return new Contact(identity.getAlias(), null, identity.getEcPublicKey());
+    }
+
+    private static byte[] encrypt(String payload, Identity from, Identity to) throws Exception {
+        return new BinaryDropMessageV0(new DropMessage(from, payload, "type"))
+                .assembleMessageFor(contactOf(to), from);
+    }
+
+    @Test
+    public void testDecryptForAnyIdentity() throws Exception {
+        List<byte[]> cipherMessages = Arrays.asList(
+                encrypt("one", sender, recipient1),
+                encrypt("stranger", stranger, recipient1),
+                new byte[]{42, 1, 2, 3},
+                encrypt("two", sender, recipient2));
+        List<DropMessage> messages = decryptor.decrypt(cipherMessages, executor, THREADS);
+        assertThat(messages.size(), is(2));
+        assertThat(messages.get(0).getDropPayload(), is("one"));
+        assertThat(messages.get(1).getDropPayload(), is("two"));
+    }
+
+    @Test
+    public void testUnknownSendersAreHeld() throws Exception {
+        byte[] fromStranger = encrypt("stranger", stranger, recipient1);
+        List<byte[]> cipherMessages = Arrays.asList(
+                encrypt("one", sender, recipient1),
+                fromStranger,
+                encrypt("not for us", stranger, sender));
+        assertThat(decryptor.decrypt(cipherMessages, executor, THREADS).size(), is(1));
+        List<HeldDropMessage> held = decryptor.takeUnknownSenders();
+        assertThat(held.size(), is(1));
+        assertThat(held.get(0).senderKeyId, is(stranger.getKeyIdentifier()));
+        assertThat(held.get(0).cipherMessage, is(fromStranger));
+        assertThat(decryptor.takeUnknownSenders().size(), is(0));
+
+        //once the stranger is a contact, the held message can be read
+        DropDecryptor withStranger = new DropDecryptor(Collections.singletonList(recipient1),
+                Arrays.asList(contactOf(sender), contactOf(stranger)));
+        DropMessage message = withStranger.decrypt(held.get(0).cipherMessage);
+        assertNotNull(message);
+        assertThat(message.getDropPayload(), is("stranger"));
+    }
+
+    @Test
+    public void testParallelDecryptionKeepsOrder() throws Exception {
+        List<byte[]> cipherMessages = new ArrayList<>();
+        int count = DropDecryptor.MIN_MESSAGES_PER_CHUNK * THREADS * 2 + 3;
+        for (int i = 0; i < count; i++) {
+            cipherMessages.add(encrypt("message " + i, sender, i % 2 == 0 ? recipient1 : recipient2));
+        }
+        List<DropMessage> messages = decryptor.decrypt(cipherMessages, executor, THREADS);
+        assertThat(messages.size(), is(count));
+        for (int i = 0; i < count; i++) {
+            assertThat(messages.get(i).getDropPayload(), is("message " + i));
+            assertThat(messages.get(i).getSenderKeyId(), is(sender.getKeyIdentifier()));
+        }
+    }
+}
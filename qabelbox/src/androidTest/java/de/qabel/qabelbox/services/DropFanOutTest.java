@@ -0,0 +1,131 @@
+package de.qabel.qabelbox.services;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import de.qabel.core.config.Contact;
+import de.qabel.core.config.Identity;
+import de.qabel.core.crypto.BinaryDropMessageV0;
+import de.qabel.core.crypto.QblECKeyPair;
+import de.qabel.core.drop.DropMessage;
+import de.qabel.core.drop.DropURL;
+import de.qabel.core.http.HTTPResult;
+
+import static android.support.test.InstrumentationRegistry.getTargetContext;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+@RunWith(AndroidJUnit4.class)
+public class DropFanOutTest {
+
+    private static final String TAG = "DropFanOutTest";
+    private static final String OUTBOX_NAME = "test-fanout-outbox";
+    private static final int THREADS = 4;
+    private static final int RECIPIENTS = 200;
+
+    private final Map<DropURL, byte[]> sent = new ConcurrentHashMap<>();
+    private DropOutbox outbox;
+    private DropSender dropSender;
+    private ExecutorService executor;
+    private Identity sender;
+
+    @Before
+    public void setUp() {
+        getTargetContext().deleteDatabase(OUTBOX_NAME);
+        outbox = new DropOutbox(getTargetContext(), OUTBOX_NAME);
+        dropSender = new DropSender(outbox, new DropSender.Sender() {
+            @Override
+            public HTTPResult<?> send(DropURL dropURL, byte[] message) {
+                sent.put(dropURL, message);
+                HTTPResult<?> result = new HTTPResult<>();
+                result.setOk(true);
+                result.setResponseCode(200);
+                return result;
+            }
+        });
+        executor = Executors.newFixedThreadPool(THREADS);
+        sender = new Identity("sender", new ArrayList<DropURL>(), new QblECKeyPair());
+    }
+
+    @After
+    public void tearDown() {
+        dropSender.shutdown();
+        executor.shutdownNow();
+        outbox.close();
+    }
+
+    private static DropURL dropURL(int server, int id) throws Exception {
+        String suffix = String.format("%05d", id);
+        return new DropURL("http://server" + server + ".localhost/abcdefghijklmnopqrstuvwxyzabcdefghijkl"
+                + suffix);
+    }
+
+    @Test
+    public void testSendToManyRecipients() throws Exception {
+        List<Identity> identities = new ArrayList<>();
+        List<Contact> recipients = new ArrayList<>();
+        for (int i = 0; i < RECIPIENTS; i++) {
+            Identity identity = new Identity("recipient" + i, new ArrayList<DropURL>(), new QblECKeyPair());
+            Contact contact = new Contact(identity.getAlias(), null, identity.getEcPublicKey());
+            contact.addDrop(dropURL(i % 2, i));
+            identities.add(identity);
+            recipients.add(contact);
+        }
+
+        final CountDownLatch done = new CountDownLatch(1);
+        final Map<Contact, Map<DropURL, Boolean>> results = new ConcurrentHashMap<>();
+        long start = System.currentTimeMillis();
+        new DropFanOut(new BinaryDropMessageV0(new DropMessage(sender, "broadcast", "type")), sender,
+                recipients, dropSender, new LocalQabelService.OnSendDropMessagesResult() {
+            @Override
+            public void onSendDropResult(Map<Contact, Map<DropURL, Boolean>> deliveryStatus) {
+                results.putAll(deliveryStatus);
+                done.countDown();
+            }
+        }).start(executor, THREADS);
+        assertTrue(done.await(60, TimeUnit.SECONDS));
+        Log.i(TAG, "sent to " + RECIPIENTS + " recipients in " + (System.currentTimeMillis() - start) + " ms");
+
+        assertThat(results.size(), is(RECIPIENTS));
+        for (int i = 0; i < RECIPIENTS; i++) {
+            Contact recipient = recipients.get(i);
+            Map<DropURL, Boolean> status = results.get(recipient);
+            assertThat(status.size(), is(1));
+            assertThat(status.values().iterator().next(), is(true));
+
+            byte[] message = sent.get(recipient.getDropUrls().iterator().next());
+            DropMessage plain = new BinaryDropMessageV0(message).disassembleMessage(identities.get(i));
+            assertThat(plain.getDropPayload(), is("broadcast"));
+        }
+        assertThat(outbox.getAll().size(), is(0));
+    }
+
+    @Test
+    public void testNoRecipients() throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        new DropFanOut(new BinaryDropMessageV0(new DropMessage(sender, "broadcast", "type")), sender,
+                Collections.<Contact>emptyList(), dropSender, new LocalQabelService.OnSendDropMessagesResult() {
+            @Override
+            public void onSendDropResult(Map<Contact, Map<DropURL, Boolean>> deliveryStatus) {
+                assertThat(deliveryStatus.size(), is(0));
+                done.countDown();
+            }
+        }).start(executor, THREADS);
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+    }
+}
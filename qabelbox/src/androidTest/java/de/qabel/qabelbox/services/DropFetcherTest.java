@@ -0,0 +1,116 @@
+package de.qabel.qabelbox.services;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.qabel.qabelbox.communication.DropResult;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+@RunWith(AndroidJUnit4.class)
+public class DropFetcherTest {
+
+    private static final URI FAST = URI.create("http://localhost/fast");
+    private static final URI SLOW = URI.create("http://localhost/slow");
+    private static final URI BROKEN = URI.create("http://localhost/broken");
+    private static final long SLOW_MS = 2000;
+
+    private final AtomicInteger calls = new AtomicInteger();
+    private final Map<URI, Long> received = new ConcurrentHashMap<>();
+    private DropFetcher fetcher;
+
+    @Before
+    public void setUp() {
+        fetcher = new DropFetcher(new DropFetcher.Receiver() {
+            @Override
+            public DropResult receive(URI uri, long sinceDate) {
+                calls.incrementAndGet();
+                received.put(uri, sinceDate);
+                DropResult result = new DropResult();
+                if (uri.equals(BROKEN)) {
+                    result.setResponseCode(500);
+                    return result;
+                }
+                if (uri.equals(SLOW)) {
+                    try {
+                        Thread.sleep(SLOW_MS);
+                    } catch (InterruptedException e) {
+                        return result;
+                    }
+                }
+                Collection<byte[]> messages = new ArrayList<>();
+                messages.add(uri.toString().getBytes());
+                result.setOk(true);
+                result.setResponseCode(200);
+                result.setData(messages);
+                return result;
+            }
+        }, 2, SLOW_MS / 4);
+    }
+
+    @After
+    public void tearDown() {
+        fetcher.shutdown();
+    }
+
+    @Test
+    public void testPartialResults() {
+        long start = System.currentTimeMillis();
+        Map<URI, DropResult> results = fetcher.fetch(sinceDates(SLOW, BROKEN, FAST));
+        assertThat(System.currentTimeMillis() - start, lessThan(SLOW_MS));
+        assertThat(results.keySet(), contains(FAST));
+        assertArrayEquals(FAST.toString().getBytes(), results.get(FAST).getData().iterator().next());
+    }
+
+    @Test
+    public void testDropsAreReportedWhenTheyAnswer() {
+        final long start = System.currentTimeMillis();
+        final Map<URI, Long> reportedAfter = new LinkedHashMap<>();
+        fetcher.fetch(sinceDates(SLOW, FAST), new DropFetcher.Listener() {
+            @Override
+            public void onFetched(URI uri, DropResult result) {
+                reportedAfter.put(uri, System.currentTimeMillis() - start);
+            }
+        });
+        assertThat(reportedAfter.keySet(), contains(FAST));
+        // long before the slow drop timed out
+        assertThat(reportedAfter.get(FAST), lessThan(SLOW_MS / 8));
+    }
+
+    @Test
+    public void testSinceDatePerDrop() {
+        Map<URI, Long> sinceDates = sinceDates(FAST);
+        sinceDates.put(URI.create("http://localhost/other"), 42L);
+        assertThat(fetcher.fetch(sinceDates).size(), is(2));
+        assertThat(calls.get(), is(2));
+        assertThat(received.get(URI.create("http://localhost/other")), is(42L));
+        assertThat(received.get(FAST), is(0L));
+    }
+
+    @Test
+    public void testNoDrops() {
+        assertThat(fetcher.fetch(new HashMap<URI, Long>()).size(), is(0));
+    }
+
+    private static Map<URI, Long> sinceDates(URI... uris) {
+        Map<URI, Long> sinceDates = new LinkedHashMap<>();
+        for (URI uri : uris) {
+            sinceDates.put(uri, 0L);
+        }
+        return sinceDates;
+    }
+}
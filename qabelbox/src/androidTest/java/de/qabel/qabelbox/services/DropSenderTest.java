@@ -0,0 +1,181 @@
+package de.qabel.qabelbox.services;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.qabel.core.drop.DropURL;
+import de.qabel.core.http.HTTPResult;
+
+import static android.support.test.InstrumentationRegistry.getTargetContext;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+@RunWith(AndroidJUnit4.class)
+public class DropSenderTest {
+
+    private static final String OUTBOX_NAME = "test-outbox";
+    private static final long RETRY_DELAY_MS = 50;
+    private static final byte[] MESSAGE = new byte[]{1, 2, 3};
+
+    private DropURL working;
+    private DropURL flaky;
+    private DropURL rejecting;
+    private final Map<DropURL, AtomicInteger> attempts = new ConcurrentHashMap<>();
+    private final Map<DropURL, CountDownLatch> delivered = new ConcurrentHashMap<>();
+    private DropOutbox outbox;
+    private DropSender dropSender;
+
+    @Before
+    public void setUp() throws Exception {
+        getTargetContext().deleteDatabase(OUTBOX_NAME);
+        working = new DropURL("http://localhost/abcdefghijklmnopqrstuvwxyzabcdefgworkingUrl");
+        flaky = new DropURL("http://localhost/abcdefghijklmnopqrstuvwxyzabcdefghiflakyUrl");
+        rejecting = new DropURL("http://localhost/abcdefghijklmnopqrstuvwxyzabcderejectingUrl");
+        for (DropURL dropURL : Arrays.asList(working, flaky, rejecting)) {
+            attempts.put(dropURL, new AtomicInteger());
+            delivered.put(dropURL, new CountDownLatch(1));
+        }
+        outbox = new DropOutbox(getTargetContext(), OUTBOX_NAME);
+        dropSender = createSender();
+    }
+
+    @After
+    public void tearDown() {
+        dropSender.shutdown();
+        outbox.close();
+    }
+
+    private DropSender createSender() {
+        return new DropSender(outbox, new DropSender.Sender() {
+            @Override
+            public HTTPResult<?> send(DropURL dropURL, byte[] message) {
+                int attempt = attempts.get(dropURL).incrementAndGet();
+                HTTPResult<?> result = new HTTPResult<>();
+                if (dropURL.equals(rejecting)) {
+                    result.setResponseCode(400);
+                } else if (dropURL.equals(flaky) && attempt < 3) {
+                    // offline
+                    result.setResponseCode(0);
+                } else {
+                    result.setOk(true);
+                    result.setResponseCode(200);
+                    delivered.get(dropURL).countDown();
+                }
+                return result;
+            }
+        }, 2, RETRY_DELAY_MS);
+    }
+
+    @Test
+    public void testFinalResultIsReported() throws Exception {
+        final CountDownLatch reported = new CountDownLatch(1);
+        final List<Map<DropURL, Boolean>> results = new ArrayList<>();
+        dropSender.send(Arrays.asList(working, flaky, rejecting), MESSAGE,
+                new LocalQabelService.OnSendDropMessageResult() {
+                    @Override
+                    public void onSendDropResult(Map<DropURL, Boolean> deliveryStatus) {
+                        results.add(deliveryStatus);
+                        reported.countDown();
+                    }
+                });
+        // the flaky drop is retried in the background until it is delivered
+        assertTrue(reported.await(5, TimeUnit.SECONDS));
+        Map<DropURL, Boolean> status = results.get(0);
+        assertThat(status.size(), is(3));
+        assertThat(status.get(working), is(true));
+        assertThat(status.get(flaky), is(true));
+        assertThat(status.get(rejecting), is(false));
+        assertThat(attempts.get(flaky).get(), is(3));
+        assertThat(attempts.get(rejecting).get(), is(1));
+        waitForEmptyOutbox();
+        assertThat(results.size(), is(1));
+    }
+
+    @Test
+    public void testDeliveriesToOneServerAreBounded() throws Exception {
+        dropSender.shutdown();
+        final Map<String, AtomicInteger> running = new ConcurrentHashMap<>();
+        final AtomicInteger maxRunningPerServer = new AtomicInteger();
+        final CountDownLatch allSent = new CountDownLatch(20);
+        dropSender = new DropSender(outbox, new DropSender.Sender() {
+            @Override
+            public HTTPResult<?> send(DropURL dropURL, byte[] message) {
+                AtomicInteger serverRunning = running.get(dropURL.getUri().getHost());
+                int now = serverRunning.incrementAndGet();
+                synchronized (maxRunningPerServer) {
+                    maxRunningPerServer.set(Math.max(maxRunningPerServer.get(), now));
+                }
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException ignored) {
+                }
+                serverRunning.decrementAndGet();
+                allSent.countDown();
+                HTTPResult<?> result = new HTTPResult<>();
+                result.setOk(true);
+                result.setResponseCode(200);
+                return result;
+            }
+        }, 2 * DropSender.MAX_SENDS_PER_SERVER, RETRY_DELAY_MS);
+        running.put("server0.localhost", new AtomicInteger());
+        running.put("server1.localhost", new AtomicInteger());
+        List<DropSender.Outgoing> outgoing = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            DropURL dropURL = new DropURL("http://server" + (i % 2)
+                    + ".localhost/abcdefghijklmnopqrstuvwxyzabcdefghijkl" + String.format("%05d", i));
+            outgoing.add(new DropSender.Outgoing(Collections.singletonList(dropURL), MESSAGE, null));
+        }
+        dropSender.send(outgoing);
+
+        assertTrue(allSent.await(5, TimeUnit.SECONDS));
+        assertThat(maxRunningPerServer.get(), lessThanOrEqualTo(DropSender.MAX_SENDS_PER_SERVER));
+        assertThat(maxRunningPerServer.get(), greaterThan(1));
+        waitForEmptyOutbox();
+    }
+
+    @Test
+    public void testResumeAfterRestart() throws Exception {
+        dropSender.shutdown();
+        outbox.add(Arrays.asList(working.getUri().toString(), flaky.getUri().toString()),
+                Arrays.asList(MESSAGE, MESSAGE));
+
+        dropSender = createSender();
+        dropSender.resume();
+        assertTrue(delivered.get(working).await(5, TimeUnit.SECONDS));
+        assertTrue(delivered.get(flaky).await(5, TimeUnit.SECONDS));
+        waitForEmptyOutbox();
+    }
+
+    @Test
+    public void testRetryDelay() {
+        assertThat(dropSender.retryDelay(1), is(RETRY_DELAY_MS));
+        assertThat(dropSender.retryDelay(2), is(RETRY_DELAY_MS * 2));
+        assertThat(dropSender.retryDelay(3), is(RETRY_DELAY_MS * 4));
+        assertThat(dropSender.retryDelay(100), is(DropSender.MAX_RETRY_DELAY_MS));
+        assertTrue(DropSender.isPermanentFailure(404));
+        assertFalse(DropSender.isPermanentFailure(429));
+        assertFalse(DropSender.isPermanentFailure(503));
+        assertFalse(DropSender.isPermanentFailure(0));
+    }
+
+    private void waitForEmptyOutbox() throws InterruptedException {
+        for (int i = 0; i < 50 && !outbox.getAll().isEmpty(); i++) {
+            Thread.sleep(100);
+        }
+        assertThat(outbox.getAll().size(), is(0));
+    }
+}
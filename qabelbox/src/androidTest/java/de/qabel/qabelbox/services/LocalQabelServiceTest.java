@@ -7,6 +7,7 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 
@@ -20,6 +21,7 @@ import de.qabel.core.drop.DropURL;
 import de.qabel.core.exceptions.QblDropInvalidURL;
 import de.qabel.core.exceptions.QblDropPayloadSizeException;
 import de.qabel.qabelbox.exceptions.QblStorageEntityExistsException;
+import de.qabel.qabelbox.storage.BoxVolume;
 
 public class LocalQabelServiceTest extends ServiceTestCase<LocalQabelServiceTester> {
 
@@ -36,6 +38,7 @@ public class LocalQabelServiceTest extends ServiceTestCase<LocalQabelServiceTest
     protected void setUp() throws Exception {
         super.setUp();
         getContext().deleteDatabase(LocalQabelServiceTester.MOCK_DB_NAME);
+        getContext().deleteDatabase(LocalQabelServiceTester.MOCK_OUTBOX_NAME);
         Intent intent = new Intent(getContext(), LocalQabelServiceTester.class);
         startService(intent);
         this.mService = getService();
@@ -62,6 +65,14 @@ public class LocalQabelServiceTest extends ServiceTestCase<LocalQabelServiceTest
         assertNull(mService.getActiveIdentity());
     }
 
+    public void testVolumeIsSharedUntilIdentityIsDeleted() {
+        BoxVolume volume = mService.getVolume(identity, "prefix");
+        assertSame(volume, mService.getVolume(identity, "prefix"));
+        assertNotSame(volume, mService.getVolume(identity, "otherprefix"));
+        mService.deleteIdentity(identity);
+        assertNotSame(volume, mService.getVolume(identity, "prefix"));
+    }
+
     public void testModifyIdentity() {
         identity.setAlias("bar");
         mService.modifyIdentity(identity);
@@ -150,6 +161,48 @@ public class LocalQabelServiceTest extends ServiceTestCase<LocalQabelServiceTest
         assertEquals(1, dropMessages.size());
     }
 
+    public void testRetrieveOnlyNewDropMessages() throws Exception {
+        QblECKeyPair senderKeypair = new QblECKeyPair();
+        Identity senderIdentity = new Identity("SenderIdentity", new ArrayList<DropURL>(), senderKeypair);
+        QblECKeyPair receiverKeypair = new QblECKeyPair();
+        Identity receiverIdentity = new Identity("ReceiverIdentity", new ArrayList<DropURL>(), receiverKeypair);
+        DropURL dropURL = new DropURL(LocalQabelServiceTester.DROP_URL);
+        receiverIdentity.addDrop(dropURL);
+        Contact recipientContact = new Contact("foo", null, receiverKeypair.getPub());
+        recipientContact.addDrop(dropURL);
+        mService.addIdentity(senderIdentity);
+        mService.addIdentity(receiverIdentity);
+        mService.addContact(recipientContact);
+        mService.addContact(new Contact("foo", null, senderKeypair.getPub()));
+
+        sendAndWait(new DropMessage(senderIdentity, "first", "DropPayloadType"), recipientContact, senderIdentity);
+        Map<URI, Long> cursors = new HashMap<>();
+        assertEquals(1, mService.retrieveDropMessages(receiverIdentity, cursors).size());
+        assertEquals(Long.valueOf(1), cursors.get(dropURL.getUri()));
+
+        assertEquals(0, mService.retrieveDropMessages(receiverIdentity, cursors).size());
+        assertEquals(Long.valueOf(1), cursors.get(dropURL.getUri()));
+
+        sendAndWait(new DropMessage(senderIdentity, "second", "DropPayloadType"), recipientContact, senderIdentity);
+        Collection<DropMessage> dropMessages = mService.retrieveDropMessages(receiverIdentity, cursors);
+        assertEquals(1, dropMessages.size());
+        assertEquals("second", dropMessages.iterator().next().getDropPayload());
+        assertEquals(Long.valueOf(2), cursors.get(dropURL.getUri()));
+    }
+
+    private void sendAndWait(DropMessage dropMessage, Contact recipient, Identity sender)
+            throws QblDropPayloadSizeException, InterruptedException {
+        final CountDownLatch lock = new CountDownLatch(1);
+        mService.sendDropMessage(dropMessage, recipient, sender,
+                new LocalQabelService.OnSendDropMessageResult() {
+                    @Override
+                    public void onSendDropResult(Map<DropURL, Boolean> deliveryStatus) {
+                        lock.countDown();
+                    }
+                });
+        lock.await();
+    }
+
     public void testReceiveDropMessagesEmpty() {
         Collection<DropMessage> dropMessages =
                 mService.retrieveDropMessages(URI.create("http://localhost/empty"), 0);
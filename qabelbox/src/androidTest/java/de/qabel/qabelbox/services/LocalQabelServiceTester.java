@@ -2,20 +2,22 @@ package de.qabel.qabelbox.services;
 
 import java.net.URI;
 import java.util.ArrayList;
-import java.util.Collection;
 
 import de.qabel.core.drop.DropURL;
 import de.qabel.core.http.HTTPResult;
+import de.qabel.qabelbox.communication.DropResult;
 
 /**
  * LocalQabelServiceTester allows to test sending and receiving DropMessages without a network connection
  * or a drop server. All send messages are locally stored and can be received via getDropMessages with
- * "http://localhost/dropmessages" as the URI.
+ * "http://localhost/dropmessages" as the URI or any drop URL starting with it, like {@link #DROP_URL}.
  */
 public class LocalQabelServiceTester extends LocalQabelService {
 
     ArrayList<byte[]> dropMessages = new ArrayList<>();
     public static String MOCK_DB_NAME="mock-db";
+    public static final String MOCK_OUTBOX_NAME = "mock-outbox";
+    public static final String DROP_URL = "http://localhost/dropmessagesabcdefghijklmnopqrstuvwxyz01234";
 
     @Override
     protected void initAndroidPersistence() {
@@ -23,7 +25,12 @@ public class LocalQabelServiceTester extends LocalQabelService {
     }
 
     @Override
-    HTTPResult<?> dropHTTPsend(DropURL dropURL, byte[] message) {
+    protected void initDropSender() {
+        super.initDropSender(MOCK_OUTBOX_NAME);
+    }
+
+    @Override
+    synchronized HTTPResult<?> dropHTTPsend(DropURL dropURL, byte[] message) {
         HTTPResult<?> httpResult = new HTTPResult<>();
         httpResult.setOk(true);
         httpResult.setResponseCode(200);
@@ -31,10 +38,14 @@ public class LocalQabelServiceTester extends LocalQabelService {
         return httpResult;
     }
 
+    /**
+     * Every stored message gets its position (starting with 1) as server time. Only messages
+     * newer than the timestamp are returned and the newest time is reported as Last-Modified.
+     */
     @Override
-    HTTPResult<Collection<byte[]>> getDropMessages(URI uri, long timestamp) {
+    synchronized DropResult getDropMessages(URI uri, long timestamp) {
         ArrayList<byte[]> mockDropMessages = new ArrayList<>();
-        HTTPResult<Collection<byte[]>> result = new HTTPResult<>();
+        DropResult result = new DropResult();
 
         // URI to test empty drop
         if (uri.toString().equals("http://localhost/empty")) {
@@ -42,9 +53,18 @@ public class LocalQabelServiceTester extends LocalQabelService {
             result.setData(mockDropMessages);
             return result;
             // URI to test drop with previously send DropMessages
-        } else if (uri.toString().equals("http://localhost/dropmessages")) {
+        } else if (uri.toString().startsWith("http://localhost/dropmessages")) {
+            for (int i = (int) Math.max(timestamp, 0); i < dropMessages.size(); i++) {
+                mockDropMessages.add(dropMessages.get(i));
+            }
+            if (mockDropMessages.isEmpty() && timestamp > 0) {
+                result.setResponseCode(304);
+                return result;
+            }
             result.setOk(true);
-            result.setData(dropMessages);
+            result.setResponseCode(200);
+            result.setLastModified(dropMessages.size());
+            result.setData(mockDropMessages);
             return result;
             // URI to test error case.
         } else {
@@ -9,12 +9,14 @@ import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -174,6 +176,35 @@ public class BoxTest extends AndroidTestCase {
         return boxFile;
     }
 
+    @Test
+    public void testCommitNotifiesListeners() throws QblStorageException {
+        final List<String> committed = new ArrayList<>();
+        volume.addOnCommitListener(new BoxVolume.OnCommitListener() {
+            @Override
+            public void onCommit(BoxVolume volume, String documentId) {
+                committed.add(documentId);
+            }
+        });
+        BoxNavigation nav = volume.navigate();
+        byte[] version = nav.getVersion();
+        BoxFolder folder = nav.createFolder("foobdir");
+        nav.commit();
+        assertThat(nav.getVersion(), is(not(equalTo(version))));
+        assertTrue(committed.contains(volume.getDocumentId("/")));
+        nav.navigate(folder);
+        uploadFile(nav, "foobar");
+        assertThat(committed.get(committed.size() - 1), is(volume.getDocumentId("/foobdir/")));
+    }
+
+    @Test
+    public void testSegmentedUpload() throws QblStorageException, IOException {
+        volume.setSegmentedUploads(true);
+        BoxNavigation nav = volume.navigate();
+        BoxFile boxFile = uploadFile(nav, "segmented");
+        byte[] content = IOUtils.toByteArray(new FileInputStream(new File(testFileName)));
+        assertArrayEquals(content, IOUtils.toByteArray(nav.download(boxFile, null)));
+    }
+
     @Test
     public void testCreateIndex() throws QblStorageException {
         BoxNavigation nav = volume.navigate();
@@ -591,6 +622,36 @@ public class BoxTest extends AndroidTestCase {
         assertThat("Downloaded file is not correct", dl, is(content));
     }
 
+    @Test
+    public void testStreamedDownloadSkipsBrokenCachedBlock() throws QblStorageException, IOException {
+        BoxNavigation nav = volume.navigate();
+        byte[] content = new byte[100 * 1024];
+        Arrays.fill(content, (byte) 'f');
+        File file = File.createTempFile("large", "testfile");
+        FileOutputStream outputStream = new FileOutputStream(file);
+        outputStream.write(content);
+        outputStream.close();
+        BoxFile boxFile = nav.upload("large file", new FileInputStream(file), null);
+        nav.commit();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        nav.download(boxFile, out, null);
+        assertArrayEquals(content, out.toByteArray());
+
+        // break the authentication tag at the end of the cached block
+        RandomAccessFile cached = new RandomAccessFile(new FileCache(getContext()).get(boxFile), "rw");
+        cached.seek(cached.length() - 1);
+        int last = cached.read();
+        cached.seek(cached.length() - 1);
+        cached.write(last ^ 1);
+        cached.close();
+
+        // nothing of the broken block is written, it is downloaded again instead
+        out.reset();
+        nav.download(boxFile, out, null);
+        assertArrayEquals(content, out.toByteArray());
+    }
+
     private void corruptCachedFile(BoxFile boxFile) throws IOException {
         // corrupt the file
         FileOutputStream outputStream = new FileOutputStream(new FileCache(getContext()).get(boxFile));
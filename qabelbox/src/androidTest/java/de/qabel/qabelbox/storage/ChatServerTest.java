@@ -1,20 +1,30 @@
 package de.qabel.qabelbox.storage;
 
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
 import android.support.test.runner.AndroidJUnit4;
 
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 import de.qabel.core.config.Contact;
 import de.qabel.core.config.Identity;
 import de.qabel.qabelbox.chat.ChatMessageItem;
 import de.qabel.qabelbox.chat.ChatMessagesDataBase;
 import de.qabel.qabelbox.chat.ChatServer;
 import de.qabel.qabelbox.config.IdentityHelper;
+import de.qabel.qabelbox.services.HeldDropMessage;
 
 import static android.support.test.InstrumentationRegistry.getTargetContext;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
 import static org.hamcrest.Matchers.is;
 
 @RunWith(AndroidJUnit4.class)
@@ -224,6 +234,186 @@ public class ChatServerTest {
     }
 
 
+    @Test
+    public void testDropCursors() {
+        ChatMessagesDataBase dataBase = new ChatMessagesDataBase(getTargetContext(), identity);
+        URI drop1 = URI.create("http://localhost/drop1");
+        URI drop2 = URI.create("http://localhost/drop2");
+        Map<URI, Long> cursors = new HashMap<>();
+        cursors.put(drop1, 1000L);
+        cursors.put(drop2, 2000L);
+        dataBase.setDropCursors(cursors);
+        assertThat(dataBase.getDropCursors(), is(cursors));
+
+        cursors.remove(drop1);
+        cursors.put(drop2, 3000L);
+        dataBase.setDropCursors(cursors);
+        assertThat(dataBase.getDropCursors(), is(cursors));
+    }
+
+    @Test
+    public void testPutAll() {
+        ChatMessagesDataBase dataBase = new ChatMessagesDataBase(getTargetContext(), identity);
+        List<ChatMessageItem> items = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            items.add(new ChatMessageItem(i, (short) 1, 1000 + i, publicKey1, getKeyIdentitfier(identity),
+                    null, "type", "payload " + i));
+        }
+        ChatMessagesDataBase.PutResult result = dataBase.putAll(items);
+        assertThat(result.inserted, is(500));
+        assertThat(result.skipped, is(0));
+
+        //a second sync delivers the last message again together with a new one
+        List<ChatMessageItem> next = new ArrayList<>();
+        next.add(items.get(499));
+        next.add(new ChatMessageItem(0, (short) 1, 2000, publicKey1, getKeyIdentitfier(identity),
+                null, "type", "new"));
+        result = dataBase.putAll(next);
+        assertThat(result.inserted, is(1));
+        assertThat(result.skipped, is(1));
+        assertThat(dataBase.get(publicKey1).length, is(501));
+        assertThat(dataBase.getNewMessageCount(contact1), is(501));
+    }
+
+    @Test
+    public void testMessagePages() {
+        ChatMessagesDataBase dataBase = new ChatMessagesDataBase(getTargetContext(), identity);
+        String ownKey = getKeyIdentitfier(identity);
+        List<ChatMessageItem> items = new ArrayList<>();
+        for (int i = 0; i < 120; i++) {
+            //sent and received messages, always two with the same time
+            boolean received = i % 3 == 0;
+            items.add(new ChatMessageItem(0, (short) 1, 1000 + i / 2, received ? publicKey1 : ownKey,
+                    received ? ownKey : publicKey1, null, "type", "payload " + i));
+        }
+        items.add(new ChatMessageItem(0, (short) 1, 1010, publicKey2, ownKey, null, "type", "other contact"));
+        dataBase.putAll(items);
+
+        List<String> history = new ArrayList<>();
+        ChatMessageItem before = null;
+        int pages = 0;
+        while (true) {
+            ChatMessageItem[] page = dataBase.getPage(publicKey1, before, 50);
+            if (page.length == 0) {
+                break;
+            }
+            pages++;
+            assertThat(page.length, is(pages < 3 ? 50 : 20));
+            for (int i = page.length - 1; i >= 0; i--) {
+                if (i > 0) {
+                    assertThat(page[i - 1].getTime() <= page[i].getTime(), is(true));
+                }
+                history.add(0, page[i].drop_payload);
+            }
+            before = page[0];
+        }
+        assertThat(pages, is(3));
+        assertThat(history.size(), is(120));
+        for (int i = 0; i < 120; i++) {
+            assertThat(history.get(i), is("payload " + i));
+        }
+    }
+
+    @Test
+    public void testNewMessageCounts() {
+        ChatServer chatServer = new ChatServer(identity);
+        String ownKey = getKeyIdentitfier(identity);
+        assertThat(chatServer.getNewMessageCounts().size(), is(0));
+
+        for (int i = 0; i < 3; i++) {
+            chatServer.storeIntoDB(new ChatMessageItem(0, (short) 1, 1000 + i, publicKey1, ownKey, null, "type", "payload"));
+        }
+        chatServer.storeIntoDB(new ChatMessageItem(0, (short) 1, 1000, publicKey2, ownKey, null, "type", "payload"));
+        //already stored and already read messages are not counted
+        chatServer.storeIntoDB(new ChatMessageItem(0, (short) 1, 1000, publicKey1, ownKey, null, "type", "payload"));
+        chatServer.storeIntoDB(new ChatMessageItem(0, (short) 0, 2000, publicKey1, ownKey, null, "type", "payload"));
+
+        Map<String, Integer> counts = chatServer.getNewMessageCounts();
+        assertThat(counts.get(publicKey1), is(3));
+        assertThat(counts.get(publicKey2), is(1));
+        assertThat(chatServer.hasNewMessages(contact1), is(true));
+
+        chatServer.setAllMessagesReaded(contact1);
+        assertThat(chatServer.hasNewMessages(contact1), is(false));
+        assertThat(chatServer.getNewMessageCounts().containsKey(publicKey1), is(false));
+
+        //the live counts match the database
+        ChatMessagesDataBase dataBase = new ChatMessagesDataBase(getTargetContext(), identity);
+        assertThat(dataBase.getNewMessageCounts(), is(chatServer.getNewMessageCounts()));
+    }
+
+    @Test
+    public void testHeldMessages() {
+        ChatMessagesDataBase dataBase = new ChatMessagesDataBase(getTargetContext(), identity);
+        List<HeldDropMessage> heldMessages = new ArrayList<>();
+        heldMessages.add(new HeldDropMessage(publicKey1, new byte[]{0, 1}));
+        heldMessages.add(new HeldDropMessage(publicKey1, new byte[]{0, 2}));
+        heldMessages.add(new HeldDropMessage(publicKey2, new byte[]{0, 3}));
+        dataBase.putHeldMessages(heldMessages);
+        //a drop without cursor delivers the same message again
+        dataBase.putHeldMessages(heldMessages.subList(0, 1));
+        assertThat(dataBase.getHeldMessageSenders(), containsInAnyOrder(publicKey1, publicKey2));
+
+        List<HeldDropMessage> ofContact1 = dataBase.getHeldMessages(publicKey1);
+        assertThat(ofContact1.size(), is(2));
+        assertThat(ofContact1.get(0).cipherMessage, is(new byte[]{0, 1}));
+        assertThat(ofContact1.get(1).cipherMessage, is(new byte[]{0, 2}));
+
+        assertThat(dataBase.deleteHeldMessages(publicKey1), is(2));
+        assertThat(dataBase.getHeldMessageSenders(), containsInAnyOrder(publicKey2));
+    }
+
+    @Test
+    public void testHeldMessagesAreBounded() {
+        ChatMessagesDataBase dataBase = new ChatMessagesDataBase(getTargetContext(), identity);
+        List<HeldDropMessage> heldMessages = new ArrayList<>();
+        for (int i = 0; i < ChatMessagesDataBase.MAX_HELD_MESSAGES + 10; i++) {
+            heldMessages.add(new HeldDropMessage(publicKey1, ("message " + i).getBytes()));
+        }
+        dataBase.putHeldMessages(heldMessages);
+        List<HeldDropMessage> kept = dataBase.getHeldMessages(publicKey1);
+        assertThat(kept.size(), is(ChatMessagesDataBase.MAX_HELD_MESSAGES));
+        assertThat(new String(kept.get(0).cipherMessage), is("message 10"));
+    }
+
+    @Test
+    public void testUpgradeRemovesDuplicates() {
+        SQLiteDatabase old = getTargetContext().openOrCreateDatabase(
+                "ChatMessages.db" + identity.getEcPublicKey().getReadableKeyIdentifier(), Context.MODE_PRIVATE, null);
+        old.execSQL("CREATE TABLE messages (id INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, sender TEXT, receiver TEXT, " +
+                "ackid TEXT, timestamp LONG NOT NULL, payload_type TEXT NOT NULL, isnew INTEGER, payload TEXT);");
+        old.execSQL("CREATE TABLE drop_cursors (url TEXT PRIMARY KEY NOT NULL, last_modified LONG NOT NULL);");
+        for (int i = 0; i < 3; i++) {
+            old.execSQL("INSERT INTO messages (sender, receiver, timestamp, payload_type, isnew, payload) VALUES (?, ?, 1000, 'type', 1, 'payload')",
+                    new Object[]{publicKey1, getKeyIdentitfier(identity)});
+        }
+        old.execSQL("INSERT INTO messages (sender, receiver, timestamp, payload_type, isnew, payload) VALUES (?, ?, 1000, 'type', 1, 'other')",
+                new Object[]{publicKey1, getKeyIdentitfier(identity)});
+        for (int i = 0; i < 2; i++) {
+            old.execSQL("INSERT INTO messages (sender, receiver, timestamp, payload_type, isnew, payload) VALUES (?, NULL, 1000, 'type', 1, NULL)",
+                    new Object[]{publicKey1});
+        }
+        old.setVersion(2);
+        old.close();
+
+        ChatMessagesDataBase dataBase = new ChatMessagesDataBase(getTargetContext(), identity);
+        assertThat(dataBase.get(publicKey1).length, is(3));
+        assertThat(dataBase.getNewMessageCount(contact1), is(3));
+
+        //the migrated messages are deduplicated against new ones, also without receiver and payload
+        ChatMessageItem item = new ChatMessageItem(0, (short) 1, 1000, publicKey1, getKeyIdentitfier(identity),
+                null, "type", "payload");
+        dataBase.put(item);
+        ChatMessageItem withoutReceiver = new ChatMessageItem(0, (short) 1, 1000, publicKey1, null,
+                null, "type", null);
+        assertThat(dataBase.put(withoutReceiver).skipped, is(1));
+        assertThat(dataBase.get(publicKey1).length, is(3));
+    }
+
+    private String getKeyIdentitfier(Identity identity) {
+        return identity.getEcPublicKey().getReadableKeyIdentifier();
+    }
+
     private void compareItems(ChatMessageItem item1, ChatMessageItem item2) {
         assertThat(item1.getData(), is(item2.getData()));
         assertThat(item1.getTime(), is(item2.getTime()));
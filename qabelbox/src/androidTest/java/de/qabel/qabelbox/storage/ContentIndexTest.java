@@ -0,0 +1,100 @@
+package de.qabel.qabelbox.storage;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+
+import de.qabel.core.crypto.CryptoUtils;
+
+import static android.support.test.InstrumentationRegistry.getTargetContext;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+@RunWith(AndroidJUnit4.class)
+public class ContentIndexTest {
+
+    private File file;
+    private KeyParameter key;
+    private ContentIndex index;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("contentindex", "", getTargetContext().getCacheDir());
+        file.delete();
+        key = new CryptoUtils().generateSymmetricKey();
+        index = new ContentIndex(file, getTargetContext().getCacheDir(), key);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        index.delete();
+    }
+
+    private static BoxFile boxFile(String block, String name, long size) {
+        return new BoxFile("prefix", block, name, size, 1L, new byte[]{1});
+    }
+
+    private boolean add(String block, String name, String content) throws IOException {
+        return index.add(boxFile(block, name, content.length()),
+                new ByteArrayInputStream(content.getBytes("UTF-8")));
+    }
+
+    @Test
+    public void testIsIndexable() {
+        assertTrue(ContentIndex.isIndexable(boxFile("b", "notes.TXT", 10)));
+        assertFalse(ContentIndex.isIndexable(boxFile("b", "photo.jpg", 10)));
+        assertFalse(ContentIndex.isIndexable(boxFile("b", "huge.txt", ContentIndex.MAX_FILE_SIZE + 1)));
+    }
+
+    @Test
+    public void testSearch() throws Exception {
+        assertTrue(add("block1", "notes.txt", "Meeting with Müller about the Qabel budget"));
+        assertTrue(add("block2", "page.html", "<p class=\"budget\">Holiday plans</p>"));
+        assertFalse(add("block3", "image.png", "budget"));
+
+        assertThat(index.search("budget"), contains("block1"));
+        assertThat(index.search("MULLER qab"), contains("block1"));
+        assertThat(index.search("holiday"), contains("block2"));
+        assertThat(index.search("budget holiday"), empty());
+        assertThat(index.search("x"), empty());
+    }
+
+    @Test
+    public void testChangedFileReplacesContent() throws Exception {
+        add("old", "notes.txt", "first version");
+        add("new", "notes.txt", "second version");
+        index.retainBlocks(Collections.singletonList("new"));
+        assertFalse(index.isIndexed("old"));
+        assertThat(index.search("version"), contains("new"));
+        assertThat(index.search("first"), empty());
+    }
+
+    @Test
+    public void testPersistence() throws Exception {
+        add("block1", "notes.txt", "encrypted words");
+        index.flush();
+        assertTrue(file.exists());
+        ContentIndex reopened = new ContentIndex(file, getTargetContext().getCacheDir(), key);
+        assertThat(reopened.search("words"), contains("block1"));
+
+        ContentIndex wrongKey = new ContentIndex(file, getTargetContext().getCacheDir(),
+                new CryptoUtils().generateSymmetricKey());
+        assertThat(wrongKey.size(), is(0));
+    }
+
+    @Test
+    public void testTokenize() {
+        assertThat(ContentIndex.tokenize("Ünïcode, a b TEXT text-file"),
+                contains("unicode", "text", "file"));
+        assertThat(ContentIndex.tokenize(""), empty());
+    }
+}
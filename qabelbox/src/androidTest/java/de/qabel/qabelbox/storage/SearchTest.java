@@ -9,14 +9,15 @@ import org.junit.Test;
 import java.io.FileInputStream;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
 import java.util.GregorianCalendar;
-import java.util.Hashtable;
 import java.util.List;
 import java.util.UUID;
 
 import de.qabel.core.crypto.CryptoUtils;
 import de.qabel.core.crypto.QblECKeyPair;
+import de.qabel.qabelbox.providers.BoxProvider;
 
 import static org.hamcrest.Matchers.is;
 import static org.junit.Assert.assertThat;
@@ -42,7 +43,8 @@ public class SearchTest extends AndroidTestCase {
     //      two-level2-one.bin
     //
     private static List<BoxObject> searchResults;
-    private static Hashtable<String, BoxObject> pathMapping;
+    private static PathMapping pathMapping;
+    private static BoxVolume volume;
 
     private static boolean setup = true;
 
@@ -60,7 +62,7 @@ public class SearchTest extends AndroidTestCase {
         byte[] deviceID = utils.getRandomBytes(16);
         QblECKeyPair keyPair = new QblECKeyPair();
 
-        BoxVolume volume = new BoxVolume(keyPair, prefix,
+        volume = new BoxVolume(keyPair, prefix,
                 deviceID, getContext());
 
         volume.createIndex();
@@ -166,6 +168,45 @@ public class SearchTest extends AndroidTestCase {
         Log.d(TAG, "/collectAll");
     }
 
+    @Test
+    public void testPartialResults() throws Exception {
+        final List<BoxObject> partialResults = Collections.synchronizedList(new ArrayList<BoxObject>());
+        final PathMapping partialPaths = new PathMapping();
+        StorageSearch search = new StorageSearch(volume.navigate(), new StorageSearch.PartialResultListener() {
+            @Override
+            public void onPartialResult(String path, List<BoxObject> objects) {
+                partialResults.addAll(objects);
+                synchronized (partialPaths) {
+                    for (BoxObject object : objects) {
+                        partialPaths.put(path + object.name
+                                + (object instanceof BoxFolder ? BoxProvider.PATH_SEP : ""), object);
+                    }
+                }
+            }
+        });
+
+        assertEquals(8, partialResults.size());
+        assertEquals(search.getResults().size(), partialResults.size());
+        // the final order does not depend on the order the folders were loaded in
+        assertEquals("level0-one.bin", search.getResults().get(0).name);
+        assertEquals("dir1-level1-one", search.getResults().get(1).name);
+        assertEquals(pathMapping.paths(), search.getPathMapping().paths());
+        assertEquals(pathMapping.paths(), partialPaths.paths());
+    }
+
+    @Test
+    public void testSearchFromIndex() throws Exception {
+        VolumeIndex index = volume.getIndex();
+        assertTrue(index.isComplete());
+
+        StorageSearch search = new StorageSearch(index);
+
+        assertEquals(8, search.getResults().size());
+        assertEquals(pathMapping.paths(), search.getPathMapping().paths());
+        assertEquals(pathMapping.get("/dir1-level1-one/level1-two-Small.bin"),
+                search.findByPath("/dir1-level1-one/level1-two-Small.bin"));
+    }
+
     @Test
     public void testForValidName() throws Exception {
         assertFalse(StorageSearch.isValidSearchTerm(null));
@@ -304,6 +345,31 @@ public class SearchTest extends AndroidTestCase {
         assertEquals("dir1-level1-one", search.getResults().get(0).name);
     }
 
+    @Test
+    public void testQueryPlan() throws Exception {
+
+        List<BoxObject> original = new ArrayList<>(searchResults);
+        StorageSearch search = new StorageSearch(searchResults)
+                .sortCaseInsensitiveByName()
+                .filterByName("level1")
+                .where(StorageSearch.FILES)
+                .orderBy(new StorageSearch.SortKey() {
+                    @Override
+                    public String collationKey(BoxObject o) {
+                        return o.name.contains("two") ? "0" : "1";
+                    }
+                });
+        List<BoxObject> lst = search.getResults();
+
+        assertEquals(2, lst.size());
+        assertEquals("level1-two-Small.bin", lst.get(0).name);
+        assertEquals("level1-ONE.bin", lst.get(1).name);
+        // evaluation does not touch the list the search was created from
+        assertEquals(original, searchResults);
+        // the plan is only applied once
+        assertSame(lst, search.getResults());
+    }
+
     @Test
     public void testFilterByExtension() throws Exception {
 
@@ -345,7 +411,7 @@ public class SearchTest extends AndroidTestCase {
 
         Log.d(TAG, "MAPS: " + search.getPathMapping().size());
 
-        for (String key : search.getPathMapping().keySet()) {
+        for (String key : search.getPathMapping().paths()) {
             BoxObject o = search.getPathMapping().get(key);
 
             Log.d(TAG, "OBJ : " + o.name + " / " + o);
@@ -359,6 +425,22 @@ public class SearchTest extends AndroidTestCase {
         assertEquals("/dir1-level1-one/", search.findPathByBoxObject(results.get(1)));
     }
 
+    @Test
+    public void testFindPathOfCopy() throws Exception {
+
+        StorageSearch search = new StorageSearch(searchResults, pathMapping).clone();
+
+        // copies are found by block or ref, renamed objects by their old path
+        for (BoxObject o : searchResults) {
+            BoxObject copy = clone(o);
+            copy.name = "renamed";
+            String path = search.findPathByBoxObject(copy);
+            assertNotNull(path);
+            assertEquals(o.name, search.findByPath(path).name);
+        }
+        assertNull(search.findPathByBoxObject(new BoxUploadingFile("uploading")));
+    }
+
     private BoxObject clone(BoxObject o) {
 
         if (o instanceof BoxFile) {
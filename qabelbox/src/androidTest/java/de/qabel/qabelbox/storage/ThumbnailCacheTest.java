@@ -0,0 +1,114 @@
+package de.qabel.qabelbox.storage;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Color;
+import android.graphics.Point;
+import android.support.annotation.NonNull;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import de.qabel.core.crypto.CryptoUtils;
+
+import static android.support.test.InstrumentationRegistry.getTargetContext;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+@RunWith(AndroidJUnit4.class)
+public class ThumbnailCacheTest {
+
+    private ThumbnailCache mCache;
+    private File image;
+    private BoxFile boxFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mCache = new ThumbnailCache(getTargetContext());
+        image = createImage(2000, 1000);
+        boxFile = getBoxFile("block");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mCache.remove(boxFile);
+        image.delete();
+    }
+
+    @NonNull
+    private BoxFile getBoxFile(String block) {
+        Long now = System.currentTimeMillis() / 1000;
+        byte[] key = new CryptoUtils().generateSymmetricKey().getKey();
+        return new BoxFile("prefix", block, "image.png", 20L, now, key);
+    }
+
+    private File createImage(int width, int height) throws IOException {
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(Color.RED);
+        File file = File.createTempFile("image", ".png", getTargetContext().getCacheDir());
+        FileOutputStream outputStream = new FileOutputStream(file);
+        bitmap.compress(Bitmap.CompressFormat.PNG, 100, outputStream);
+        outputStream.close();
+        bitmap.recycle();
+        return file;
+    }
+
+    @Test
+    public void testSizeBuckets() {
+        assertThat(ThumbnailCache.getSize(null), equalTo(ThumbnailCache.DEFAULT_SIZE));
+        assertThat(ThumbnailCache.getSize(new Point(100, 50)), equalTo(128));
+        assertThat(ThumbnailCache.getSize(new Point(200, 256)), equalTo(256));
+        assertThat(ThumbnailCache.getSize(new Point(4000, 4000)), equalTo(1024));
+    }
+
+    @Test
+    public void testCacheMiss() {
+        assertNull(mCache.get(boxFile, 256));
+    }
+
+    @Test
+    public void testPutAndGet() {
+        assertTrue(mCache.put(boxFile, 256, image));
+        File thumbnail = mCache.get(boxFile, 256);
+        assertNotNull(thumbnail);
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(thumbnail.getAbsolutePath(), options);
+        assertThat(options.outWidth, equalTo(256));
+        assertThat(options.outHeight, equalTo(128));
+        thumbnail.delete();
+    }
+
+    @Test
+    public void testSmallerSizeFromLargerThumbnail() {
+        assertTrue(mCache.put(boxFile, 512, image));
+        File thumbnail = mCache.get(boxFile, 128);
+        assertNotNull(thumbnail);
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(thumbnail.getAbsolutePath(), options);
+        assertThat(options.outWidth, equalTo(128));
+        thumbnail.delete();
+    }
+
+    @Test
+    public void testWrongKeyIsRejected() {
+        assertTrue(mCache.put(boxFile, 256, image));
+        BoxFile otherKey = getBoxFile("block");
+        assertNull(mCache.get(otherKey, 256));
+    }
+
+    @Test
+    public void testNoImage() throws IOException {
+        File file = new File(BoxTest.createTestFile());
+        assertFalse(mCache.put(boxFile, 256, file));
+        assertNull(mCache.get(boxFile, 256));
+    }
+}
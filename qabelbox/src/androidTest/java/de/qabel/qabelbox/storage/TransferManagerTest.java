@@ -12,6 +12,8 @@ import org.junit.Test;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.UUID;
 
 import de.qabel.qabelbox.QabelBoxApplication;
@@ -29,6 +31,7 @@ public class TransferManagerTest extends AndroidTestCase {
 
     private File tempDir;
     TransferManager transferManager;
+    private final Map<Integer, Exception> errors = new HashMap<>();
 
     public void configureTestServer() {
         new AppPreference(QabelBoxApplication.getInstance()).setToken(TestConstants.TOKEN);
@@ -81,24 +84,32 @@ public class TransferManagerTest extends AndroidTestCase {
     private int syncUpload(final String nameOnServer, final File sourceFile) {
         TransferManager.BoxTransferListener listner = new VerboseTransferManagerListener(sourceFile + " -> " + nameOnServer, "uploading");
         int transferId = transferManager.uploadAndDeleteLocalfileOnSuccess(prefix, nameOnServer, sourceFile, listner);
-        transferManager.waitFor(transferId);
+        waitFor(transferId);
         return transferId;
     }
 
     private int syncDownload(final String nameOnServer, final File targetFile) {
         TransferManager.BoxTransferListener listner = new VerboseTransferManagerListener(nameOnServer + " -> " + targetFile, "uploading");
         int transferId = transferManager.download(prefix, nameOnServer, targetFile, listner);
-        transferManager.waitFor(transferId);
+        waitFor(transferId);
         return transferId;
     }
 
     private int syncDelete(final String nameOnServer) {
         int transferId = transferManager.delete(prefix, nameOnServer);
-        transferManager.waitFor(transferId);
+        waitFor(transferId);
         return transferId;
     }
 
 
+    private void waitFor(int transferId) {
+        try {
+            errors.put(transferId, transferManager.waitForError(transferId));
+        } catch (InterruptedException e) {
+            fail("Interrupted waiting for " + transferId);
+        }
+    }
+
     @Test
     public void testUpload() {
         File smallFileToUpload = null;
@@ -200,11 +211,12 @@ public class TransferManagerTest extends AndroidTestCase {
     }
 
     public void assertTransferManagerWasSuccesful(int transferId) {
-        assertNull(transferManager.lookupError(transferId));
+        assertTrue(errors.containsKey(transferId));
+        assertNull(errors.get(transferId));
     }
 
     public void assertTransferHasServerError(int transferId, int statusCode) {
-        Exception error = transferManager.lookupError(transferId);
+        Exception error = errors.get(transferId);
         assertNotNull(error);
         assertTrue(error instanceof QblServerException);
         assertEquals(statusCode, ((QblServerException) error).getStatusCode());
@@ -0,0 +1,181 @@
+package de.qabel.qabelbox.storage;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import de.qabel.core.crypto.CryptoUtils;
+import de.qabel.core.crypto.QblECKeyPair;
+
+import static android.support.test.InstrumentationRegistry.getTargetContext;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+@RunWith(AndroidJUnit4.class)
+public class VolumeIndexTest {
+
+    private File file;
+    private KeyParameter key;
+    private VolumeIndex index;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("index", "", getTargetContext().getCacheDir());
+        file.delete();
+        key = new CryptoUtils().generateSymmetricKey();
+        index = new VolumeIndex(file, getTargetContext().getCacheDir(), key);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        index.delete();
+    }
+
+    private static BoxFile boxFile(String name, long mtime) {
+        return new BoxFile("prefix", "block" + name, name, 42L, mtime, new byte[]{1});
+    }
+
+    private static BoxFolder boxFolder(String name) {
+        return new BoxFolder("ref" + name, name, new byte[]{1});
+    }
+
+    private static List<String> paths(List<VolumeIndex.Entry> entries) {
+        List<String> paths = new ArrayList<>();
+        for (VolumeIndex.Entry entry : entries) {
+            paths.add(entry.path);
+        }
+        return paths;
+    }
+
+    @Test
+    public void testSearch() {
+        index.updateFolder("/", Arrays.asList(boxFolder("Photos")),
+                Arrays.asList(boxFile("holiday.JPG", 1), boxFile("notes.txt", 2)));
+        index.updateFolder("/Photos/", Collections.<BoxFolder>emptyList(),
+                Arrays.asList(boxFile("holiday2.jpg", 3)));
+        assertThat(paths(index.search("HOLIDAY", 10)), contains("/Photos/holiday2.jpg", "/holiday.JPG"));
+        assertThat(paths(index.search("photo", 10)), contains("/Photos/"));
+        assertThat(index.search("holiday", 1).size(), is(1));
+        assertThat(index.search("missing", 10), empty());
+    }
+
+    @Test
+    public void testRecent() {
+        index.updateFolder("/", Arrays.asList(boxFolder("folder")),
+                Arrays.asList(boxFile("old", 1), boxFile("new", 3)));
+        index.updateFolder("/folder/", Collections.<BoxFolder>emptyList(),
+                Arrays.asList(boxFile("middle", 2)));
+        assertThat(paths(index.recent(10)), contains("/new", "/folder/middle", "/old"));
+        assertThat(paths(index.recent(1)), contains("/new"));
+    }
+
+    @Test
+    public void testRemovedFolderDropsSubtree() {
+        index.updateFolder("/", Arrays.asList(boxFolder("a")), Collections.<BoxFile>emptyList());
+        index.updateFolder("/a/", Arrays.asList(boxFolder("b")), Arrays.asList(boxFile("file", 1)));
+        index.updateFolder("/a/b/", Collections.<BoxFolder>emptyList(), Arrays.asList(boxFile("deep", 1)));
+        assertThat(index.size(), is(4));
+        // listing the root again keeps the entries below a
+        index.updateFolder("/", Arrays.asList(boxFolder("a")), Collections.<BoxFile>emptyList());
+        assertThat(index.size(), is(4));
+        index.updateFolder("/", Collections.<BoxFolder>emptyList(), Arrays.asList(boxFile("file", 1)));
+        assertThat(paths(index.search("", 10)), contains("/file"));
+    }
+
+    @Test
+    public void testPersistence() {
+        BoxFile stored = boxFile("stored", 1);
+        index.updateFolder("/", new byte[]{1}, Collections.<BoxFolder>emptyList(), Arrays.asList(stored));
+        assertFalse(file.exists());
+        index.flush();
+        assertTrue(file.exists());
+        VolumeIndex reopened = new VolumeIndex(file, getTargetContext().getCacheDir(), key);
+        List<VolumeIndex.Entry> entries = reopened.search("stored", 10);
+        assertThat(paths(entries), contains("/stored"));
+        assertThat((BoxFile) entries.get(0).object, equalTo(stored));
+        assertTrue(reopened.isComplete());
+    }
+
+    @Test
+    public void testChangesAreStoredAfterDelay() throws Exception {
+        index.updateFolder("/", Collections.<BoxFolder>emptyList(), Arrays.asList(boxFile("first", 1)));
+        index.updateFolder("/", Collections.<BoxFolder>emptyList(), Arrays.asList(boxFile("second", 1)));
+        assertFalse(file.exists());
+        Thread.sleep(VolumeIndex.FLUSH_DELAY_MS + 1000);
+        VolumeIndex reopened = new VolumeIndex(file, getTargetContext().getCacheDir(), key);
+        assertThat(paths(reopened.getEntries()), contains("/second"));
+    }
+
+    @Test
+    public void testDeletedIdentityIndexIsNotStoredAgain() throws Exception {
+        QblECKeyPair keyPair = new QblECKeyPair();
+        BoxVolumeRegistry registry = new BoxVolumeRegistry(getTargetContext());
+        VolumeIndex volumeIndex = registry.get(keyPair, "prefix", new byte[]{1}).getIndex();
+        volumeIndex.updateFolder("/", Collections.<BoxFolder>emptyList(), Arrays.asList(boxFile("first", 1)));
+
+        registry.delete(keyPair, Collections.singletonList("prefix"));
+        // a crawl that is still running
+        volumeIndex.updateFolder("/", Collections.<BoxFolder>emptyList(), Arrays.asList(boxFile("second", 1)));
+        volumeIndex.flush();
+        Thread.sleep(VolumeIndex.FLUSH_DELAY_MS + 1000);
+
+        VolumeIndex reopened = VolumeIndex.forVolume(getTargetContext(), keyPair, "prefix");
+        assertThat(reopened.getEntries(), empty());
+        reopened.delete();
+    }
+
+    @Test
+    public void testUnchangedVersionIsSkipped() {
+        index.updateFolder("/", new byte[]{1}, Collections.<BoxFolder>emptyList(),
+                Arrays.asList(boxFile("first", 1)));
+        index.updateFolder("/", new byte[]{1}, Collections.<BoxFolder>emptyList(),
+                Arrays.asList(boxFile("ignored", 1)));
+        assertThat(paths(index.getEntries()), contains("/first"));
+        index.updateFolder("/", new byte[]{2}, Collections.<BoxFolder>emptyList(),
+                Arrays.asList(boxFile("second", 1)));
+        assertThat(paths(index.getEntries()), contains("/second"));
+    }
+
+    @Test
+    public void testIsComplete() {
+        assertFalse(index.isComplete());
+        index.updateFolder("/", new byte[]{1}, Arrays.asList(boxFolder("a")), Collections.<BoxFile>emptyList());
+        assertFalse(index.isComplete());
+        index.updateFolder("/a/", new byte[]{1}, Collections.<BoxFolder>emptyList(), Collections.<BoxFile>emptyList());
+        assertTrue(index.isComplete());
+    }
+
+    @Test
+    public void testRangeAndPrefixQueries() {
+        BoxFile small = new BoxFile("prefix", "block1", "Report small.pdf", 10L, 100L, new byte[]{1});
+        BoxFile large = new BoxFile("prefix", "block2", "report large.pdf", 1000L, 200L, new byte[]{1});
+        BoxFile other = new BoxFile("prefix", "block3", "my report.pdf", 500L, 300L, new byte[]{1});
+        index.updateFolder("/", Arrays.asList(boxFolder("reports")), Arrays.asList(small, large, other));
+
+        assertThat(paths(index.query(new VolumeIndex.Query().nameStartsWith("REPORT"))),
+                contains("/Report small.pdf", "/report large.pdf", "/reports/"));
+        assertThat(paths(index.query(new VolumeIndex.Query().nameContains("report").sizeBetween(100, 1000))),
+                contains("/my report.pdf", "/report large.pdf"));
+        assertThat(paths(index.query(new VolumeIndex.Query().mtimeBetween(0, 200).limit(1))),
+                contains("/Report small.pdf"));
+    }
+
+    @Test
+    public void testWrongKeyIsIgnored() {
+        index.updateFolder("/", Collections.<BoxFolder>emptyList(), Arrays.asList(boxFile("stored", 1)));
+        index.flush();
+        VolumeIndex reopened = new VolumeIndex(file, getTargetContext().getCacheDir(),
+                new CryptoUtils().generateSymmetricKey());
+        assertThat(reopened.size(), is(0));
+    }
+}
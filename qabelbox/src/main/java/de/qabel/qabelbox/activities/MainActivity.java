@@ -82,6 +82,7 @@ import de.qabel.qabelbox.storage.BoxFolder;
 import de.qabel.qabelbox.storage.BoxNavigation;
 import de.qabel.qabelbox.storage.BoxObject;
 import de.qabel.qabelbox.storage.BoxVolume;
+import de.qabel.qabelbox.storage.PathMapping;
 
 public class MainActivity extends CrashReportingActivity
         implements NavigationView.OnNavigationItemSelectedListener,
@@ -636,7 +637,27 @@ public class MainActivity extends CrashReportingActivity
 
     public void showFile(BoxObject boxObject) {
 
-        Uri uri = VolumeFileTransferHelper.getUri(boxObject, boxVolume, filesFragment.getBoxNavigation());
+        showFile(VolumeFileTransferHelper.getUri(boxObject, boxVolume, filesFragment.getBoxNavigation()));
+    }
+
+    /**
+     * open a search hit, which is usually not in the current folder
+     *
+     * @param paths paths of the search the hit was found by
+     */
+    public void showFile(BoxObject boxObject, PathMapping paths) {
+
+        String path = paths.getPath(boxObject);
+        if (path == null) {
+            Log.w(TAG, "No path known for " + boxObject.name + ", resolving it in the current folder");
+            showFile(boxObject);
+            return;
+        }
+        showFile(VolumeFileTransferHelper.getUri(path, boxVolume));
+    }
+
+    private void showFile(Uri uri) {
+
         String type = getMimeType(uri);
         Log.v(TAG, "Mime type: " + type);
         Log.v(TAG, "Uri: " + uri.toString() + " " + uri.toString().length());
@@ -10,9 +10,6 @@ import android.widget.BaseAdapter;
 import android.widget.ImageView;
 import android.widget.TextView;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
 
 import de.qabel.core.config.Contact;
@@ -28,22 +25,14 @@ public class ChatMessageAdapter extends BaseAdapter {
     private OnItemClickListener onItemClickListener;
     private View emptyView;
 
-    public ChatMessageAdapter(ArrayList<ChatMessageItem> allMessages, Contact contact) {
-
-        mMessages = new ArrayList<>();
+    /**
+     * @param messages messages with the contact, oldest first. The list is shown as it is, call
+     *                 {@link #notifyDataSetChanged()} after changing it.
+     */
+    public ChatMessageAdapter(List<ChatMessageItem> messages, Contact contact) {
 
-        contactPublicKey = contact.getEcPublicKey().getReadableKeyIdentifier().toString();
-        for (ChatMessageItem message : allMessages) {
-            if (contactPublicKey.equals(message.getSenderKey()) || contactPublicKey.equals(message.getReceiverKey())) {
-                mMessages.add(message);
-            }
-        }
-        Collections.sort(mMessages, new Comparator<ChatMessageItem>() {
-            @Override
-            public int compare(ChatMessageItem o1, ChatMessageItem o2) {
-                return (o1.getTime() > o2.getTime() ? 1 : (o1.getTime() == o2.getTime() ? 0 : -1));
-            }
-        });
+        mMessages = messages;
+        contactPublicKey = contact.getEcPublicKey().getReadableKeyIdentifier();
 
         registerDataSetObserver(observer);
     }
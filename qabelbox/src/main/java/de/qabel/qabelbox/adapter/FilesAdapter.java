@@ -12,7 +12,9 @@ import android.widget.TextView;
 
 import org.apache.commons.io.FileUtils;
 
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -236,6 +238,20 @@ public class FilesAdapter extends RecyclerView.Adapter<FilesAdapter.FilesViewHol
         Collections.sort(boxObjects, BoxObjectComparators.alphabeticOrderDirectoriesFirstIgnoreCase());
     }
 
+    /**
+     * Insert the objects at their position in the order of {@link #sort()}, the adapter has to
+     * be sorted already. Cheaper than sorting everything again for a few new objects.
+     */
+    public void addAllSorted(Collection<BoxObject> objects) {
+
+        Comparator<BoxObject> comparator = BoxObjectComparators.alphabeticOrderDirectoriesFirstIgnoreCase();
+        for (BoxObject boxObject : objects) {
+            int position = Collections.binarySearch(boxObjects, boxObject, comparator);
+            boxObjectsByName.put(boxObject.name, boxObject);
+            boxObjects.add(position < 0 ? -position - 1 : position, boxObject);
+        }
+    }
+
     public void clear() {
 
         boxObjectsByName.clear();
@@ -6,27 +6,61 @@ import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.text.TextUtils;
 import android.util.Log;
 
+import org.spongycastle.util.encoders.Hex;
+
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 import de.qabel.core.config.Contact;
 import de.qabel.core.config.Identity;
+import de.qabel.qabelbox.services.HeldDropMessage;
 
 /**
  * class to store chat messages in database
  */
 public class ChatMessagesDataBase extends SQLiteOpenHelper {
 
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 4;
     private static final String DATABASE_NAME = "ChatMessages.db";
     private static final String TAG = "ChatMessagesDataBase";
 
-    //table for store last load
+    //table of version 1 that stored the time of the last load
     private static final String TABLE_NAME_LOAD = "load";
-    private static final String COL_LOAD_TIMESTAMP = "timestamp";
+
+    //table for store the last modified time of each drop
+    private static final String TABLE_DROP_CURSORS = "drop_cursors";
+    private static final String COL_CURSOR_URL = "url";
+    private static final String COL_CURSOR_LAST_MODIFIED = "last_modified";
+
+    //messages from senders that are no contacts yet, kept encrypted until they are added
+    private static final String TABLE_HELD_MESSAGES = "held_messages";
+    private static final String COL_HELD_ID = "id";
+    private static final String COL_HELD_SENDER = "sender";
+    private static final String COL_HELD_MESSAGE = "message";
+    private static final String COL_HELD_MESSAGE_HASH = "message_hash";
+    private static final String INDEX_HELD_SENDER = "idx_held_messages_sender";
+    //only the newest held messages are kept, so strangers cannot fill the database
+    static final int MAX_HELD_MESSAGES = 500;
 
     private static final String TABLE_MESSAGE_NAME = "messages";
+    //messages table of version 2 while it is copied
+    private static final String TABLE_MESSAGE_NAME_V2 = "messages_v2";
     private static final String COL_MESSAGE_ID = "id";
     private static final String COL_MESSAGE_ISNEW = "isnew";
     private static final String COL_MESSAGE_TIMESTAMP = "timestamp";
@@ -35,22 +69,108 @@ public class ChatMessagesDataBase extends SQLiteOpenHelper {
     private static final String COL_MESSAGE_ACKNOWLEDGE_ID = "ackid";
     private static final String COL_MESSAGE_PAYLOAD_TYPE = "payload_type";
     private static final String COL_MESSAGE_PAYLOAD = "payload";
+    private static final String COL_MESSAGE_PAYLOAD_HASH = "payload_hash";
+
+    private static final String INDEX_MESSAGE_UNIQUE = "idx_messages_unique";
+    private static final String INDEX_MESSAGE_SENDER = "idx_messages_sender";
+    private static final String INDEX_MESSAGE_RECEIVER = "idx_messages_receiver";
+    private static final String INDEX_MESSAGE_UNREAD = "idx_messages_unread";
 
     private static final String CREATE_TABLE =
             "CREATE TABLE IF NOT EXISTS " + TABLE_MESSAGE_NAME + " (" +
                     COL_MESSAGE_ID + " INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL," +
-                    COL_MESSAGE_SENDER + " TEXT," +
-                    COL_MESSAGE_RECEIVER + " TEXT," +
+                    COL_MESSAGE_SENDER + " TEXT NOT NULL," +
+                    COL_MESSAGE_RECEIVER + " TEXT NOT NULL," +
                     COL_MESSAGE_ACKNOWLEDGE_ID + " TEXT," +
                     COL_MESSAGE_TIMESTAMP + " LONG NOT NULL," +
                     COL_MESSAGE_PAYLOAD_TYPE + " TEXT NOT NULL," +
                     COL_MESSAGE_ISNEW + " INTEGER," +
-                    COL_MESSAGE_PAYLOAD + " TEXT);";
+                    COL_MESSAGE_PAYLOAD + " TEXT," +
+                    COL_MESSAGE_PAYLOAD_HASH + " TEXT NOT NULL);";
+
+    //a message is stored only once, duplicates are ignored on insert. All columns are NOT NULL,
+    //because rows with a NULL in a unique index never conflict
+
+    private static final String CREATE_INDEX_UNIQUE =
+            "CREATE UNIQUE INDEX IF NOT EXISTS " + INDEX_MESSAGE_UNIQUE + " ON " + TABLE_MESSAGE_NAME + " (" +
+                    COL_MESSAGE_SENDER + "," +
+                    COL_MESSAGE_RECEIVER + "," +
+                    COL_MESSAGE_TIMESTAMP + "," +
+                    COL_MESSAGE_PAYLOAD_HASH + ");";
+
+    //history of a contact, newest first
+    private static final String CREATE_INDEX_SENDER =
+            "CREATE INDEX IF NOT EXISTS " + INDEX_MESSAGE_SENDER + " ON " + TABLE_MESSAGE_NAME + " (" +
+                    COL_MESSAGE_SENDER + "," +
+                    COL_MESSAGE_TIMESTAMP + ");";
+
+    private static final String CREATE_INDEX_RECEIVER =
+            "CREATE INDEX IF NOT EXISTS " + INDEX_MESSAGE_RECEIVER + " ON " + TABLE_MESSAGE_NAME + " (" +
+                    COL_MESSAGE_RECEIVER + "," +
+                    COL_MESSAGE_TIMESTAMP + ");";
+
+    //new message count of a contact and of all contacts at once
+    private static final String CREATE_INDEX_UNREAD =
+            "CREATE INDEX IF NOT EXISTS " + INDEX_MESSAGE_UNREAD + " ON " + TABLE_MESSAGE_NAME + " (" +
+                    COL_MESSAGE_ISNEW + "," +
+                    COL_MESSAGE_SENDER + ");";
+
+    //keyset condition for a page of messages older than a given one
+    private static final String OLDER_THAN =
+            COL_MESSAGE_TIMESTAMP + "<=? AND NOT (" + COL_MESSAGE_TIMESTAMP + "=? AND " + COL_MESSAGE_ID + ">=?)";
+
+    private static final String ORDER_NEWEST_FIRST =
+            COL_MESSAGE_TIMESTAMP + " DESC," + COL_MESSAGE_ID + " DESC";
+
+    private static final String INSERT_MESSAGE =
+            "INSERT OR IGNORE INTO " + TABLE_MESSAGE_NAME + " (" +
+                    COL_MESSAGE_SENDER + "," +
+                    COL_MESSAGE_RECEIVER + "," +
+                    COL_MESSAGE_TIMESTAMP + "," +
+                    COL_MESSAGE_PAYLOAD_TYPE + "," +
+                    COL_MESSAGE_PAYLOAD + "," +
+                    COL_MESSAGE_PAYLOAD_HASH + "," +
+                    COL_MESSAGE_ISNEW + ") VALUES (?,?,?,?,?,?,?);";
+
+    private static final String INSERT_MIGRATED_MESSAGE =
+            "INSERT OR IGNORE INTO " + TABLE_MESSAGE_NAME + " (" +
+                    COL_MESSAGE_ID + "," +
+                    COL_MESSAGE_SENDER + "," +
+                    COL_MESSAGE_RECEIVER + "," +
+                    COL_MESSAGE_ACKNOWLEDGE_ID + "," +
+                    COL_MESSAGE_TIMESTAMP + "," +
+                    COL_MESSAGE_PAYLOAD_TYPE + "," +
+                    COL_MESSAGE_ISNEW + "," +
+                    COL_MESSAGE_PAYLOAD + "," +
+                    COL_MESSAGE_PAYLOAD_HASH + ") VALUES (?,?,?,?,?,?,?,?,?);";
+
+    private static final String CREATE_TABLE_DROP_CURSORS =
+            "CREATE TABLE IF NOT EXISTS " + TABLE_DROP_CURSORS + " (" +
+                    COL_CURSOR_URL + " TEXT PRIMARY KEY NOT NULL," +
+                    COL_CURSOR_LAST_MODIFIED + " LONG NOT NULL);";
+
+    private static final String CREATE_TABLE_HELD_MESSAGES =
+            "CREATE TABLE IF NOT EXISTS " + TABLE_HELD_MESSAGES + " (" +
+                    COL_HELD_ID + " INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL," +
+                    COL_HELD_SENDER + " TEXT NOT NULL," +
+                    COL_HELD_MESSAGE + " BLOB NOT NULL," +
+                    COL_HELD_MESSAGE_HASH + " TEXT NOT NULL UNIQUE);";
+
+    private static final String CREATE_INDEX_HELD_SENDER =
+            "CREATE INDEX IF NOT EXISTS " + INDEX_HELD_SENDER + " ON " + TABLE_HELD_MESSAGES + " (" +
+                    COL_HELD_SENDER + ");";
+
+    private static final String INSERT_HELD_MESSAGE =
+            "INSERT OR IGNORE INTO " + TABLE_HELD_MESSAGES + " (" +
+                    COL_HELD_SENDER + "," +
+                    COL_HELD_MESSAGE + "," +
+                    COL_HELD_MESSAGE_HASH + ") VALUES (?,?,?);";
+
+    private static final String DELETE_OLD_HELD_MESSAGES =
+            "DELETE FROM " + TABLE_HELD_MESSAGES + " WHERE " + COL_HELD_ID + " NOT IN (" +
+                    "SELECT " + COL_HELD_ID + " FROM " + TABLE_HELD_MESSAGES +
+                    " ORDER BY " + COL_HELD_ID + " DESC LIMIT " + MAX_HELD_MESSAGES + ");";
 
-    private static final String CREATE_TABLE_LOAD =
-            "CREATE TABLE IF NOT EXISTS " + TABLE_NAME_LOAD + " (" +
-
-                    COL_LOAD_TIMESTAMP + " LONG NOT NULL);";
     private final String fullDBName;
 
     public ChatMessagesDataBase(Context context, Identity activeIdentity) {
@@ -65,64 +185,150 @@ public class ChatMessagesDataBase extends SQLiteOpenHelper {
 
         Log.v(TAG, CREATE_TABLE);
         sqLiteDatabase.execSQL(CREATE_TABLE);
-        sqLiteDatabase.execSQL(CREATE_TABLE_LOAD);
+        createIndexes(sqLiteDatabase);
+        sqLiteDatabase.execSQL(CREATE_TABLE_DROP_CURSORS);
+        sqLiteDatabase.execSQL(CREATE_TABLE_HELD_MESSAGES);
+    }
+
+    private void createIndexes(SQLiteDatabase sqLiteDatabase) {
+
+        sqLiteDatabase.execSQL(CREATE_INDEX_UNIQUE);
+        sqLiteDatabase.execSQL(CREATE_INDEX_SENDER);
+        sqLiteDatabase.execSQL(CREATE_INDEX_RECEIVER);
+        sqLiteDatabase.execSQL(CREATE_INDEX_UNREAD);
+        sqLiteDatabase.execSQL(CREATE_INDEX_HELD_SENDER);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase sqLiteDatabase, int from, int to) {
 
-        sqLiteDatabase.execSQL("DROP TABLE " + TABLE_MESSAGE_NAME + ";");
-        sqLiteDatabase.execSQL("DROP TABLE " + CREATE_TABLE_LOAD + ";");
+        if (from < 2) {
+            // the single load time is replaced by a cursor per drop
+            sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + TABLE_NAME_LOAD + ";");
+            sqLiteDatabase.execSQL(CREATE_TABLE_DROP_CURSORS);
+        }
+        if (from < 3) {
+            migrateMessagesToVersion3(sqLiteDatabase);
+        }
+        if (from < 4) {
+            sqLiteDatabase.execSQL(CREATE_TABLE_HELD_MESSAGES);
+        }
+        createIndexes(sqLiteDatabase);
     }
 
+    /**
+     * Copy all messages into the table of version 3, which hashes the payload and does not allow
+     * NULL in the columns of the unique index. Duplicates are dropped, the oldest copy is kept.
+     */
+    private void migrateMessagesToVersion3(SQLiteDatabase sqLiteDatabase) {
 
-    public void put(ChatMessageItem item) {
+        sqLiteDatabase.execSQL("ALTER TABLE " + TABLE_MESSAGE_NAME + " RENAME TO " + TABLE_MESSAGE_NAME_V2 + ";");
+        sqLiteDatabase.execSQL(CREATE_TABLE);
+        sqLiteDatabase.execSQL(CREATE_INDEX_UNIQUE);
+        SQLiteStatement insert = sqLiteDatabase.compileStatement(INSERT_MIGRATED_MESSAGE);
+        Cursor cursor = sqLiteDatabase.query(TABLE_MESSAGE_NAME_V2,
+                new String[]{COL_MESSAGE_ID, COL_MESSAGE_SENDER, COL_MESSAGE_RECEIVER, COL_MESSAGE_ACKNOWLEDGE_ID,
+                        COL_MESSAGE_TIMESTAMP, COL_MESSAGE_PAYLOAD_TYPE, COL_MESSAGE_ISNEW, COL_MESSAGE_PAYLOAD},
+                null, null, null, null, COL_MESSAGE_ID);
+        int skipped = 0;
+        try {
+            while (cursor.moveToNext()) {
+                insert.bindLong(1, cursor.getLong(0));
+                insert.bindString(2, nullToEmpty(cursor.getString(1)));
+                insert.bindString(3, nullToEmpty(cursor.getString(2)));
+                bindStringOrNull(insert, 4, cursor.getString(3));
+                insert.bindLong(5, cursor.getLong(4));
+                insert.bindString(6, cursor.getString(5));
+                insert.bindLong(7, cursor.getLong(6));
+                insert.bindString(8, nullToEmpty(cursor.getString(7)));
+                insert.bindString(9, hashPayload(cursor.getString(7)));
+                if (insert.executeInsert() == -1) {
+                    skipped++;
+                }
+            }
+        } finally {
+            cursor.close();
+            insert.close();
+        }
+        sqLiteDatabase.execSQL("DROP TABLE " + TABLE_MESSAGE_NAME_V2 + ";");
+        Log.d(TAG, "duplicate messages removed: " + skipped);
+    }
 
-        Log.i(TAG, "Put into db: " + item.toString() + " " + item.getSenderKey() + " " + item.getReceiverKey());
-        ContentValues values = new ContentValues();
+    /**
+     * @return hex encoded SHA-256 of the payload, messages are deduplicated by it instead of the full payload
+     */
+    static String hashPayload(@Nullable String payload) {
 
-        values.put(COL_MESSAGE_SENDER, item.getSenderKey());
-        values.put(COL_MESSAGE_RECEIVER, item.getReceiverKey());
-        values.put(COL_MESSAGE_TIMESTAMP, item.time_stamp);
-        values.put(COL_MESSAGE_PAYLOAD_TYPE, item.drop_payload_type);
-        values.put(COL_MESSAGE_PAYLOAD, item.drop_payload == null ? "" : item.drop_payload);
-        values.put(COL_MESSAGE_ISNEW, item.isNew);
-        if (getID(item.getSenderKey(), item.getReceiverKey(), item.getTime() + "", item.drop_payload) <= -1) {
-            long id = getWritableDatabase().insert(TABLE_MESSAGE_NAME, null, values);
-            if (id == -1) {
-                Log.e(TAG, "Failed put into db: " + item.toString());
-            } else {
-                Log.v(TAG, "db entry putted " + item.drop_payload + " id:" + id);
-            }
-        } else {
-            Log.d(TAG, "already in db");
+        return hash((payload == null ? "" : payload).getBytes(Charset.forName("UTF-8")));
+    }
+
+    private static String hash(byte[] data) {
+
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
         }
+        return Hex.toHexString(md.digest(data));
+    }
+
+
+    public PutResult put(ChatMessageItem item) {
+
+        return putAll(Collections.singletonList(item));
     }
 
+    /**
+     * Store all items in one transaction. Items that are already stored are skipped.
+     */
+    public PutResult putAll(Collection<ChatMessageItem> items) {
 
-    private int getID(String sender, String receiver, String timestamp, String payload) {
-        if (sender == null) {
-            Log.e(TAG, "sender can't be null");
-            return -1;
+        PutResult result = new PutResult();
+        if (items.isEmpty()) {
+            return result;
         }
-        if (receiver == null) {
-            Log.e(TAG, "sender can't be null");
-            return -1;
+        SQLiteDatabase database = getWritableDatabase();
+        SQLiteStatement insert = database.compileStatement(INSERT_MESSAGE);
+        database.beginTransaction();
+        try {
+            for (ChatMessageItem item : items) {
+                insert.bindString(1, nullToEmpty(item.getSenderKey()));
+                insert.bindString(2, nullToEmpty(item.getReceiverKey()));
+                insert.bindLong(3, item.time_stamp);
+                bindStringOrNull(insert, 4, item.drop_payload_type);
+                insert.bindString(5, nullToEmpty(item.drop_payload));
+                insert.bindString(6, hashPayload(item.drop_payload));
+                insert.bindLong(7, item.isNew);
+                if (insert.executeInsert() == -1) {
+                    result.skipped++;
+                } else {
+                    result.inserted++;
+                    if (item.isNew == 1) {
+                        result.addNewMessage(item.getSenderKey());
+                    }
+                }
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+            insert.close();
         }
-        Cursor c = getReadableDatabase().query(TABLE_MESSAGE_NAME,
-                new String[]{COL_MESSAGE_ID},
-                COL_MESSAGE_SENDER + "=? and " + COL_MESSAGE_RECEIVER + "=? and " + COL_MESSAGE_TIMESTAMP + "=? and " + COL_MESSAGE_PAYLOAD + "=?",
-                new String[]{sender, receiver, timestamp, payload}, null, null, null, null);
-        if (c.moveToFirst()) //if the row exist then return the id
-        {
-            int id = c.getInt(c.getColumnIndex(COL_MESSAGE_ID));
-            Log.d(TAG, "id: " + id);
-            c.close();
-            return id;
+        Log.d(TAG, "put into db: " + result.inserted + " inserted, " + result.skipped + " skipped");
+        return result;
+    }
+
+    private static String nullToEmpty(@Nullable String value) {
+
+        return value == null ? "" : value;
+    }
+
+    private static void bindStringOrNull(SQLiteStatement statement, int index, @Nullable String value) {
+
+        if (value == null) {
+            statement.bindNull(index);
         } else {
-            Log.d(TAG, "new item");
-            c.close();
-            return -1;
+            statement.bindString(index, value);
         }
     }
 
@@ -139,6 +345,53 @@ public class ChatMessagesDataBase extends SQLiteOpenHelper {
         return createResultList(cursor);
     }
 
+    /**
+     * Get a page of the history with a contact without loading the whole history.
+     * <p>
+     * The page is found with the index on the timestamp of the sent and received messages and
+     * continues before the given message, so loading a page does not depend on the number of
+     * newer messages.
+     *
+     * @param key    key identifier of the contact
+     * @param before oldest message of the previous page or null for the newest page
+     * @param limit  maximal number of messages
+     * @return messages of the page, oldest first
+     */
+    public ChatMessageItem[] getPage(String key, @Nullable ChatMessageItem before, int limit) {
+
+        String columns = TextUtils.join(",", getAllColumnsList());
+        String olderThan = before == null ? "" : " AND " + OLDER_THAN;
+        String sent = "SELECT " + columns + " FROM " + TABLE_MESSAGE_NAME +
+                " WHERE " + COL_MESSAGE_RECEIVER + "=?" + olderThan +
+                " ORDER BY " + ORDER_NEWEST_FIRST + " LIMIT " + limit;
+        String received = "SELECT " + columns + " FROM " + TABLE_MESSAGE_NAME +
+                " WHERE " + COL_MESSAGE_SENDER + "=?" + olderThan +
+                " ORDER BY " + ORDER_NEWEST_FIRST + " LIMIT " + limit;
+        //each side is read newest first from its own index, the union only merges 2 * limit rows
+        String sql = "SELECT * FROM (" + sent + ") UNION SELECT * FROM (" + received + ")" +
+                " ORDER BY " + ORDER_NEWEST_FIRST + " LIMIT " + limit;
+
+        String[] args;
+        if (before == null) {
+            args = new String[]{key, key};
+        } else {
+            String time = String.valueOf(before.time_stamp);
+            String id = String.valueOf(before.id);
+            args = new String[]{key, time, time, id, key, time, time, id};
+        }
+        ChatMessageItem[] items = createResultList(getReadableDatabase().rawQuery(sql, args));
+        if (items == null) {
+            return new ChatMessageItem[0];
+        }
+        //oldest first, like the full history
+        for (int i = 0, j = items.length - 1; i < j; i++, j--) {
+            ChatMessageItem item = items[i];
+            items[i] = items[j];
+            items[j] = item;
+        }
+        return items;
+    }
+
     @NonNull
     private String[] getAllColumnsList() {
         //colums
@@ -146,7 +399,7 @@ public class ChatMessagesDataBase extends SQLiteOpenHelper {
                 {
                         COL_MESSAGE_ID,
                         COL_MESSAGE_ISNEW,
-                        COL_LOAD_TIMESTAMP,
+                        COL_MESSAGE_TIMESTAMP,
                         COL_MESSAGE_SENDER,
                         COL_MESSAGE_RECEIVER,
                         COL_MESSAGE_ACKNOWLEDGE_ID,
@@ -208,33 +461,153 @@ public class ChatMessagesDataBase extends SQLiteOpenHelper {
 
     }
 
+    /**
+     * @return number of new messages of every sender that has any
+     */
+    public Map<String, Integer> getNewMessageCounts() {
+        Map<String, Integer> counts = new HashMap<>();
+        Cursor cursor = getReadableDatabase().query(TABLE_MESSAGE_NAME,
+                new String[]{COL_MESSAGE_SENDER, "COUNT(*)"},
+                COL_MESSAGE_ISNEW + "=1", null, COL_MESSAGE_SENDER, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                if (!TextUtils.isEmpty(cursor.getString(0))) {
+                    counts.put(cursor.getString(0), cursor.getInt(1));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return counts;
+    }
+
     public int setAllMessagesRead(Contact c) {
         SQLiteDatabase database = getWritableDatabase();
 
         ContentValues cv = new ContentValues();
         cv.put(COL_MESSAGE_ISNEW, 0);
-        return database.update(TABLE_MESSAGE_NAME, cv, COL_MESSAGE_SENDER + "='" + c.getEcPublicKey().getReadableKeyIdentifier() + "'", null);
+        return database.update(TABLE_MESSAGE_NAME, cv, COL_MESSAGE_SENDER + "=? AND " + COL_MESSAGE_ISNEW + "=1",
+                new String[]{c.getEcPublicKey().getReadableKeyIdentifier()});
     }
 
-    public long getLastRetrievedDropMessageTime() {
-        SQLiteDatabase database = getReadableDatabase();
-        Cursor cursor = database.query(TABLE_NAME_LOAD, new String[]{COL_LOAD_TIMESTAMP}, null, null, null, null, null);
-        if (cursor.getCount() == 0) {
-            return 0;
-        } else {
-            cursor.moveToFirst();
-            long time = cursor.getLong(0);
+    /**
+     * Number of items stored and skipped by {@link #putAll(Collection)}
+     */
+    public static class PutResult {
+
+        public int inserted;
+        public int skipped;
+        //stored messages that are new, by sender key
+        public final Map<String, Integer> newMessages = new HashMap<>();
+
+        void addNewMessage(@Nullable String sender) {
+            if (sender != null) {
+                Integer count = newMessages.get(sender);
+                newMessages.put(sender, count == null ? 1 : count + 1);
+            }
+        }
+    }
+
+    /**
+     * @return Last-Modified time of every drop as reported by the drop server
+     */
+    public Map<URI, Long> getDropCursors() {
+        Map<URI, Long> cursors = new HashMap<>();
+        Cursor cursor = getReadableDatabase().query(TABLE_DROP_CURSORS,
+                new String[]{COL_CURSOR_URL, COL_CURSOR_LAST_MODIFIED}, null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                cursors.put(URI.create(cursor.getString(0)), cursor.getLong(1));
+            }
+        } finally {
             cursor.close();
-            return time;
         }
+        return cursors;
+    }
 
+    /**
+     * Replace all stored drop cursors
+     */
+    public void setDropCursors(Map<URI, Long> cursors) {
+        SQLiteDatabase database = getWritableDatabase();
+        database.beginTransaction();
+        try {
+            database.delete(TABLE_DROP_CURSORS, null, null);
+            for (Map.Entry<URI, Long> cursor : cursors.entrySet()) {
+                ContentValues values = new ContentValues();
+                values.put(COL_CURSOR_URL, cursor.getKey().toString());
+                values.put(COL_CURSOR_LAST_MODIFIED, cursor.getValue());
+                database.insert(TABLE_DROP_CURSORS, null, values);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
     }
 
-    public void setLastRetrivedDropMessagesTime(long time) {
-        SQLiteDatabase database = getReadableDatabase();
-        ContentValues values = new ContentValues();
-        values.put(COL_LOAD_TIMESTAMP, time);
+    /**
+     * Keep messages of unknown senders in one transaction. Messages that are already held are
+     * skipped and only the newest {@link #MAX_HELD_MESSAGES} are kept.
+     */
+    public void putHeldMessages(Collection<HeldDropMessage> heldMessages) {
+        if (heldMessages.isEmpty()) {
+            return;
+        }
+        SQLiteDatabase database = getWritableDatabase();
+        SQLiteStatement insert = database.compileStatement(INSERT_HELD_MESSAGE);
+        database.beginTransaction();
+        try {
+            for (HeldDropMessage heldMessage : heldMessages) {
+                insert.bindString(1, heldMessage.senderKeyId);
+                insert.bindBlob(2, heldMessage.cipherMessage);
+                insert.bindString(3, hash(heldMessage.cipherMessage));
+                insert.executeInsert();
+            }
+            database.execSQL(DELETE_OLD_HELD_MESSAGES);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+            insert.close();
+        }
+    }
+
+    /**
+     * @return key identifiers of the senders of all held messages
+     */
+    public Set<String> getHeldMessageSenders() {
+        Set<String> senders = new HashSet<>();
+        Cursor cursor = getReadableDatabase().query(true, TABLE_HELD_MESSAGES,
+                new String[]{COL_HELD_SENDER}, null, null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                senders.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return senders;
+    }
+
+    /**
+     * @return held messages of the given sender, oldest first
+     */
+    public List<HeldDropMessage> getHeldMessages(String senderKeyId) {
+        List<HeldDropMessage> heldMessages = new ArrayList<>();
+        Cursor cursor = getReadableDatabase().query(TABLE_HELD_MESSAGES,
+                new String[]{COL_HELD_MESSAGE}, COL_HELD_SENDER + "=?", new String[]{senderKeyId},
+                null, null, COL_HELD_ID);
+        try {
+            while (cursor.moveToNext()) {
+                heldMessages.add(new HeldDropMessage(senderKeyId, cursor.getBlob(0)));
+            }
+        } finally {
+            cursor.close();
+        }
+        return heldMessages;
+    }
 
-        database.replace(TABLE_NAME_LOAD, null, values);
+    public int deleteHeldMessages(String senderKeyId) {
+        return getWritableDatabase().delete(TABLE_HELD_MESSAGES, COL_HELD_SENDER + "=?",
+                new String[]{senderKeyId});
     }
 }
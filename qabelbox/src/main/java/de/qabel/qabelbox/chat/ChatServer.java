@@ -1,18 +1,25 @@
 package de.qabel.qabelbox.chat;
 
+import android.support.annotation.Nullable;
 import android.util.Log;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.net.URI;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import de.qabel.core.config.Contact;
 import de.qabel.core.config.Identity;
 import de.qabel.core.drop.DropMessage;
 import de.qabel.qabelbox.QabelBoxApplication;
+import de.qabel.qabelbox.services.HeldDropMessage;
+import de.qabel.qabelbox.services.LocalQabelService;
 
 /**
  * Created by danny on 17.02.16.
@@ -26,6 +33,8 @@ public class ChatServer {
 
     private final ChatMessagesDataBase dataBase;
     private final List<ChatServerCallback> callbacks = new ArrayList<>();
+    //new messages by sender key, loaded on first use and kept up to date by this server
+    private Map<String, Integer> newMessageCounts;
 
     public ChatServer(Identity currentIdentity) {
 
@@ -48,40 +57,90 @@ public class ChatServer {
      */
 
     public Collection<DropMessage> refreshList() {
-        long lastRetrieved = dataBase.getLastRetrievedDropMessageTime();
-        Log.d(TAG, "last retrieved dropmessage time " + lastRetrieved + " / " + System.currentTimeMillis());
-        String identityKey = QabelBoxApplication.getInstance().getService().getActiveIdentity().getEcPublicKey().getReadableKeyIdentifier();
-        Collection<DropMessage> result = QabelBoxApplication.getInstance().getService().retrieveDropMessages(QabelBoxApplication.getInstance().getService().getActiveIdentity(), lastRetrieved);
-
-        if (result != null) {
-            Log.d(TAG, "new message count: " + result.size());
-            //store into db
-            for (DropMessage item : result) {
-                ChatMessageItem cms = new ChatMessageItem(item);
-                cms.receiver = identityKey;
-                cms.isNew = 1;
-                storeIntoDB(cms);
+        LocalQabelService service = QabelBoxApplication.getInstance().getService();
+        Identity identity = service.getActiveIdentity();
+        final String identityKey = identity.getEcPublicKey().getReadableKeyIdentifier();
+        final Map<URI, Long> cursors = dataBase.getDropCursors();
+        Log.d(TAG, "drop cursors " + cursors);
+        final List<DropMessage> result = new ArrayList<>();
+        result.addAll(retryHeldMessages(service, identity, identityKey));
+        // every drop is stored as soon as it answered, so a slow drop does not delay the others
+        service.retrieveDropMessages(identity, cursors, new LocalQabelService.OnDropMessagesRetrieved() {
+            @Override
+            public void onDropMessagesRetrieved(URI drop, Collection<DropMessage> messages,
+                                                Collection<HeldDropMessage> unknownSenders, long lastModified) {
+                Log.d(TAG, "new message count of " + drop + ": " + messages.size()
+                        + ", from unknown senders: " + unknownSenders.size());
+                ChatMessagesDataBase.PutResult stored = storeReceived(messages, identityKey);
+                dataBase.putHeldMessages(unknownSenders);
+                result.addAll(messages);
+                // only advance after the messages are stored, so none are lost if storing fails
+                if (lastModified > 0) {
+                    cursors.put(drop, lastModified);
+                    dataBase.setDropCursors(cursors);
+                }
+                if (stored.inserted > 0) {
+                    sendCallbacksRefreshed();
+                }
             }
+        });
+        // removes the cursors of drops the identity no longer has
+        dataBase.setDropCursors(cursors);
+        Log.d(TAG, "new drop cursors " + cursors);
 
-            //@todo replace this with header from server response.
-            //@see https://github.com/Qabel/qabel-android/issues/272
-            for (DropMessage item : result) {
-                lastRetrieved = Math.max(item.getCreationDate().getTime(), lastRetrieved);
+        sendCallbacksRefreshed();
+        return result;
+    }
+
+    /**
+     * Decrypt the held messages of senders that were added as contacts since they were received
+     * and store them like new messages
+     */
+    private Collection<DropMessage> retryHeldMessages(LocalQabelService service, Identity identity,
+                                                      String identityKey) {
+        Set<String> senders = dataBase.getHeldMessageSenders();
+        List<DropMessage> messages = new ArrayList<>();
+        if (senders.isEmpty()) {
+            return messages;
+        }
+        for (Contact contact : service.getContacts(identity).getContacts()) {
+            String sender = contact.getKeyIdentifier();
+            if (senders.contains(sender)) {
+                messages.addAll(service.decryptHeldDropMessages(dataBase.getHeldMessages(sender)));
+                dataBase.deleteHeldMessages(sender);
             }
         }
-        lastRetrieved = 0;
-        dataBase.setLastRetrivedDropMessagesTime(lastRetrieved);
-        Log.d(TAG, "new retrieved dropmessage time " + lastRetrieved);
+        if (!messages.isEmpty()) {
+            ChatMessagesDataBase.PutResult stored = storeReceived(messages, identityKey);
+            Log.d(TAG, "held messages of new contacts stored: " + stored.inserted);
+        }
+        return messages;
+    }
 
-        sendCallbacksRefreshed();
-        return result;
+    private ChatMessagesDataBase.PutResult storeReceived(Collection<DropMessage> messages, String identityKey) {
+        List<ChatMessageItem> items = new ArrayList<>(messages.size());
+        for (DropMessage item : messages) {
+            ChatMessageItem cms = new ChatMessageItem(item);
+            cms.receiver = identityKey;
+            cms.isNew = 1;
+            items.add(cms);
+        }
+        ChatMessagesDataBase.PutResult stored;
+        synchronized (this) {
+            stored = dataBase.putAll(items);
+            addNewMessageCounts(stored);
+        }
+        Log.d(TAG, "stored messages: " + stored.inserted + ", already known: " + stored.skipped);
+        return stored;
     }
 
 
     public void storeIntoDB(ChatMessageItem item) {
 
         if (item != null) {
-            dataBase.put(item);
+            synchronized (this) {
+                addNewMessageCounts(dataBase.put(item));
+            }
         }
     }
 
@@ -129,11 +188,45 @@ public class ChatServer {
 
 
     public boolean hasNewMessages(Contact c) {
-        return dataBase.getNewMessageCount(c) > 0;
+        Integer count = getNewMessageCounts().get(c.getEcPublicKey().getReadableKeyIdentifier());
+        return count != null && count > 0;
     }
 
-    public int setAllMessagesReaded(Contact c) {
-        return dataBase.setAllMessagesRead(c);
+    /**
+     * @return number of new messages by sender key, senders without new messages are missing
+     */
+    public synchronized Map<String, Integer> getNewMessageCounts() {
+        if (newMessageCounts == null) {
+            newMessageCounts = dataBase.getNewMessageCounts();
+        }
+        return new HashMap<>(newMessageCounts);
+    }
+
+    private synchronized void addNewMessageCounts(ChatMessagesDataBase.PutResult stored) {
+        // not loaded yet, the database already contains the stored messages
+        if (newMessageCounts == null) {
+            return;
+        }
+        for (Map.Entry<String, Integer> entry : stored.newMessages.entrySet()) {
+            Integer count = newMessageCounts.get(entry.getKey());
+            newMessageCounts.put(entry.getKey(), count == null ? entry.getValue() : count + entry.getValue());
+        }
+    }
+
+    public synchronized int setAllMessagesReaded(Contact c) {
+        int updated = dataBase.setAllMessagesRead(c);
+        if (newMessageCounts != null) {
+            newMessageCounts.remove(c.getEcPublicKey().getReadableKeyIdentifier());
+        }
+        return updated;
+    }
+
+    /**
+     * @param before oldest message of the previous page or null for the newest messages
+     * @return up to limit messages with the contact before the given one, oldest first
+     */
+    public ChatMessageItem[] getMessagePage(Contact c, @Nullable ChatMessageItem before, int limit) {
+        return dataBase.getPage(c.getEcPublicKey().getReadableKeyIdentifier(), before, limit);
     }
 
     public ChatMessageItem[] getAllMessages(Contact c) {
@@ -101,8 +101,9 @@ public class ShareHelper {
         final LocalQabelService mService = mainActivity.mService;
         final ChatServer cs = mainActivity.chatServer;
 
-        new AsyncTask<Void, Integer, DropMessage>() {
+        new AsyncTask<Void, Integer, Boolean>() {
             public AlertDialog waitMessage;
+            private QblDropPayloadSizeException sendError;
 
             @Override
             protected void onPreExecute() {
@@ -110,42 +111,51 @@ public class ShareHelper {
             }
 
             @Override
-            protected DropMessage doInBackground(Void... params) {
+            protected Boolean doInBackground(Void... params) {
 
+                DropMessage dm;
                 try {
                     BoxExternalReference boxExternalReference = nav.createFileMetadata(mService.getActiveIdentity().getEcPublicKey(), boxObject);
                     nav.commit();
-                    return cs.getShareDropMessage(boxExternalReference.name, boxExternalReference.url, Hex.toHexString(boxExternalReference.key));
+                    dm = cs.getShareDropMessage(boxExternalReference.name, boxExternalReference.url, Hex.toHexString(boxExternalReference.key));
                 } catch (QblStorageException e) {
                     e.printStackTrace();
+                    return false;
                 }
-                return null;
+                try {
+                    mService.sendDropMessage(dm, contact, mService.getActiveIdentity(), new LocalQabelService.OnSendDropMessageResult() {
+                        @Override
+                        public void onSendDropResult(Map<DropURL, Boolean> deliveryStatus) {
+                            if (deliveryStatus.containsValue(true)) {
+                                return;
+                            }
+                            mainActivity.runOnUiThread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    Toast.makeText(mainActivity, R.string.message_chat_message_not_sended, Toast.LENGTH_SHORT).show();
+                                }
+                            });
+                        }
+                    });
+                } catch (QblDropPayloadSizeException e) {
+                    Log.e(TAG, "cant send share", e);
+                    sendError = e;
+                    return false;
+                }
+                // queued in the outbox, unreachable drops get the share later
+                ChatMessageItem message = new ChatMessageItem(mService.getActiveIdentity(), contact.getEcPublicKey().getReadableKeyIdentifier(), dm.getDropPayload(), dm.getDropPayloadType());
+                cs.storeIntoDB(message);
+                return true;
             }
 
             @Override
-            protected void onPostExecute(final DropMessage dm) {
-
-                if (dm != null) {
-                    try {
-                        mService.sendDropMessage(dm, contact, mService.getActiveIdentity(), new LocalQabelService.OnSendDropMessageResult() {
-                            @Override
-                            public void onSendDropResult(Map<DropURL, Boolean> deliveryStatus) {
-                                ChatMessageItem message = new ChatMessageItem(mainActivity.mService.getActiveIdentity(), contact.getEcPublicKey().getReadableKeyIdentifier(), dm.getDropPayload(), dm.getDropPayloadType());
-                                cs.storeIntoDB(message);
-                                mainActivity.filesFragment.refresh();
-                                mainActivity.runOnUiThread(new Runnable() {
-                                    @Override
-                                    public void run() {
-                                        Toast.makeText(mainActivity, R.string.messsage_file_shared, Toast.LENGTH_SHORT).show();
-                                    }
-                                });
+            protected void onPostExecute(Boolean shared) {
 
-                            }
-                        });
-                    } catch (QblDropPayloadSizeException e) {
-                        Log.e(TAG, "cant send share", e);
-                        UIHelper.showDialogMessage(mainActivity, R.string.dialog_headline_warning, R.string.share_error_on_sending, e);
-                    }
+                if (shared) {
+                    mainActivity.filesFragment.refresh();
+                    Toast.makeText(mainActivity, R.string.messsage_file_shared, Toast.LENGTH_SHORT).show();
+                } else if (sendError != null) {
+                    UIHelper.showDialogMessage(mainActivity, R.string.dialog_headline_warning, R.string.share_error_on_sending, sendError);
                 } else {
                     UIHelper.showDialogMessage(mainActivity, R.string.dialog_headline_warning, R.string.share_error_on_sending);
                 }
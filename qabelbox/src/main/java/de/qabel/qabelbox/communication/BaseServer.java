@@ -9,6 +9,7 @@ import org.json.JSONObject;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
 
 import de.qabel.qabelbox.communication.callbacks.RequestCallback;
@@ -26,7 +27,7 @@ public class BaseServer {
     URLs urls;
 
     private ConnectivityManager connectivityManager;
-    private List<RequestAction> requestActionQueue = new LinkedList<>();
+    private List<RequestAction> requestActionQueue = new CopyOnWriteArrayList<>();
 
     /**
      * create new instance of http client and set timeouts
@@ -104,6 +105,15 @@ public class BaseServer {
         requestActionQueue.add(requestAction);
     }
 
+    /**
+     * unregister the connectivity receiver. the server must not be used afterwards.
+     */
+    public void shutdown() {
+
+        connectivityManager.onDestroy();
+        requestActionQueue.clear();
+    }
+
     /**
      * add header to builder
      *
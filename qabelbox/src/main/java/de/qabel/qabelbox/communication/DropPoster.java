@@ -0,0 +1,64 @@
+package de.qabel.qabelbox.communication;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import de.qabel.core.http.HTTPResult;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+
+/**
+ * Sends drop messages like {@link de.qabel.core.http.DropHTTP#send(URI, byte[])} but with the
+ * timeouts of {@link DropReceiver}, so a stalled drop server cannot hold the sending thread
+ * forever. The client reuses connections to the same drop server.
+ */
+public class DropPoster {
+
+    private static final String TAG = "DropPoster";
+    private static final MediaType OCTET_STREAM = MediaType.parse("application/octet-stream");
+
+    private final OkHttpClient client;
+
+    public DropPoster() {
+
+        OkHttpClient.Builder builder = new OkHttpClient.Builder();
+        builder.connectTimeout(DropReceiver.CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        builder.readTimeout(DropReceiver.READ_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        builder.writeTimeout(DropReceiver.READ_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        client = builder.build();
+    }
+
+    /**
+     * Send an encrypted message to a drop
+     *
+     * @return result with the response code, 0 if the server could not be reached
+     */
+    public HTTPResult<?> send(URI uri, byte[] message) {
+
+        HTTPResult<?> result = new HTTPResult<>();
+        try {
+            Request request = new Request.Builder()
+                    .url(uri.toString())
+                    .header("Authorization", "Client Qabel")
+                    .post(RequestBody.create(OCTET_STREAM, message))
+                    .build();
+            Response response = client.newCall(request).execute();
+            try {
+                result.setResponseCode(response.code());
+                result.setOk(response.code() == 200);
+            } finally {
+                response.body().close();
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            Log.w(TAG, "Could not send message to " + uri, e);
+            result.setOk(false);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,105 @@
+package de.qabel.qabelbox.communication;
+
+import android.util.Log;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.james.mime4j.MimeException;
+import org.apache.james.mime4j.stream.EntityState;
+import org.apache.james.mime4j.stream.MimeTokenStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Receives drop messages like {@link de.qabel.core.http.DropHTTP} but with connect and read
+ * timeouts, so an unresponsive drop server cannot block the caller forever. The Last-Modified
+ * header of the response is kept to continue from there with the next request.
+ */
+public class DropReceiver {
+
+    private static final String TAG = "DropReceiver";
+    public static final int CONNECT_TIMEOUT_SECONDS = 10;
+    public static final int READ_TIMEOUT_SECONDS = 15;
+
+    private final OkHttpClient client;
+
+    public DropReceiver() {
+
+        OkHttpClient.Builder builder = new OkHttpClient.Builder();
+        builder.connectTimeout(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        builder.readTimeout(READ_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        client = builder.build();
+    }
+
+    /**
+     * Receive all messages of a drop newer than the given date
+     *
+     * @param uri       drop to receive from
+     * @param sinceDate timestamp in ms sent as If-Modified-Since, 0 for all messages
+     * @return result that is ok with the messages if the server answered with 200
+     */
+    public DropResult receiveMessages(URI uri, long sinceDate) {
+
+        DropResult result = new DropResult();
+        Collection<byte[]> messages = new ArrayList<>();
+        try {
+            Request.Builder builder = new Request.Builder().url(uri.toString()).get();
+            if (sinceDate > 0) {
+                builder.header("If-Modified-Since", formatHttpDate(sinceDate));
+            }
+            Response response = client.newCall(builder.build()).execute();
+            try {
+                result.setResponseCode(response.code());
+                result.setOk(response.code() == 200);
+                if (result.isOk()) {
+                    readMessages(response, messages);
+                    Date lastModified = response.headers().getDate("Last-Modified");
+                    if (lastModified != null) {
+                        result.setLastModified(lastModified.getTime());
+                    }
+                }
+            } finally {
+                response.body().close();
+            }
+        } catch (IOException | MimeException | IllegalArgumentException e) {
+            Log.w(TAG, "Could not receive messages from " + uri, e);
+            result.setOk(false);
+            messages.clear();
+        }
+        result.setData(messages);
+        return result;
+    }
+
+    private static void readMessages(Response response, Collection<byte[]> messages)
+            throws IOException, MimeException {
+
+        MimeTokenStream stream = new MimeTokenStream();
+        stream.parseHeadless(response.body().byteStream(), response.header("Content-Type"));
+        for (EntityState state = stream.getState(); state != EntityState.T_END_OF_STREAM;
+             state = stream.next()) {
+            if (state == EntityState.T_BODY) {
+                InputStream body = stream.getInputStream();
+                messages.add(IOUtils.toByteArray(body));
+            }
+        }
+    }
+
+    static String formatHttpDate(long date) {
+
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(date));
+    }
+}
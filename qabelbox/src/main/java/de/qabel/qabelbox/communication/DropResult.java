@@ -0,0 +1,26 @@
+package de.qabel.qabelbox.communication;
+
+import java.util.Collection;
+
+import de.qabel.core.http.HTTPResult;
+
+/**
+ * Messages of a drop together with the Last-Modified time reported by the drop server
+ */
+public class DropResult extends HTTPResult<Collection<byte[]>> {
+
+    private long lastModified;
+
+    /**
+     * @return Last-Modified time of the drop in ms as reported by the server, 0 if unknown
+     */
+    public long getLastModified() {
+
+        return lastModified;
+    }
+
+    public void setLastModified(long lastModified) {
+
+        this.lastModified = lastModified;
+    }
+}
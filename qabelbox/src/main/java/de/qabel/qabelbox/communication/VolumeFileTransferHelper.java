@@ -35,7 +35,14 @@ public class VolumeFileTransferHelper {
 
     public static Uri getUri(BoxObject boxObject, BoxVolume boxVolume, BoxNavigation boxNavigation) {
 
-        String path = boxNavigation.getPath(boxObject);
+        return getUri(boxNavigation.getPath(boxObject), boxVolume);
+    }
+
+    /**
+     * @param path absolute path of a file or folder of the volume
+     */
+    public static Uri getUri(String path, BoxVolume boxVolume) {
+
         String documentId = boxVolume.getDocumentId(path);
         return DocumentsContract.buildDocumentUri(
                 BoxProvider.AUTHORITY, documentId);
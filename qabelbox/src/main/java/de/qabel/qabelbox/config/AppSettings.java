@@ -0,0 +1,55 @@
+package de.qabel.qabelbox.config;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import de.qabel.qabelbox.R;
+
+/**
+ * Options the user changes on the settings screen.
+ * <p>
+ * The settings screen writes them through its preference XML, this class only reads them, so the
+ * storage and service layers do not depend on the settings fragment.
+ */
+public class AppSettings {
+
+    public static final String APP_PREF_NAME = "appsettings";
+
+    private final Context context;
+    private final SharedPreferences settings;
+
+    public AppSettings(Context context) {
+
+        this.context = context;
+        settings = context.getSharedPreferences(APP_PREF_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @return true if new files should be uploaded in the segmented block format
+     */
+    public boolean isSegmentedUploadsEnabled() {
+
+        return settings.getBoolean(context.getString(R.string.settings_key_segmented_uploads_enabled), false);
+    }
+
+    /**
+     * @return true if the content of text files should be indexed and searched
+     */
+    public boolean isContentSearchEnabled() {
+
+        return settings.getBoolean(context.getString(R.string.settings_key_content_search_enabled), false);
+    }
+
+    /**
+     * The preferences only keep a weak reference, the caller has to hold on to the listener.
+     */
+    public void registerListener(SharedPreferences.OnSharedPreferenceChangeListener listener) {
+
+        settings.registerOnSharedPreferenceChangeListener(listener);
+    }
+
+    public void unregisterListener(SharedPreferences.OnSharedPreferenceChangeListener listener) {
+
+        settings.unregisterOnSharedPreferenceChangeListener(listener);
+    }
+}
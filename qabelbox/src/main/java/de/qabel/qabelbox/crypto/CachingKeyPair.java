@@ -0,0 +1,55 @@
+package de.qabel.qabelbox.crypto;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+import de.qabel.core.config.Contact;
+import de.qabel.core.config.Identity;
+import de.qabel.core.crypto.QblECKeyPair;
+import de.qabel.core.crypto.QblECPublicKey;
+
+/**
+ * Key pair that takes the shared secrets with known contacts from a {@link SharedSecretCache}.
+ * <p>
+ * Agreements with all other keys, like the ephemeral key of a drop message, are computed every
+ * time and never cached.
+ */
+public class CachingKeyPair extends QblECKeyPair {
+
+    private final transient QblECKeyPair keyPair;
+    private final transient SharedSecretCache cache;
+    private final transient Set<QblECPublicKey> peers = new HashSet<>();
+
+    public CachingKeyPair(QblECKeyPair keyPair, Collection<Contact> contacts, SharedSecretCache cache) {
+
+        super(keyPair.getPrivateKey());
+        this.keyPair = keyPair;
+        this.cache = cache;
+        for (Contact contact : contacts) {
+            peers.add(contact.getEcPublicKey());
+        }
+    }
+
+    @Override
+    public byte[] ECDH(QblECPublicKey pubKey) {
+
+        if (cache != null && keyPair != null && peers.contains(pubKey)) {
+            return cache.get(keyPair, pubKey);
+        }
+        return super.ECDH(pubKey);
+    }
+
+    /**
+     * Copy of the identity for encrypting and decrypting drop messages with the given contacts.
+     * The copy must not be persisted.
+     */
+    public static Identity withCachedSecrets(Identity identity, Collection<Contact> contacts,
+                                             SharedSecretCache cache) {
+
+        Identity copy = new Identity(identity.getAlias(), identity.getDropUrls(),
+                new CachingKeyPair(identity.getPrimaryKeyPair(), contacts, cache));
+        copy.setPrefixes(identity.getPrefixes());
+        return copy;
+    }
+}
@@ -0,0 +1,88 @@
+package de.qabel.qabelbox.crypto;
+
+import org.spongycastle.util.encoders.Hex;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import de.qabel.core.crypto.QblECKeyPair;
+import de.qabel.core.crypto.QblECPublicKey;
+
+/**
+ * Bounded cache of ECDH shared secrets between own key pairs and the static keys of contacts.
+ * <p>
+ * Drop messages are encrypted with the static key of the sender and the recipient in addition
+ * to an ephemeral key, so the static part is the same for every message between two parties.
+ * The least recently used secret is evicted once the capacity is reached. Evicted secrets are
+ * overwritten with zeros, callers only get copies.
+ */
+public class SharedSecretCache {
+
+    public static final int DEFAULT_CAPACITY = 256;
+
+    private final Map<String, byte[]> secrets;
+
+    public SharedSecretCache() {
+
+        this(DEFAULT_CAPACITY);
+    }
+
+    public SharedSecretCache(final int capacity) {
+
+        secrets = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+
+                if (size() > capacity) {
+                    Arrays.fill(eldest.getValue(), (byte) 0);
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Get the shared secret of both keys, computing it on a miss
+     *
+     * @param keyPair own key pair
+     * @param peer    static public key of the other party
+     * @return copy of the shared secret
+     */
+    public byte[] get(QblECKeyPair keyPair, QblECPublicKey peer) {
+
+        String key = Hex.toHexString(keyPair.getPub().getKey()) + ':' + Hex.toHexString(peer.getKey());
+        synchronized (this) {
+            byte[] secret = secrets.get(key);
+            if (secret != null) {
+                return secret.clone();
+            }
+        }
+        // computed outside of the lock, a concurrent miss for the same pair only wastes one agreement
+        byte[] secret = keyPair.ECDH(peer);
+        synchronized (this) {
+            byte[] previous = secrets.put(key, secret.clone());
+            if (previous != null) {
+                Arrays.fill(previous, (byte) 0);
+            }
+        }
+        return secret;
+    }
+
+    /**
+     * Overwrite and remove all secrets
+     */
+    public synchronized void clear() {
+
+        for (byte[] secret : secrets.values()) {
+            Arrays.fill(secret, (byte) 0);
+        }
+        secrets.clear();
+    }
+
+    public synchronized int size() {
+
+        return secrets.size();
+    }
+}
@@ -1,5 +1,6 @@
 package de.qabel.qabelbox.fragments;
 
+import android.app.Activity;
 import android.app.AlertDialog;
 import android.os.AsyncTask;
 import android.os.Bundle;
@@ -11,6 +12,7 @@ import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.Button;
 import android.widget.EditText;
 import android.widget.ListView;
@@ -18,8 +20,9 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Iterator;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
@@ -52,6 +55,7 @@ import de.qabel.qabelbox.storage.BoxVolume;
 public class ContactChatFragment extends ContactBaseFragment {
 
     private static final String ARG_IDENTITY = "Identity";
+    private static final int PAGE_SIZE = 50;
     private final String TAG = this.getClass().getSimpleName();
 
     private Contact contact;
@@ -63,6 +67,9 @@ public class ContactChatFragment extends ContactBaseFragment {
     private EditText etText;
     private ChatServer chatServer;
     private boolean isSyncing = false;
+    private ChatMessageAdapter chatMessageAdapter;
+    private boolean hasOlderMessages = false;
+    private boolean isLoadingOlderMessages = false;
 
     public static ContactChatFragment newInstance(Contact contact) {
 
@@ -117,6 +124,20 @@ public class ContactChatFragment extends ContactBaseFragment {
             }
         });
         etText.setText("");
+        contactListRecyclerView.setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+
+                if (firstVisibleItem == 0 && totalItemCount > 0) {
+                    loadOlderMessages();
+                }
+            }
+        });
 
         refreshMessages();
         refreshMessagesAsync();
@@ -124,57 +145,72 @@ public class ContactChatFragment extends ContactBaseFragment {
         return view;
     }
 
-    private void sendMessage(String text) {
-        try {
-            final DropMessage dropMessage = chatServer.getTextDropMessage(text);
-            final Identity identity = QabelBoxApplication.getInstance().getService().getActiveIdentity();
-            QabelBoxApplication.getInstance().getService().sendDropMessage(dropMessage, contact, identity, new LocalQabelService.OnSendDropMessageResult() {
-                @Override
-                public void onSendDropResult(Map<DropURL, Boolean> deliveryStatus) {
-                    boolean sended = false;
-                    Log.v(TAG, "delivery status: " + deliveryStatus);
-                    if (deliveryStatus != null) {
-                        Iterator it = deliveryStatus.entrySet().iterator();
-                        while (it.hasNext()) {
-                            Map.Entry pair = (Map.Entry) it.next();
-                            if ((Boolean) pair.getValue()) {
-                                sended = true;
-                            }
-                            Log.d(TAG, "message send result: " + pair.toString() + " " + pair.getValue());
-                        }
-
-                        Log.d(TAG, "sended: " + sended);
-                        if (sended) {
-                            ChatMessageItem newMessage = new ChatMessageItem(identity, contact.getEcPublicKey().getReadableKeyIdentifier(), dropMessage.getDropPayload(), dropMessage.getDropPayloadType());
-
-                            chatServer.storeIntoDB(newMessage);
-                            messages.add(newMessage);
-
-                            getActivity().runOnUiThread(new Runnable() {
-                                @Override
-                                public void run() {
-                                    etText.setText("");
-                                    fillAdapter(messages);
-                                }
-                            });
-                        }
-                    }
-                    if (!sended) {
-                        getActivity().runOnUiThread(new Runnable() {
-                            @Override
-                            public void run() {
-                                Toast.makeText(getActivity(), R.string.message_chat_message_not_sended, Toast.LENGTH_SHORT).show();
-                            }
-                        });
+    private void sendMessage(final String text) {
+        if (contact.getDropUrls().isEmpty()) {
+            Toast.makeText(getActivity(), R.string.message_chat_message_not_sended, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        etText.setText("");
+        // the outbox and the history are written in the background, one message after another
+        new AsyncTask<Void, Void, ChatMessageItem>() {
+            @Override
+            protected ChatMessageItem doInBackground(Void... params) {
+                try {
+                    return storeAndSend(text);
+                } catch (QblDropPayloadSizeException e) {
+                    Log.e(TAG, "cant send message", e);
+                    return null;
+                }
+            }
 
+            @Override
+            protected void onPostExecute(ChatMessageItem newMessage) {
+                if (!isAdded()) {
+                    return;
+                }
+                if (newMessage == null) {
+                    Toast.makeText(getActivity(), R.string.cant_send_message, Toast.LENGTH_SHORT).show();
+                    if (etText.getText().length() == 0) {
+                        etText.setText(text);
                     }
+                    return;
+                }
+                messages.add(newMessage);
+                chatMessageAdapter.notifyDataSetChanged();
+            }
+        }.executeOnExecutor(AsyncTask.SERIAL_EXECUTOR);
+    }
 
+    /**
+     * Queue the message in the outbox and store it in the history, blocks on the databases
+     */
+    private ChatMessageItem storeAndSend(String text) throws QblDropPayloadSizeException {
+        final DropMessage dropMessage = chatServer.getTextDropMessage(text);
+        final Identity identity = QabelBoxApplication.getInstance().getService().getActiveIdentity();
+        QabelBoxApplication.getInstance().getService().sendDropMessage(dropMessage, contact, identity, new LocalQabelService.OnSendDropMessageResult() {
+            @Override
+            public void onSendDropResult(Map<DropURL, Boolean> deliveryStatus) {
+                Log.d(TAG, "delivery status: " + deliveryStatus);
+                if (deliveryStatus.containsValue(true)) {
+                    return;
                 }
-            });
-        } catch (QblDropPayloadSizeException e) {
-            Toast.makeText(getActivity(), R.string.cant_send_message, Toast.LENGTH_SHORT).show();
-            Log.e(TAG, "cant send message", e);
-        }
+                // every drop rejected the message, unreachable drops are retried instead
+                final Activity activity = getActivity();
+                if (activity != null) {
+                    activity.runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Toast.makeText(activity, R.string.message_chat_message_not_sended, Toast.LENGTH_SHORT).show();
+                        }
+                    });
+                }
+            }
+        });
+        // the message is in the outbox now and will be delivered, also while offline, so it
+        // belongs to the history before the drops accepted it
+        ChatMessageItem newMessage = new ChatMessageItem(identity, contact.getEcPublicKey().getReadableKeyIdentifier(), dropMessage.getDropPayload(), dropMessage.getDropPayloadType());
+        chatServer.storeIntoDB(newMessage);
+        return newMessage;
     }
 
 
@@ -198,27 +234,62 @@ public class ContactChatFragment extends ContactBaseFragment {
     }
 
     /**
-     * Get the messages from the ChatServer and refreshes the local list and view.
+     * Get the newest messages from the ChatServer and refreshes the local list and view.
+     * Older messages are loaded page by page when the list is scrolled to the top.
      */
     private void refreshMessages() {
-        ChatMessageItem[] items = chatServer.getAllMessages(contact);
+        ChatMessageItem[] items = chatServer.getMessagePage(contact, null, PAGE_SIZE);
         messages.clear();
-        for (ChatMessageItem item : items) {
-            Log.v(TAG, "add message " + item.drop_payload);
-            messages.add(item);
-        }
+        Collections.addAll(messages, items);
+        hasOlderMessages = items.length == PAGE_SIZE;
         chatServer.setAllMessagesReaded(contact);
         fillAdapter(messages);
     }
 
+    /**
+     * Load the page before the oldest shown message and keep the visible messages in place.
+     */
+    private void loadOlderMessages() {
+        if (!hasOlderMessages || isLoadingOlderMessages || messages.isEmpty()) {
+            return;
+        }
+        isLoadingOlderMessages = true;
+        final ChatMessageItem oldest = messages.get(0);
+        new AsyncTask<Void, Void, ChatMessageItem[]>() {
+            @Override
+            protected ChatMessageItem[] doInBackground(Void... params) {
+                return chatServer.getMessagePage(contact, oldest, PAGE_SIZE);
+            }
+
+            @Override
+            protected void onPostExecute(ChatMessageItem[] items) {
+                isLoadingOlderMessages = false;
+                // the list was refreshed while loading, the page does not fit anymore
+                if (!isAdded() || messages.isEmpty() || messages.get(0) != oldest) {
+                    return;
+                }
+                hasOlderMessages = items.length == PAGE_SIZE;
+                if (items.length == 0) {
+                    return;
+                }
+                int firstVisible = contactListRecyclerView.getFirstVisiblePosition();
+                View firstView = contactListRecyclerView.getChildAt(0);
+                int top = firstView == null ? 0 : firstView.getTop();
+                messages.addAll(0, Arrays.asList(items));
+                chatMessageAdapter.notifyDataSetChanged();
+                contactListRecyclerView.setSelectionFromTop(firstVisible + items.length, top);
+            }
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
 
-    private void fillAdapter(final ArrayList<ChatMessageItem> data) {
+    private void fillAdapter(final List<ChatMessageItem> data) {
 
-        ChatMessageAdapter contactListAdapter = new ChatMessageAdapter(data, contact);
-        contactListAdapter.setEmptyView(emptyView);
-        contactListRecyclerView.setAdapter(contactListAdapter);
-        contactListAdapter.setOnItemClickListener(getOnItemClickListener());
-        contactListAdapter.notifyDataSetChanged();
+        chatMessageAdapter = new ChatMessageAdapter(data, contact);
+        chatMessageAdapter.setEmptyView(emptyView);
+        contactListRecyclerView.setAdapter(chatMessageAdapter);
+        chatMessageAdapter.setOnItemClickListener(getOnItemClickListener());
+        chatMessageAdapter.notifyDataSetChanged();
     }
 
     @NonNull
@@ -453,6 +524,18 @@ public class ContactChatFragment extends ContactBaseFragment {
         @Override
         public void onRefreshed() {
 
+            // called from the refresh thread once the messages of a drop are stored
+            Activity activity = getActivity();
+            if (activity != null) {
+                activity.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (isAdded()) {
+                            refreshMessages();
+                        }
+                    }
+                });
+            }
         }
     };
 }
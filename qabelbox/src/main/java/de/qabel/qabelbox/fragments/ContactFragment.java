@@ -33,6 +33,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Map;
 
 import de.qabel.core.config.Contact;
 import de.qabel.core.config.Contacts;
@@ -267,9 +268,11 @@ public class ContactFragment extends BaseFragment {
         if (contactListRecyclerView != null) {
             Contacts contacts = QabelBoxApplication.getInstance().getService().getContacts();
             final int count = contacts.getContacts().size();
+            Map<String, Integer> newMessageCounts = chatServer.getNewMessageCounts();
             ArrayList<ContactAdapterItem> items = new ArrayList<>();
             for (Contact c : contacts.getContacts()) {
-                items.add(new ContactAdapterItem(c, chatServer.hasNewMessages(c)));
+                boolean hasNewMessages = newMessageCounts.containsKey(c.getEcPublicKey().getReadableKeyIdentifier());
+                items.add(new ContactAdapterItem(c, hasNewMessages));
             }
             contactListAdapter = new ContactsAdapter(items);
             setClickListener();
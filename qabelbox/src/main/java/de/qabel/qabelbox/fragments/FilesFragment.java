@@ -14,6 +14,8 @@ import android.support.v4.widget.SwipeRefreshLayout;
 import android.support.v7.app.ActionBar;
 import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.util.Log;
 import android.view.KeyEvent;
 import android.view.LayoutInflater;
@@ -30,11 +32,17 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
 import de.qabel.qabelbox.QabelBoxApplication;
 import de.qabel.qabelbox.R;
 import de.qabel.qabelbox.adapter.FilesAdapter;
+import de.qabel.qabelbox.config.AppSettings;
 import de.qabel.qabelbox.exceptions.QblStorageException;
 import de.qabel.qabelbox.helper.UIHelper;
 import de.qabel.qabelbox.providers.DocumentIdParser;
@@ -47,7 +55,10 @@ import de.qabel.qabelbox.storage.BoxNavigation;
 import de.qabel.qabelbox.storage.BoxObject;
 import de.qabel.qabelbox.storage.BoxUploadingFile;
 import de.qabel.qabelbox.storage.BoxVolume;
+import de.qabel.qabelbox.storage.PathMapping;
+import de.qabel.qabelbox.storage.SearchSession;
 import de.qabel.qabelbox.storage.StorageSearch;
+import de.qabel.qabelbox.storage.VolumeIndex;
 
 public class FilesFragment extends BaseFragment {
 
@@ -68,6 +79,13 @@ public class FilesFragment extends BaseFragment {
     protected BoxVolume mBoxVolume;
     private AsyncTask<String, Void, StorageSearch> searchTask;
     private StorageSearch mCachedStorageSearch;
+    private SearchSession mSearchSession;
+    private ExecutorService mSearchExecutor;
+    // crawls the volume while the live search answers from an incomplete index
+    private ExecutorService mLiveCrawlExecutor;
+    private FilesAdapter mLiveSearchAdapter;
+    // paths of the objects the live search currently searches in
+    private volatile PathMapping mLiveSearchPaths;
     private DocumentIdParser documentIdParser;
     View mEmptyView;
     View mLoadingView;
@@ -388,6 +406,7 @@ public class FilesFragment extends BaseFragment {
             }
         });
 
+        startLiveSearch();
         edtSeach.requestFocus();
 
         //open keyboard
@@ -413,12 +432,172 @@ public class FilesFragment extends BaseFragment {
         imm.hideSoftInputFromWindow(edtSeach.getWindowToken(), 0);
 
         imm.toggleSoftInput(InputMethodManager.SHOW_FORCED, InputMethodManager.RESULT_HIDDEN);
+        stopLiveSearch();
         mSearchAction.setIcon(R.drawable.magnify_white);
         action.setTitle(getTitle());
         isSearchOpened = false;
         mActivity.fab.show();
     }
 
+    /**
+     * show matching files in the list while the search keyword is typed. longer keywords narrow
+     * the previous results, results of outdated keywords are dropped.
+     */
+    private void startLiveSearch() {
+
+        mLiveSearchAdapter = new FilesAdapter(new ArrayList<BoxObject>());
+        mLiveSearchAdapter.setOnItemClickListener(new FilesAdapter.OnItemClickListener() {
+            @Override
+            public void onItemClick(View view, int position) {
+
+                BoxObject boxObject = mLiveSearchAdapter.get(position);
+                PathMapping paths = mLiveSearchPaths;
+                if (boxObject instanceof BoxFile && paths != null) {
+                    mActivity.showFile(boxObject, paths);
+                }
+            }
+
+            @Override
+            public void onItemLockClick(View view, int position) {
+
+            }
+        });
+        mSearchExecutor = Executors.newSingleThreadExecutor();
+        mLiveCrawlExecutor = Executors.newSingleThreadExecutor();
+        mSearchSession = new SearchSession(mSearchExecutor, new SearchSession.Listener() {
+            @Override
+            public void onResults(final int generation, final List<BoxObject> batch, final boolean first, boolean last) {
+
+                mActivity.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+
+                        if (mSearchSession == null || !mSearchSession.isCurrent(generation)) {
+                            return;
+                        }
+                        if (first) {
+                            mLiveSearchAdapter.clear();
+                        }
+                        // keep the ranked order of the session
+                        for (BoxObject boxObject : batch) {
+                            mLiveSearchAdapter.add(boxObject);
+                        }
+                        mLiveSearchAdapter.notifyDataSetChanged();
+                    }
+                });
+            }
+        });
+        final SearchSession searchSession = mSearchSession;
+        final StorageSearch cachedSearch = mCachedStorageSearch;
+        final ExecutorService crawlExecutor = mLiveCrawlExecutor;
+        searchSession.setSource(new SearchSession.Source() {
+            @Override
+            public List<BoxObject> load() throws QblStorageException {
+
+                StorageSearch storageSearch = cachedSearch;
+                if (storageSearch == null) {
+                    VolumeIndex index = mBoxVolume.getIndex();
+                    if (!index.isComplete()) {
+                        // answer from the folders indexed so far, the crawl replaces the source
+                        crawlForLiveSearch(searchSession, crawlExecutor);
+                    }
+                    storageSearch = new StorageSearch(index);
+                }
+                return loadLiveSearchSource(storageSearch);
+            }
+        });
+        edtSeach.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+
+                if (mSearchSession == null) {
+                    return;
+                }
+                if (StorageSearch.isValidSearchTerm(s.toString())) {
+                    mSearchSession.update(s.toString());
+                    if (filesListRecyclerView.getAdapter() != mLiveSearchAdapter) {
+                        filesListRecyclerView.setAdapter(mLiveSearchAdapter);
+                    }
+                } else {
+                    mSearchSession.cancel();
+                    mLiveSearchAdapter.clear();
+                    filesListRecyclerView.setAdapter(filesAdapter);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return files of the search, their paths are used to open the hits
+     */
+    private List<BoxObject> loadLiveSearchSource(StorageSearch storageSearch) {
+
+        mLiveSearchPaths = storageSearch.getPathMapping();
+        return new ArrayList<BoxObject>(StorageSearch.toBoxFiles(storageSearch.getResults()));
+    }
+
+    /**
+     * Crawl the volume in the background and search the complete listing once it is loaded.
+     * The session keeps answering from the incomplete index meanwhile.
+     */
+    private void crawlForLiveSearch(final SearchSession searchSession, ExecutorService crawlExecutor) {
+
+        try {
+            crawlExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+
+                    final StorageSearch crawled;
+                    try {
+                        crawled = new StorageSearch(mBoxVolume.navigate());
+                    } catch (QblStorageException e) {
+                        Log.w(TAG, "Could not crawl the volume for the live search", e);
+                        return;
+                    }
+                    try {
+                        searchSession.setSource(new SearchSession.Source() {
+                            @Override
+                            public List<BoxObject> load() {
+
+                                return loadLiveSearchSource(crawled);
+                            }
+                        });
+                    } catch (RejectedExecutionException e) {
+                        // the live search was closed during the crawl
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // the live search was closed before the source was loaded
+        }
+    }
+
+    private void stopLiveSearch() {
+
+        if (mSearchSession == null) {
+            return;
+        }
+        mSearchSession.cancel();
+        mSearchSession = null;
+        mSearchExecutor.shutdownNow();
+        mSearchExecutor = null;
+        mLiveCrawlExecutor.shutdownNow();
+        mLiveCrawlExecutor = null;
+        mLiveSearchAdapter = null;
+        mLiveSearchPaths = null;
+        filesListRecyclerView.setAdapter(filesAdapter);
+    }
+
     @Override
     public void onPause() {
 
@@ -439,68 +618,83 @@ public class FilesFragment extends BaseFragment {
             cancelBrowseToTask();
             browseToTask = null;
         }
-        if (!areTasksPending()) {
-            searchTask = new AsyncTask<String, Void, StorageSearch>() {
+        // the latest keyword wins over a search that is still running
+        cancelSearchTask();
+        searchTask = new AsyncTask<String, Void, StorageSearch>() {
 
-                @Override
-                protected void onPreExecute() {
+            private boolean fromIndex;
+            private Set<String> contentBlocks;
 
-                    super.onPreExecute();
-                    setIsLoading(true);
-                }
+            @Override
+            protected void onPreExecute() {
 
-                @Override
-                protected void onCancelled(StorageSearch storageSearch) {
+                super.onPreExecute();
+                setIsLoading(true);
+            }
+
+            @Override
+            protected void onCancelled(StorageSearch storageSearch) {
 
+                super.onCancelled(storageSearch);
+                // a newer search may already be running
+                if (searchTask == this) {
                     setIsLoading(false);
-                    super.onCancelled(storageSearch);
                     searchTask = null;
                 }
+            }
 
-                @Override
-                protected void onPostExecute(StorageSearch storageSearch) {
-
-                    setIsLoading(false);
+            @Override
+            protected void onPostExecute(StorageSearch storageSearch) {
 
-                    //check if files found
-                    if (storageSearch == null || storageSearch.filterOnlyFiles().getResults().size() == 0) {
-                        Toast.makeText(getActivity(), R.string.no_entrys_found, Toast.LENGTH_SHORT).show();
-                        searchTask = null;
-                        return;
-                    }
-                    if (!mActivity.isFinishing() && !searchTask.isCancelled()) {
-                        boolean needRefresh = mCachedStorageSearch != null;
-                        try {
-                            mCachedStorageSearch = storageSearch.clone();
-                        } catch (CloneNotSupportedException e) {
-                            e.printStackTrace();
-                        }
+                setIsLoading(false);
 
-                        FilesSearchResultFragment fragment = FilesSearchResultFragment.newInstance(mCachedStorageSearch, searchText, needRefresh);
-                        mActivity.toggle.setDrawerIndicatorEnabled(false);
-                        getFragmentManager().beginTransaction().replace(R.id.fragment_container, fragment, FilesSearchResultFragment.TAG).addToBackStack(null).commit();
-                    }
+                //check if files found
+                if (storageSearch == null || storageSearch.filterOnlyFiles().getResults().size() == 0) {
+                    Toast.makeText(getActivity(), R.string.no_entrys_found, Toast.LENGTH_SHORT).show();
                     searchTask = null;
+                    return;
                 }
+                if (!mActivity.isFinishing() && !isCancelled()) {
+                    boolean needRefresh = mCachedStorageSearch != null || fromIndex;
+                    try {
+                        mCachedStorageSearch = storageSearch.clone();
+                    } catch (CloneNotSupportedException e) {
+                        e.printStackTrace();
+                    }
 
-                @Override
-                protected StorageSearch doInBackground(String... params) {
+                    FilesSearchResultFragment fragment = FilesSearchResultFragment.newInstance(mCachedStorageSearch, searchText, contentBlocks, needRefresh);
+                    mActivity.toggle.setDrawerIndicatorEnabled(false);
+                    getFragmentManager().beginTransaction().replace(R.id.fragment_container, fragment, FilesSearchResultFragment.TAG).addToBackStack(null).commit();
+                }
+                searchTask = null;
+            }
 
-                    try {
-                        if (mCachedStorageSearch != null && mCachedStorageSearch.getResults().size() > 0) {
-                            return mCachedStorageSearch;
-                        }
+            @Override
+            protected StorageSearch doInBackground(String... params) {
 
-                        return new StorageSearch(mBoxVolume.navigate());
-                    } catch (QblStorageException e) {
-                        e.printStackTrace();
+                try {
+                    if (new AppSettings(mActivity).isContentSearchEnabled()) {
+                        contentBlocks = mBoxVolume.getContentIndex().search(searchText);
+                    }
+                    if (mCachedStorageSearch != null && mCachedStorageSearch.getResults().size() > 0) {
+                        return mCachedStorageSearch;
+                    }
+                    VolumeIndex index = mBoxVolume.getIndex();
+                    if (index.isComplete()) {
+                        // answer from the device, the result fragment crawls for changes
+                        fromIndex = true;
+                        return new StorageSearch(index);
                     }
 
-                    return null;
+                    return new StorageSearch(mBoxVolume.navigate());
+                } catch (QblStorageException e) {
+                    e.printStackTrace();
                 }
-            };
-            searchTask.executeOnExecutor(serialExecutor);
-        }
+
+                return null;
+            }
+        };
+        searchTask.executeOnExecutor(serialExecutor);
     }
 
     private void cancelSearchTask() {
@@ -2,6 +2,7 @@ package de.qabel.qabelbox.fragments;
 
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.support.annotation.Nullable;
 import android.support.v4.widget.SwipeRefreshLayout;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -13,13 +14,16 @@ import android.view.ViewGroup;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 
 import de.qabel.qabelbox.R;
 import de.qabel.qabelbox.activities.MainActivity;
 import de.qabel.qabelbox.adapter.FilesAdapter;
 import de.qabel.qabelbox.exceptions.QblStorageException;
 import de.qabel.qabelbox.storage.BoxFile;
+import de.qabel.qabelbox.storage.BoxNavigation;
 import de.qabel.qabelbox.storage.BoxObject;
+import de.qabel.qabelbox.storage.PathMapping;
 import de.qabel.qabelbox.storage.StorageSearch;
 
 /**
@@ -29,21 +33,36 @@ public class FilesSearchResultFragment extends FilesFragment {
 
     protected static final String TAG = FilesFragment.class.getSimpleName();
     private StorageSearch mSearchResult;
+    // paths of the shown results, the results are spread over many folders
+    private PathMapping mPathMapping;
     private String mSearchText;
+    private Set<String> mContentBlocks;
     private FileSearchFilterFragment.FilterData mFilterData = new FileSearchFilterFragment.FilterData();
-    private AsyncTask<String, Void, StorageSearch> searchTask;
+    private AsyncTask<String, FolderResult, StorageSearch> searchTask;
     private boolean mNeedRefresh;
     private MenuItem mFilterItem;
 
     public static FilesSearchResultFragment newInstance(StorageSearch storageSearch, String searchText, boolean needRefresh) {
 
+        return newInstance(storageSearch, searchText, null, needRefresh);
+    }
+
+    /**
+     * @param contentBlocks blocks of the files whose content matches the search text,
+     *                      null if content search is disabled
+     */
+    public static FilesSearchResultFragment newInstance(StorageSearch storageSearch, String searchText,
+                                                        @Nullable Set<String> contentBlocks, boolean needRefresh) {
+
         FilesSearchResultFragment fragment = new FilesSearchResultFragment();
         FilesAdapter filesAdapter = new FilesAdapter(new ArrayList<BoxObject>());
         fragment.setAdapter(filesAdapter);
         fragment.mSearchResult = storageSearch.filterOnlyFiles();
+        fragment.mPathMapping = new PathMapping(storageSearch.getPathMapping());
         fragment.mSearchText = searchText;
+        fragment.mContentBlocks = contentBlocks;
         fragment.mNeedRefresh = needRefresh;
-        fragment.fillAdapter(fragment.mSearchResult.filterByName(searchText).getResults());
+        fragment.fillAdapter(fragment.filterBySearchText(fragment.mSearchResult).getResults());
 
         filesAdapter.notifyDataSetChanged();
         return fragment;
@@ -115,7 +134,7 @@ public class FilesSearchResultFragment extends FilesFragment {
 
                 final BoxObject boxObject = getFilesAdapter().get(position);
                 if (boxObject instanceof BoxFile) {
-                    mActivity.showFile(boxObject);
+                    mActivity.showFile(boxObject, mPathMapping);
                 }
             }
 
@@ -181,7 +200,9 @@ public class FilesSearchResultFragment extends FilesFragment {
         //
         showSearchSpinner(true);
 
-        searchTask = new AsyncTask<String, Void, StorageSearch>() {
+        searchTask = new AsyncTask<String, FolderResult, StorageSearch>() {
+
+            private boolean receivedPartialResult;
 
             @Override
             protected void onPreExecute() {
@@ -189,6 +210,30 @@ public class FilesSearchResultFragment extends FilesFragment {
                 super.onPreExecute();
             }
 
+            @Override
+            protected void onProgressUpdate(FolderResult... values) {
+
+                if (mActivity.isFinishing() || isCancelled()) {
+                    return;
+                }
+                if (!receivedPartialResult) {
+                    // replace the outdated results with the fresh ones as they arrive
+                    receivedPartialResult = true;
+                    filesAdapter.clear();
+                }
+                for (FolderResult folder : values) {
+                    // the same conditions as the complete results, the adapter stays sorted
+                    StorageSearch matches = filterBySearchText(StorageSearch.createStorageSearchFromList(folder.objects)
+                            .filterOnlyFiles());
+                    List<BoxObject> results = applyFilterData(matches, mFilterData).getResults();
+                    for (BoxObject boxObject : results) {
+                        mPathMapping.put(folder.path + boxObject.name, boxObject);
+                    }
+                    filesAdapter.addAllSorted(results);
+                }
+                filesAdapter.notifyDataSetChanged();
+            }
+
             @Override
             protected void onCancelled(StorageSearch storageSearch) {
 
@@ -202,7 +247,11 @@ public class FilesSearchResultFragment extends FilesFragment {
                 if (!mActivity.isFinishing() && !searchTask.isCancelled()) {
 
                     showSearchSpinner(false);
+                    if (storageSearch == null) {
+                        return;
+                    }
                     mSearchResult = storageSearch;
+                    mPathMapping = new PathMapping(storageSearch.getPathMapping());
                     mNeedRefresh = false;
                     filterData(mFilterData);
                 }
@@ -212,7 +261,15 @@ public class FilesSearchResultFragment extends FilesFragment {
             protected StorageSearch doInBackground(String... params) {
 
                 try {
-                    return new StorageSearch(((FilesFragment) getFragmentManager().findFragmentByTag(MainActivity.TAG_FILES_FRAGMENT)).getBoxVolume().navigate());
+                    BoxNavigation navigation = ((FilesFragment) getFragmentManager()
+                            .findFragmentByTag(MainActivity.TAG_FILES_FRAGMENT)).getBoxVolume().navigate();
+                    return new StorageSearch(navigation, new StorageSearch.PartialResultListener() {
+                        @Override
+                        public void onPartialResult(String path, List<BoxObject> objects) {
+
+                            publishProgress(new FolderResult(path, objects));
+                        }
+                    });
                 } catch (QblStorageException e) {
                     e.printStackTrace();
                 }
@@ -248,16 +305,7 @@ public class FilesSearchResultFragment extends FilesFragment {
 
         StorageSearch result;
         try {
-            result = mSearchResult.clone().filterByName(mSearchText);
-            if (data.mDateMin != null) {
-                result.filterByMinimumDate(data.mDateMin);
-            }
-            if (data.mDateMax != null) {
-                result.filterByMaximumDate(data.mDateMax);
-            }
-
-            result.filterByMinimumSize(data.mFileSizeMin);
-            result.filterByMaximumSize(data.mFileSizeMax);
+            result = applyFilterData(filterBySearchText(mSearchResult.clone()), data);
             fillAdapter(result.getResults());
             filesAdapter.notifyDataSetChanged();
         } catch (CloneNotSupportedException e) {
@@ -265,6 +313,49 @@ public class FilesSearchResultFragment extends FilesFragment {
         }
     }
 
+    /**
+     * Keep the files within the date and size limits of the filter
+     */
+    private static StorageSearch applyFilterData(StorageSearch search, FileSearchFilterFragment.FilterData data) {
+
+        if (data.mDateMin != null) {
+            search.filterByMinimumDate(data.mDateMin);
+        }
+        if (data.mDateMax != null) {
+            search.filterByMaximumDate(data.mDateMax);
+        }
+
+        search.filterByMinimumSize(data.mFileSizeMin);
+        search.filterByMaximumSize(data.mFileSizeMax);
+        return search;
+    }
+
+    /**
+     * Keep the files whose name or content matches the search text
+     */
+    private StorageSearch filterBySearchText(StorageSearch search) {
+
+        if (mContentBlocks == null) {
+            return search.filterByName(mSearchText);
+        }
+        return search.filterByNameOrContent(mSearchText, mContentBlocks);
+    }
+
+    /**
+     * Content of one folder reported while the volume is crawled
+     */
+    private static class FolderResult {
+
+        final String path;
+        final List<BoxObject> objects;
+
+        FolderResult(String path, List<BoxObject> objects) {
+
+            this.path = path;
+            this.objects = objects;
+        }
+    }
+
     @Override
     public boolean isFabNeeded() {
 
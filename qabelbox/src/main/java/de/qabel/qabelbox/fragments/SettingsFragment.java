@@ -1,7 +1,6 @@
 package de.qabel.qabelbox.fragments;
 
 import android.app.ActivityManager;
-import android.content.Context;
 import android.os.Build;
 import android.os.Bundle;
 import android.preference.Preference;
@@ -10,13 +9,14 @@ import android.preference.PreferenceFragment;
 import net.hockeyapp.android.FeedbackManager;
 
 import de.qabel.qabelbox.R;
+import de.qabel.qabelbox.config.AppSettings;
 
 /**
  * Created by danny on 25.01.2016.
  */
 public class SettingsFragment extends PreferenceFragment {
 
-    final public static String APP_PREF_NAME = "appsettings";
+    final public static String APP_PREF_NAME = AppSettings.APP_PREF_NAME;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -5,10 +5,11 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
+import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
 import android.database.MatrixCursor;
+import android.graphics.Point;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.CancellationSignal;
 import android.os.Handler;
@@ -20,9 +21,12 @@ import android.provider.DocumentsContract.Root;
 import android.provider.DocumentsProvider;
 import android.provider.MediaStore.Video.Media;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.v7.app.NotificationCompat;
 import android.util.Log;
+import android.util.LruCache;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 
@@ -33,27 +37,26 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URLConnection;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingDeque;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 
 import de.qabel.core.config.Identities;
 import de.qabel.core.config.Identity;
-import de.qabel.core.crypto.QblECKeyPair;
 import de.qabel.qabelbox.BuildConfig;
 import de.qabel.qabelbox.QabelBoxApplication;
 import de.qabel.qabelbox.R;
 import de.qabel.qabelbox.communication.VolumeFileTransferHelper;
+import de.qabel.qabelbox.config.AppSettings;
 import de.qabel.qabelbox.exceptions.QblStorageException;
 import de.qabel.qabelbox.exceptions.QblStorageNotFound;
 import de.qabel.qabelbox.services.LocalBroadcastConstants;
@@ -65,7 +68,9 @@ import de.qabel.qabelbox.storage.BoxNavigation;
 import de.qabel.qabelbox.storage.BoxObject;
 import de.qabel.qabelbox.storage.BoxUploadingFile;
 import de.qabel.qabelbox.storage.BoxVolume;
+import de.qabel.qabelbox.storage.ThumbnailCache;
 import de.qabel.qabelbox.storage.TransferManager;
+import de.qabel.qabelbox.storage.VolumeIndex;
 
 public class BoxProvider extends DocumentsProvider {
 
@@ -87,13 +92,25 @@ public class BoxProvider extends DocumentsProvider {
     public static final String PREFIX = "test";
 
     DocumentIdParser mDocumentIdParser;
-    private ThreadPoolExecutor mThreadPoolExecutor;
-
-    private static final int KEEP_ALIVE_TIME = 1;
-    private static final TimeUnit KEEP_ALIVE_TIME_UNIT = TimeUnit.SECONDS;
+    private ProviderScheduler mScheduler;
+    // streams are paced by the reader and must not block the listing threads
+    private ExecutorService mStreamExecutor;
+    private WriteBackQueue mWriteBackQueue;
+    private ContentIndexScheduler mContentIndexScheduler;
+
+    private static final int MAX_CACHED_FOLDER_LISTINGS = 64;
+    private static final int MAX_SEARCH_RESULTS = 100;
+    private static final int MAX_RECENT_DOCUMENTS = 64;
+    /**
+     * Mime types that readers consume sequentially. Other files are served as seekable
+     * temporary files because they are read with random access (pdf, zip, mp4 ...).
+     */
+    private static final String[] STREAMABLE_MIME_PREFIXES = {"image/", "text/", "audio/"};
 
-    private Map<String, BoxCursor> folderContentCache;
-    private String currentFolder;
+    private LruCache<String, BoxCursor> folderContentCache;
+    private BoxVolume.OnCommitListener commitListener;
+    private volatile String currentFolder;
+    private ThumbnailCache thumbnailCache;
     protected LocalQabelService mService;
 
     @Override
@@ -109,19 +126,70 @@ public class BoxProvider extends DocumentsProvider {
 
         mDocumentIdParser = new DocumentIdParser();
 
-        mThreadPoolExecutor = new ThreadPoolExecutor(
-                2,
-                2,
-                KEEP_ALIVE_TIME,
-                KEEP_ALIVE_TIME_UNIT,
-                new LinkedBlockingDeque<Runnable>());
+        mScheduler = new ProviderScheduler(new ProviderScheduler.ListingFilter() {
+            @Override
+            public boolean isWanted(String documentId) {
+
+                // nobody looks at the listing of a folder that has been left
+                return documentId.equals(currentFolder);
+            }
+        });
+        mStreamExecutor = Executors.newCachedThreadPool();
+        mWriteBackQueue = new WriteBackQueue(context, new WriteBackQueue.Uploader() {
+            @Override
+            public boolean upload(String documentId, File content) {
+
+                return uploadQueued(documentId, content);
+            }
+        }, WriteBackQueue.DEFAULT_DELAY_MS);
+        mContentIndexScheduler = new ContentIndexScheduler(context, new AppSettings(context),
+                new ContentIndexScheduler.VolumeSource() {
+                    @Override
+                    public List<BoxVolume> getVolumes() {
+
+                        return getAllVolumes();
+                    }
+                });
 
         staticBindToApplication();
 
-        folderContentCache = new HashMap<>();
+        folderContentCache = new LruCache<>(MAX_CACHED_FOLDER_LISTINGS);
+        thumbnailCache = new ThumbnailCache(context);
+        commitListener = new BoxVolume.OnCommitListener() {
+            @Override
+            public void onCommit(BoxVolume volume, String documentId) {
+
+                invalidateFolder(documentId);
+            }
+        };
         return true;
     }
 
+    @Override
+    public void shutdown() {
+
+        mContentIndexScheduler.close();
+        super.shutdown();
+    }
+
+    /**
+     * Mark the cached listing of a folder as outdated and notify the observers of the folder.
+     * The stale listing is still served while the fresh one is loaded.
+     *
+     * @param documentId document id of the folder
+     */
+    void invalidateFolder(String documentId) {
+
+        BoxCursor cursor = folderContentCache.get(documentId);
+        if (cursor == null) {
+            return;
+        }
+        Log.d(TAG, "Invalidating folder listing " + documentId);
+        cursor.setStale(true);
+        getContext().getContentResolver().notifyChange(
+                DocumentsContract.buildChildDocumentsUri(AUTHORITY, documentId), null);
+    }
+
     void staticBindToApplication() {
         QabelBoxApplication.boxProvider = this;
     }
@@ -136,6 +204,8 @@ public class BoxProvider extends DocumentsProvider {
                 LocalQabelService.LocalBinder binder = (LocalQabelService.LocalBinder) service;
                 mService = binder.getService();
                 notifyRootsUpdated();
+                mWriteBackQueue.restore();
+                mContentIndexScheduler.schedule();
             }
 
             @Override
@@ -193,7 +263,8 @@ public class BoxProvider extends DocumentsProvider {
             row.add(Root.COLUMN_DOCUMENT_ID,
                     mDocumentIdParser.buildId(pub_key, prefix, "/"));
             row.add(Root.COLUMN_ICON, R.drawable.qabel_logo);
-            row.add(Root.COLUMN_FLAGS, Root.FLAG_SUPPORTS_CREATE);
+            row.add(Root.COLUMN_FLAGS, Root.FLAG_SUPPORTS_CREATE
+                    | Root.FLAG_SUPPORTS_SEARCH | Root.FLAG_SUPPORTS_RECENTS);
             row.add(Root.COLUMN_TITLE, "Qabel Box");
             row.add(Root.COLUMN_SUMMARY, identity.getAlias());
         }
@@ -233,10 +304,27 @@ public class BoxProvider extends DocumentsProvider {
         if (retrievedIdentity == null) {
             throw new RuntimeException("Identity " + identity + "is unknown!");
         }
-        QblECKeyPair key = retrievedIdentity.getPrimaryKeyPair();
+        BoxVolume volume = mService.getVolume(retrievedIdentity, prefix);
+        volume.addOnCommitListener(commitListener);
+        return volume;
+    }
 
-        return new BoxVolume(key, prefix,
-                mService.getDeviceID(), getContext());
+    /**
+     * @return the volumes of all prefixes of all identities
+     */
+    private List<BoxVolume> getAllVolumes() {
+
+        List<BoxVolume> volumes = new ArrayList<>();
+        LocalQabelService service = mService;
+        if (service == null) {
+            return volumes;
+        }
+        for (Identity identity : service.getIdentities().getIdentities()) {
+            for (String prefix : identity.getPrefixes()) {
+                volumes.add(getVolumeForRoot(identity.getEcPublicKey().getReadableKeyIdentifier(), prefix));
+            }
+        }
+        return volumes;
     }
 
     @Override
@@ -335,7 +423,7 @@ public class BoxProvider extends DocumentsProvider {
         Log.d(TAG, "Query Child Documents: " + parentDocumentId);
         BoxCursor cursor = folderContentCache.get(parentDocumentId);
         boolean cacheHit = (cursor != null);
-        if (parentDocumentId.equals(currentFolder) && cacheHit) {
+        if (parentDocumentId.equals(currentFolder) && cacheHit && !cursor.isStale()) {
             // best case: we are still in the same folder and we got a cache hit
             Log.d(TAG, "Up to date cached data found");
             cursor.setExtraLoading(false);
@@ -353,6 +441,78 @@ public class BoxProvider extends DocumentsProvider {
         return cursor;
     }
 
+    /**
+     * Search the local index of the volume. Only folders that have been visited on this
+     * device are found, the remote tree is not crawled. If content search is enabled, text
+     * files containing the query are found as well.
+     */
+    @Override
+    public Cursor querySearchDocuments(String rootId, String query, String[] projection)
+            throws FileNotFoundException {
+
+        Log.d(TAG, "Query search documents: " + query);
+        BoxVolume volume = getVolumeForId(rootId);
+        MatrixCursor cursor = createCursor(projection, false);
+        List<VolumeIndex.Entry> entries = volume.getIndex().search(query, MAX_SEARCH_RESULTS);
+        for (VolumeIndex.Entry entry : entries) {
+            insertIndexEntry(cursor, volume, entry);
+        }
+        if (entries.size() < MAX_SEARCH_RESULTS && mContentIndexScheduler.isEnabled()) {
+            Set<String> blocks = volume.getContentIndex().search(query);
+            int count = entries.size();
+            for (VolumeIndex.Entry entry : volume.getIndex().getEntries()) {
+                if (count >= MAX_SEARCH_RESULTS) {
+                    break;
+                }
+                if (!entry.folder && blocks.contains(((BoxFile) entry.object).block)
+                        && !entries.contains(entry)) {
+                    insertIndexEntry(cursor, volume, entry);
+                    count++;
+                }
+            }
+        }
+        return cursor;
+    }
+
+    @Override
+    public Cursor queryRecentDocuments(String rootId, String[] projection)
+            throws FileNotFoundException {
+
+        Log.d(TAG, "Query recent documents: " + rootId);
+        BoxVolume volume = getVolumeForId(rootId);
+        MatrixCursor cursor = createCursor(projection, false);
+        for (VolumeIndex.Entry entry : volume.getIndex().recent(MAX_RECENT_DOCUMENTS)) {
+            insertIndexEntry(cursor, volume, entry);
+        }
+        return cursor;
+    }
+
+    private void insertIndexEntry(MatrixCursor cursor, BoxVolume volume, VolumeIndex.Entry entry) {
+
+        String documentId = volume.getDocumentId(entry.path);
+        final MatrixCursor.RowBuilder row = cursor.newRow();
+        row.add(Document.COLUMN_DOCUMENT_ID, documentId);
+        row.add(Document.COLUMN_DISPLAY_NAME, entry.name);
+        if (entry.folder) {
+            row.add(Document.COLUMN_FLAGS, Document.FLAG_DIR_SUPPORTS_CREATE);
+            row.add(Document.COLUMN_MIME_TYPE, Document.MIME_TYPE_DIR);
+            return;
+        }
+        String mimeType = URLConnection.guessContentTypeFromName(entry.name);
+        if (mimeType == null) {
+            mimeType = "application/octet-stream";
+        }
+        int flags = Document.FLAG_SUPPORTS_WRITE;
+        if (ThumbnailCache.isImage(mimeType)) {
+            flags |= Document.FLAG_SUPPORTS_THUMBNAIL;
+        }
+        row.add(Document.COLUMN_FLAGS, flags);
+        row.add(Document.COLUMN_MIME_TYPE, mimeType);
+        row.add(Document.COLUMN_SIZE, entry.size);
+        row.add(Document.COLUMN_LAST_MODIFIED, entry.mtime * 1000);
+        row.add(Media.DATA, documentId);
+    }
+
     /**
      * Create and fill a new MatrixCursor
      * <p>
@@ -373,7 +533,14 @@ public class BoxProvider extends DocumentsProvider {
             BoxNavigation navigation =
                     traverseToFolder(volume, mDocumentIdParser.splitPath(
                             mDocumentIdParser.getFilePath(parentDocumentId)));
+            byte[] version = navigation.getVersion();
+            BoxCursor cached = folderContentCache.get(parentDocumentId);
+            if (cached != null && !cached.isStale() && cached.hasVersion(version)) {
+                Log.d(TAG, "Folder listing unchanged, keeping cached listing");
+                return cached;
+            }
             insertFolderListing(cursor, navigation, parentDocumentId);
+            cursor.setVersion(version);
         } catch (QblStorageException e) {
             Log.e(TAG, "Could not navigate", e);
             throw new FileNotFoundException("Failed navigating the volume");
@@ -399,7 +566,7 @@ public class BoxProvider extends DocumentsProvider {
         result.setNotificationUri(getContext().getContentResolver(), uri);
 
         // create a new cursor and store it
-        mThreadPoolExecutor.execute(new Runnable() {
+        mScheduler.submitListing(parentDocumentId, new Runnable() {
             @Override
             public void run() {
 
@@ -447,7 +614,11 @@ public class BoxProvider extends DocumentsProvider {
         row.add(Document.COLUMN_DOCUMENT_ID, documentId);
         row.add(Document.COLUMN_DISPLAY_NAME, file.name);
         row.add(Document.COLUMN_SUMMARY, null);
-        row.add(Document.COLUMN_FLAGS, Document.FLAG_SUPPORTS_WRITE);
+        int flags = Document.FLAG_SUPPORTS_WRITE;
+        if (ThumbnailCache.isImage(mimeType)) {
+            flags |= Document.FLAG_SUPPORTS_THUMBNAIL;
+        }
+        row.add(Document.COLUMN_FLAGS, flags);
         row.add(Document.COLUMN_MIME_TYPE, mimeType);
         row.add(Media.DATA, documentId);
     }
@@ -464,6 +635,20 @@ public class BoxProvider extends DocumentsProvider {
 
     BoxNavigation traverseToFolder(BoxVolume volume, List<String> filePath) throws QblStorageException {
 
+        BoxNavigation navigation = findFolder(volume, filePath);
+        if (navigation == null) {
+            throw new QblStorageNotFound("Folder not found: " + filePath);
+        }
+        return navigation;
+    }
+
+    /**
+     * @return navigation in the folder or null if a folder of the path does not exist. A folder
+     * that cannot be downloaded still throws.
+     */
+    @Nullable
+    private BoxNavigation findFolder(BoxVolume volume, List<String> filePath) throws QblStorageException {
+
         Log.d(TAG, "Traversing to " + filePath.toString());
         BoxNavigation navigation = volume.navigate();
         PARTS:
@@ -478,7 +663,8 @@ public class BoxProvider extends DocumentsProvider {
                     continue PARTS;
                 }
             }
-            throw new QblStorageNotFound("Folder not found, giving up at " + part);
+            Log.w(TAG, "Folder not found, giving up at " + part);
+            return null;
         }
         return navigation;
     }
@@ -493,12 +679,16 @@ public class BoxProvider extends DocumentsProvider {
         final boolean isRead = (mode.indexOf('r') != -1);
 
         if (isWrite) {
-            final BoxUploadingFile boxUploadingFile = mService.addPendingUpload(documentId, null);
             // Attach a close listener if the document is opened in write mode.
             try {
                 Handler handler = new Handler(getContext().getMainLooper());
                 final File tmp;
-                if (isRead) {
+                File pending = mWriteBackQueue.getPending(documentId);
+                if (isRead && pending != null) {
+                    // the queued content is newer than the uploaded one
+                    tmp = File.createTempFile("uploadAndDeleteLocalfile", "", getContext().getExternalCacheDir());
+                    FileUtils.copyFile(pending, tmp);
+                } else if (isRead) {
                     tmp = downloadFile(documentId, mode, signal);
                 } else {
                     tmp = File.createTempFile("uploadAndDeleteLocalfile", "", getContext().getExternalCacheDir());
@@ -513,15 +703,11 @@ public class BoxProvider extends DocumentsProvider {
                             Log.e(TAG, "IOException in onClose", e);
                             return;
                         }
-                        // in another thread!
-                        new AsyncTask<Void, Void, String>() {
-                            @Override
-                            protected String doInBackground(Void... params) {
-
-                                uploadFile(documentId, tmp, mService.getUploadTransferListener(boxUploadingFile));
-                                return documentId;
-                            }
-                        }.execute();
+                        try {
+                            mWriteBackQueue.enqueue(documentId, tmp);
+                        } catch (IOException queueError) {
+                            Log.e(TAG, "Could not queue upload of " + documentId, queueError);
+                        }
                     }
                 };
                 return ParcelFileDescriptor.open(tmp, ParcelFileDescriptor.parseMode(mode), handler,
@@ -529,6 +715,8 @@ public class BoxProvider extends DocumentsProvider {
             } catch (IOException e) {
                 throw new FileNotFoundException();
             }
+        } else if (isStreamable(documentId)) {
+            return streamFile(documentId, signal);
         } else {
             File tmp = downloadFile(documentId, mode, signal);
             final int accessMode = ParcelFileDescriptor.parseMode(mode);
@@ -536,7 +724,168 @@ public class BoxProvider extends DocumentsProvider {
         }
     }
 
-    private void uploadFile(String documentId, File tmp, TransferManager.BoxTransferListener boxTransferListener) {
+    private boolean isStreamable(String documentId) throws FileNotFoundException {
+
+        String mimeType = URLConnection.guessContentTypeFromName(mDocumentIdParser.getBaseName(documentId));
+        if (mimeType == null) {
+            return false;
+        }
+        for (String streamablePrefix : STREAMABLE_MIME_PREFIXES) {
+            if (mimeType.startsWith(streamablePrefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Return the read side of a pipe immediately and fill it with the authenticated plaintext.
+     * Segmented files arrive while they download, other files after the whole file was
+     * authenticated. Errors are reported to the reader through the reliable pipe.
+     *
+     * @param documentId file to read
+     * @param signal     cancels the download and closes the pipe
+     * @return read side of the pipe
+     * @throws FileNotFoundException if the pipe could not be created
+     */
+    private ParcelFileDescriptor streamFile(final String documentId, final CancellationSignal signal)
+            throws FileNotFoundException {
+
+        final ParcelFileDescriptor[] pipe;
+        try {
+            pipe = ParcelFileDescriptor.createReliablePipe();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not create pipe", e);
+            throw new FileNotFoundException("Could not create pipe");
+        }
+        final ParcelFileDescriptor writeSide = pipe[1];
+        final Future<?> future = mStreamExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+
+                OutputStream outputStream = new FileOutputStream(writeSide.getFileDescriptor());
+                try {
+                    List<String> strings = mDocumentIdParser.splitPath(mDocumentIdParser.getFilePath(documentId));
+                    String basename = strings.remove(strings.size() - 1);
+                    BoxNavigation navigation = traverseToFolder(getVolumeForId(documentId), strings);
+                    navigation.download(findFileinList(basename, navigation), outputStream, null);
+                    outputStream.flush();
+                    writeSide.close();
+                } catch (IOException | QblStorageException e) {
+                    Log.e(TAG, "Streaming " + documentId + " failed", e);
+                    closeWithError(writeSide, e.getMessage());
+                }
+            }
+        });
+        if (signal != null) {
+            signal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+                @Override
+                public void onCancel() {
+
+                    Log.d(TAG, "openDocument cancelling stream");
+                    future.cancel(true);
+                    closeWithError(writeSide, "Cancelled");
+                }
+            });
+        }
+        return pipe[0];
+    }
+
+    @Override
+    public AssetFileDescriptor openDocumentThumbnail(String documentId, Point sizeHint,
+                                                     CancellationSignal signal)
+            throws FileNotFoundException {
+
+        Log.d(TAG, "Open thumbnail: " + documentId);
+        int size = ThumbnailCache.getSize(sizeHint);
+        File thumbnail;
+        try {
+            List<String> strings = mDocumentIdParser.splitPath(mDocumentIdParser.getFilePath(documentId));
+            String basename = strings.remove(strings.size() - 1);
+            BoxNavigation navigation = traverseToFolder(getVolumeForId(documentId), strings);
+            BoxFile boxFile = findFileinList(basename, navigation);
+            thumbnail = thumbnailCache.get(boxFile, size);
+            if (thumbnail == null) {
+                thumbnail = createThumbnail(navigation, boxFile, size, signal);
+            }
+        } catch (QblStorageException | IOException e) {
+            Log.e(TAG, "Could not create thumbnail for " + documentId, e);
+            throw new FileNotFoundException("No thumbnail for " + documentId);
+        }
+        try {
+            return new AssetFileDescriptor(
+                    ParcelFileDescriptor.open(thumbnail, ParcelFileDescriptor.MODE_READ_ONLY),
+                    0, AssetFileDescriptor.UNKNOWN_LENGTH);
+        } finally {
+            // the open descriptor keeps the content readable
+            thumbnail.delete();
+        }
+    }
+
+    /**
+     * Download the image without a notification and store a thumbnail of it
+     *
+     * @return decrypted thumbnail which has to be deleted by the caller
+     */
+    private File createThumbnail(BoxNavigation navigation, BoxFile boxFile, int size,
+                                 CancellationSignal signal)
+            throws IOException, QblStorageException {
+
+        File image = File.createTempFile("thumbnailSource", "", getContext().getCacheDir());
+        try {
+            OutputStream outputStream = new FileOutputStream(image);
+            try {
+                navigation.download(boxFile, outputStream, null);
+            } finally {
+                outputStream.close();
+            }
+            if (signal != null) {
+                signal.throwIfCanceled();
+            }
+            if (!thumbnailCache.put(boxFile, size, image)) {
+                throw new FileNotFoundException("Could not decode " + boxFile.name);
+            }
+        } finally {
+            image.delete();
+        }
+        File thumbnail = thumbnailCache.get(boxFile, size);
+        if (thumbnail == null) {
+            throw new FileNotFoundException("Thumbnail of " + boxFile.name + " is not readable");
+        }
+        return thumbnail;
+    }
+
+    private static void closeWithError(ParcelFileDescriptor writeSide, String message) {
+
+        try {
+            writeSide.closeWithError(message == null ? "Streaming failed" : message);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not close pipe", e);
+        }
+    }
+
+    /**
+     * Upload queued content of a document
+     *
+     * @return false if the upload failed and should be retried later
+     */
+    private boolean uploadQueued(String documentId, File content) {
+
+        if (mService == null) {
+            Log.w(TAG, "Service not bound, delaying upload of " + documentId);
+            return false;
+        }
+        try {
+            BoxUploadingFile boxUploadingFile = mService.addPendingUpload(documentId, null);
+            return uploadFile(documentId, content, mService.getUploadTransferListener(boxUploadingFile));
+        } catch (FileNotFoundException e) {
+            Log.e(TAG, "Invalid document id " + documentId, e);
+            // an invalid id will not become valid later
+            return true;
+        }
+    }
+
+    private boolean uploadFile(String documentId, File tmp, TransferManager.BoxTransferListener boxTransferListener) {
 
         try {
             BoxVolume volume = getVolumeForId(documentId);
@@ -544,28 +893,46 @@ public class BoxProvider extends DocumentsProvider {
                     mDocumentIdParser.getFilePath(documentId));
             String basename = splitPath.remove(splitPath.size() - 1);
             Log.i(TAG, "Navigating to folder");
-            BoxNavigation navigation = traverseToFolder(volume, splitPath);
+            BoxNavigation navigation = findFolder(volume, splitPath);
+            if (navigation == null) {
+                // the folder was deleted, a retry would fail the same way
+                Log.e(TAG, "Upload target of " + documentId + " is gone, dropping the upload");
+                markUploadFailed(documentId);
+                return true;
+            }
             Log.i(TAG, "Starting uploadAndDeleteLocalfile");
             BoxFile boxFile = navigation.upload(basename, new FileInputStream(tmp), boxTransferListener);
             navigation.commit();
+            mContentIndexScheduler.offer(volume, boxFile, tmp);
+            if (ThumbnailCache.isImage(URLConnection.guessContentTypeFromName(basename))) {
+                // the plaintext is still around, so the first listing does not need a download
+                thumbnailCache.put(boxFile, ThumbnailCache.DEFAULT_SIZE, tmp);
+            }
             Bundle extras = new Bundle();
             extras.putParcelable(LocalBroadcastConstants.EXTRA_FILE, boxFile);
             mService.removePendingUpload(documentId, LocalBroadcastConstants.UPLOAD_STATUS_FINISHED, extras);
+            return true;
         } catch (FileNotFoundException | QblStorageException e1) {
             Log.e(TAG, "Upload failed", e1);
-            try {
-                mService.removePendingUpload(documentId, LocalBroadcastConstants.UPLOAD_STATUS_FAILED, null);
-            } catch (FileNotFoundException e) {
-                //Should not be possible
-                Log.e(TAG, "Removing failed upload failed", e);
-            }
+            markUploadFailed(documentId);
+            return false;
+        }
+    }
+
+    private void markUploadFailed(String documentId) {
+
+        try {
+            mService.removePendingUpload(documentId, LocalBroadcastConstants.UPLOAD_STATUS_FAILED, null);
+        } catch (FileNotFoundException e) {
+            //Should not be possible
+            Log.e(TAG, "Removing failed upload failed", e);
         }
     }
 
     private File downloadFile(final String documentId, final String mode, final CancellationSignal signal) throws FileNotFoundException {
 
         final Future<File> future
-                = mThreadPoolExecutor.submit(new Callable<File>() {
+                = mScheduler.submitDownload(new Callable<File>() {
 
             @Override
             public File call() throws Exception {
@@ -645,6 +1012,7 @@ public class BoxProvider extends DocumentsProvider {
         IOUtils.copy(inputStream, fileOutputStream);
         inputStream.close();
         fileOutputStream.close();
+        mContentIndexScheduler.offer(volume, file, out);
         return out;
     }
 
@@ -771,6 +1139,8 @@ public class BoxProvider extends DocumentsProvider {
 
         private boolean extraLoading;
         private String error;
+        private byte[] version;
+        private volatile boolean stale;
 
         public BoxCursor(String[] columnNames) {
 
@@ -796,5 +1166,28 @@ public class BoxProvider extends DocumentsProvider {
 
             this.error = error;
         }
+
+        /**
+         * @param version metadata version of the folder this listing was created from
+         */
+        public void setVersion(byte[] version) {
+
+            this.version = version;
+        }
+
+        public boolean hasVersion(byte[] version) {
+
+            return this.version != null && Arrays.equals(this.version, version);
+        }
+
+        public boolean isStale() {
+
+            return stale;
+        }
+
+        public void setStale(boolean stale) {
+
+            this.stale = stale;
+        }
     }
 }
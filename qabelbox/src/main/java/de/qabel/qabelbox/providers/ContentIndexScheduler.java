@@ -0,0 +1,238 @@
+package de.qabel.qabelbox.providers;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.PowerManager;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import de.qabel.qabelbox.config.AppSettings;
+import de.qabel.qabelbox.exceptions.QblStorageException;
+import de.qabel.qabelbox.storage.BoxFile;
+import de.qabel.qabelbox.storage.BoxVolume;
+import de.qabel.qabelbox.storage.ContentIndex;
+import de.qabel.qabelbox.storage.ContentIndexer;
+
+/**
+ * Runs the content indexing of all volumes while the device is charging or idle.
+ * <p>
+ * A run is started when the charger is connected or the screen is turned off and stops as
+ * soon as neither is the case anymore or after {@link #MAX_RUN_MS}. Files that are uploaded or
+ * downloaded at such a time are indexed directly from their plaintext.
+ * Nothing happens unless content search is enabled in the settings, the charger and screen
+ * broadcasts are only received while it is.
+ */
+class ContentIndexScheduler {
+
+    private static final String TAG = "ContentIndexScheduler";
+    static final long MAX_RUN_MS = 2 * 60 * 1000;
+    static final int MIN_IDLE_BATTERY_PERCENT = 50;
+
+    interface VolumeSource {
+
+        /**
+         * @return all volumes of all identities, empty if they are not available yet
+         */
+        List<BoxVolume> getVolumes();
+    }
+
+    private final Context context;
+    private final AppSettings appSettings;
+    private final VolumeSource volumeSource;
+    private final AtomicBoolean running = new AtomicBoolean();
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, TAG);
+        }
+    });
+
+    private final BroadcastReceiver receiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+
+            schedule();
+        }
+    };
+    // the settings only hold a weak reference to the listener
+    private final SharedPreferences.OnSharedPreferenceChangeListener settingsListener =
+            new SharedPreferences.OnSharedPreferenceChangeListener() {
+                @Override
+                public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+
+                    updateReceiver();
+                }
+            };
+    private boolean receiverRegistered;
+    private volatile boolean closed;
+
+    ContentIndexScheduler(Context context, AppSettings appSettings, VolumeSource volumeSource) {
+
+        this.context = context.getApplicationContext();
+        this.appSettings = appSettings;
+        this.volumeSource = volumeSource;
+        appSettings.registerListener(settingsListener);
+        updateReceiver();
+    }
+
+    boolean isEnabled() {
+
+        return !closed && appSettings.isContentSearchEnabled();
+    }
+
+    /**
+     * Receive the charger and screen broadcasts only while content search is enabled
+     */
+    private synchronized void updateReceiver() {
+
+        boolean wanted = isEnabled();
+        if (wanted && !receiverRegistered) {
+            IntentFilter filter = new IntentFilter(Intent.ACTION_POWER_CONNECTED);
+            filter.addAction(Intent.ACTION_SCREEN_OFF);
+            context.registerReceiver(receiver, filter);
+            receiverRegistered = true;
+        } else if (!wanted && receiverRegistered) {
+            context.unregisterReceiver(receiver);
+            receiverRegistered = false;
+        }
+    }
+
+    /**
+     * Stop receiving broadcasts and setting changes. A running indexing run is interrupted.
+     */
+    void close() {
+
+        closed = true;
+        appSettings.unregisterListener(settingsListener);
+        updateReceiver();
+        executor.shutdownNow();
+    }
+
+    /**
+     * Start indexing all volumes if it is allowed right now and no run is active
+     */
+    void schedule() {
+
+        if (!isEnabled() || !isAllowed() || !running.compareAndSet(false, true)) {
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+
+                try {
+                    indexVolumes();
+                } finally {
+                    running.set(false);
+                }
+            }
+        });
+    }
+
+    private void indexVolumes() {
+
+        final long deadline = SystemClock.elapsedRealtime() + MAX_RUN_MS;
+        ContentIndexer.Budget budget = new ContentIndexer.Budget() {
+            @Override
+            public boolean canContinue() {
+
+                return SystemClock.elapsedRealtime() < deadline && isAllowed();
+            }
+        };
+        for (BoxVolume volume : volumeSource.getVolumes()) {
+            if (!budget.canContinue()) {
+                return;
+            }
+            try {
+                int indexed = new ContentIndexer(volume).run(budget);
+                Log.d(TAG, "Indexed content of " + indexed + " files");
+            } catch (QblStorageException e) {
+                Log.w(TAG, "Content indexing failed", e);
+            }
+        }
+    }
+
+    /**
+     * Index a file whose plaintext is available anyway, if indexing is allowed right now
+     *
+     * @param volume  volume of the file
+     * @param boxFile uploaded or downloaded file
+     * @param content local plaintext of the file
+     */
+    void offer(final BoxVolume volume, BoxFile boxFile, File content) {
+
+        if (!ContentIndex.isIndexable(boxFile) || !isEnabled() || !isAllowed()) {
+            return;
+        }
+        try {
+            InputStream inputStream = new FileInputStream(content);
+            try {
+                volume.getContentIndex().add(boxFile, inputStream);
+            } finally {
+                inputStream.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not index " + boxFile.name, e);
+            return;
+        }
+        // storing the index rewrites it completely, so it is not done on the transfer thread
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+
+                volume.getContentIndex().flush();
+            }
+        });
+    }
+
+    /**
+     * @return true if the device is charging or the screen is off with enough battery left
+     */
+    boolean isAllowed() {
+
+        Intent battery = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (battery == null) {
+            return false;
+        }
+        if (battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0) {
+            return true;
+        }
+        int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, 0);
+        int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, 100);
+        return !isInteractive() && level * 100 >= MIN_IDLE_BATTERY_PERCENT * scale;
+    }
+
+    @SuppressWarnings("deprecation")
+    private boolean isInteractive() {
+
+        PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT_WATCH) {
+            return powerManager.isInteractive();
+        }
+        return powerManager.isScreenOn();
+    }
+}
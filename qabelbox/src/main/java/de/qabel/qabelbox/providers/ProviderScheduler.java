@@ -0,0 +1,96 @@
+package de.qabel.qabelbox.providers;
+
+import android.util.Log;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background work of the BoxProvider in separate lanes.
+ * <p>
+ * Folder listings are short and block the UI of the document picker, so they get their own
+ * threads and never wait behind downloads. A listing that is already queued for a folder is
+ * not queued a second time and listings of folders the user has left are dropped before
+ * they are started.
+ */
+class ProviderScheduler {
+
+    private static final String TAG = "ProviderScheduler";
+    private static final int LISTING_THREADS = 2;
+    private static final int DOWNLOAD_THREADS = 2;
+    private static final int KEEP_ALIVE_TIME = 1;
+    private static final TimeUnit KEEP_ALIVE_TIME_UNIT = TimeUnit.SECONDS;
+
+    private final ThreadPoolExecutor listingExecutor;
+    private final ThreadPoolExecutor downloadExecutor;
+    private final Set<String> queuedListings =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final ListingFilter listingFilter;
+
+    interface ListingFilter {
+
+        /**
+         * @param documentId folder of a queued listing
+         * @return false if the listing is not needed anymore
+         */
+        boolean isWanted(String documentId);
+    }
+
+    ProviderScheduler(ListingFilter listingFilter) {
+
+        this.listingFilter = listingFilter;
+        listingExecutor = createExecutor(LISTING_THREADS);
+        downloadExecutor = createExecutor(DOWNLOAD_THREADS);
+    }
+
+    private static ThreadPoolExecutor createExecutor(int threads) {
+
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                threads,
+                threads,
+                KEEP_ALIVE_TIME,
+                KEEP_ALIVE_TIME_UNIT,
+                new LinkedBlockingQueue<Runnable>());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Queue the listing of a folder
+     *
+     * @param documentId folder to list
+     * @param listing    loads the listing and notifies the observers
+     * @return false if a listing of the folder is already queued
+     */
+    boolean submitListing(final String documentId, final Runnable listing) {
+
+        if (!queuedListings.add(documentId)) {
+            Log.d(TAG, "Listing already queued: " + documentId);
+            return false;
+        }
+        listingExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+
+                queuedListings.remove(documentId);
+                if (!listingFilter.isWanted(documentId)) {
+                    Log.d(TAG, "Dropping stale listing: " + documentId);
+                    return;
+                }
+                listing.run();
+            }
+        });
+        return true;
+    }
+
+    <T> Future<T> submitDownload(Callable<T> download) {
+
+        return downloadExecutor.submit(download);
+    }
+}
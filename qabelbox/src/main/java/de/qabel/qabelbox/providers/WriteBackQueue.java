@@ -0,0 +1,192 @@
+package de.qabel.qabelbox.providers;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Uploads documents written through the provider after the writer has been quiet for a while.
+ * <p>
+ * Every close of a written document replaces the queued content of the document and restarts
+ * its delay, so editors that save often cause one upload of the latest content. Uploads run one
+ * at a time, which keeps commits of the same folder from racing each other. A failed upload is
+ * retried with an exponential backoff. Queued content is kept in the files dir and is uploaded
+ * after a restart if the process died before.
+ */
+class WriteBackQueue {
+
+    private static final String TAG = "WriteBackQueue";
+    private static final String DIRECTORY = "writeback";
+    private static final String PREFERENCES = "writeback";
+    static final long DEFAULT_DELAY_MS = 2000;
+    static final long INITIAL_RETRY_DELAY_MS = 30 * 1000;
+    static final long MAX_RETRY_DELAY_MS = 30 * 60 * 1000;
+
+    interface Uploader {
+
+        /**
+         * Upload and commit the content of a document
+         *
+         * @return false if the content should be kept for a later retry, true if it was uploaded
+         * or can never be uploaded
+         */
+        boolean upload(String documentId, File content);
+    }
+
+    private final File directory;
+    private final SharedPreferences queued;
+    private final Uploader uploader;
+    private final long delay;
+    private final long initialRetryDelay;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private final Map<String, ScheduledFuture<?>> scheduled = new HashMap<>();
+    private final Set<String> uploading = new HashSet<>();
+    private final Map<String, Integer> failures = new HashMap<>();
+
+    WriteBackQueue(Context context, Uploader uploader, long delay) {
+
+        this(context, uploader, delay, INITIAL_RETRY_DELAY_MS);
+    }
+
+    WriteBackQueue(Context context, Uploader uploader, long delay, long initialRetryDelay) {
+
+        directory = new File(context.getFilesDir(), DIRECTORY);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.e(TAG, "Could not create write back directory");
+        }
+        queued = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+        this.uploader = uploader;
+        this.delay = delay;
+        this.initialRetryDelay = initialRetryDelay;
+    }
+
+    /**
+     * Queue new content of a document. An older queued content of the document is discarded.
+     *
+     * @param documentId written document
+     * @param content    file with the complete content, owned by the queue afterwards
+     * @throws IOException if the content could not be moved into the queue
+     */
+    synchronized void enqueue(String documentId, File content) throws IOException {
+
+        File target = new File(directory, UUID.randomUUID().toString());
+        if (!content.renameTo(target)) {
+            FileUtils.copyFile(content, target);
+            if (!content.delete()) {
+                Log.w(TAG, "Could not delete " + content);
+            }
+        }
+        String previous = queued.getString(documentId, null);
+        queued.edit().putString(documentId, target.getName()).commit();
+        if (previous != null && !uploading.contains(previous)) {
+            Log.d(TAG, "Superseding queued content of " + documentId);
+            deleteContent(previous);
+        }
+        failures.remove(documentId);
+        schedule(documentId, delay);
+    }
+
+    /**
+     * @return queued content that has not been uploaded yet or null
+     */
+    @Nullable
+    synchronized File getPending(String documentId) {
+
+        String name = queued.getString(documentId, null);
+        return name == null ? null : new File(directory, name);
+    }
+
+    /**
+     * Schedule the uploads that were queued before the process died
+     */
+    synchronized void restore() {
+
+        for (String documentId : queued.getAll().keySet()) {
+            if (!scheduled.containsKey(documentId)) {
+                Log.i(TAG, "Restoring queued upload of " + documentId);
+                schedule(documentId, delay);
+            }
+        }
+    }
+
+    long retryDelay(int failures) {
+
+        long retryDelay = initialRetryDelay << Math.min(Math.max(failures - 1, 0), 20);
+        return Math.min(retryDelay, Math.max(MAX_RETRY_DELAY_MS, initialRetryDelay));
+    }
+
+    private void schedule(final String documentId, long delayMs) {
+
+        ScheduledFuture<?> previous = scheduled.remove(documentId);
+        if (previous != null) {
+            previous.cancel(false);
+        }
+        scheduled.put(documentId, executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+
+                flush(documentId);
+            }
+        }, delayMs, TimeUnit.MILLISECONDS));
+    }
+
+    private void flush(String documentId) {
+
+        String name;
+        synchronized (this) {
+            scheduled.remove(documentId);
+            name = queued.getString(documentId, null);
+            if (name == null) {
+                return;
+            }
+            uploading.add(name);
+        }
+        File content = new File(directory, name);
+        boolean uploaded = content.exists() && uploader.upload(documentId, content);
+        synchronized (this) {
+            uploading.remove(name);
+            boolean current = name.equals(queued.getString(documentId, null));
+            if (!content.exists()) {
+                Log.e(TAG, "Queued content of " + documentId + " is gone");
+                uploaded = true;
+            }
+            if (uploaded && current) {
+                queued.edit().remove(documentId).commit();
+                failures.remove(documentId);
+            }
+            if (uploaded || !current) {
+                deleteContent(name);
+            } else if (!scheduled.containsKey(documentId)) {
+                Integer previous = failures.get(documentId);
+                int count = previous == null ? 1 : previous + 1;
+                failures.put(documentId, count);
+                long retryDelay = retryDelay(count);
+                Log.w(TAG, "Upload of " + documentId + " failed, retry " + count + " in " + retryDelay + " ms");
+                schedule(documentId, retryDelay);
+            }
+        }
+    }
+
+    private void deleteContent(String name) {
+
+        File file = new File(directory, name);
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "Could not delete " + file);
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package de.qabel.qabelbox.services;
+
+import android.support.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import de.qabel.core.config.Contact;
+import de.qabel.core.config.Identity;
+import de.qabel.core.crypto.AbstractBinaryDropMessage;
+import de.qabel.core.crypto.BinaryDropMessageV0;
+import de.qabel.core.drop.DropMessage;
+import de.qabel.core.exceptions.QblDropInvalidMessageSizeException;
+import de.qabel.core.exceptions.QblSpoofedSenderException;
+import de.qabel.core.exceptions.QblVersionMismatchException;
+
+/**
+ * Decrypts a batch of drop messages.
+ * <p>
+ * Identities and contacts are given once per batch and senders are looked up by their key
+ * identifier instead of comparing every contact. Large batches are split into one chunk per
+ * thread of the executor.
+ */
+class DropDecryptor {
+
+    private final static Logger LOGGER = LoggerFactory.getLogger(DropDecryptor.class.getName());
+    static final int MIN_MESSAGES_PER_CHUNK = 16;
+
+    private final List<Identity> identities;
+    private final Map<String, Contact> contactsByKeyId = new HashMap<>();
+    private final List<HeldDropMessage> unknownSenders =
+            Collections.synchronizedList(new ArrayList<HeldDropMessage>());
+
+    /**
+     * @param identities possible recipients, the most likely one first
+     * @param contacts   known senders, messages of other senders are held
+     */
+    DropDecryptor(List<Identity> identities, Collection<Contact> contacts) {
+
+        this.identities = identities;
+        for (Contact contact : contacts) {
+            contactsByKeyId.put(contact.getKeyIdentifier(), contact);
+        }
+    }
+
+    /**
+     * Decrypt all messages, in parallel if there are enough
+     *
+     * @param threads number of threads of the executor
+     * @return decrypted messages of known senders in the order of the cipher messages
+     */
+    List<DropMessage> decrypt(List<byte[]> cipherMessages, @Nullable ExecutorService executor, int threads) {
+
+        int chunks = Math.min(threads, cipherMessages.size() / MIN_MESSAGES_PER_CHUNK);
+        if (executor == null || chunks < 2) {
+            return decryptChunk(cipherMessages);
+        }
+        int chunkSize = (cipherMessages.size() + chunks - 1) / chunks;
+        List<Future<List<DropMessage>>> futures = new ArrayList<>(chunks);
+        for (int start = 0; start < cipherMessages.size(); start += chunkSize) {
+            final List<byte[]> chunk = cipherMessages.subList(start,
+                    Math.min(start + chunkSize, cipherMessages.size()));
+            futures.add(executor.submit(new Callable<List<DropMessage>>() {
+                @Override
+                public List<DropMessage> call() {
+                    return decryptChunk(chunk);
+                }
+            }));
+        }
+        List<DropMessage> plainMessages = new ArrayList<>();
+        try {
+            for (Future<List<DropMessage>> future : futures) {
+                plainMessages.addAll(future.get());
+            }
+        } catch (InterruptedException e) {
+            for (Future<List<DropMessage>> future : futures) {
+                future.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+        return plainMessages;
+    }
+
+    /**
+     * @return messages for one of the identities from senders that are no contacts, decrypted
+     * since the last call
+     */
+    List<HeldDropMessage> takeUnknownSenders() {
+
+        synchronized (unknownSenders) {
+            List<HeldDropMessage> taken = new ArrayList<>(unknownSenders);
+            unknownSenders.clear();
+            return taken;
+        }
+    }
+
+    private List<DropMessage> decryptChunk(List<byte[]> cipherMessages) {
+
+        List<DropMessage> plainMessages = new ArrayList<>();
+        for (byte[] cipherMessage : cipherMessages) {
+            DropMessage dropMessage = decrypt(cipherMessage);
+            if (dropMessage != null) {
+                plainMessages.add(dropMessage);
+            }
+        }
+        return plainMessages;
+    }
+
+    /**
+     * @return the decrypted message or null if it is invalid, not for one of the identities or
+     * not from a known contact. Messages of unknown senders are held for {@link #takeUnknownSenders()}.
+     */
+    @Nullable
+    DropMessage decrypt(byte[] cipherMessage) {
+
+        AbstractBinaryDropMessage binMessage;
+        byte binaryFormatVersion = cipherMessage[0];
+
+        switch (binaryFormatVersion) {
+            case 0:
+                try {
+                    binMessage = new BinaryDropMessageV0(cipherMessage);
+                } catch (QblVersionMismatchException e) {
+                    LOGGER.error("Version mismatch in binary drop message", e);
+                    throw new RuntimeException("Version mismatch should not happen", e);
+                } catch (QblDropInvalidMessageSizeException e) {
+                    LOGGER.info("Binary drop message version 0 with unexpected size discarded.");
+                    // Invalid message uploads may happen with malicious intent
+                    // or by broken clients. Skip.
+                    return null;
+                }
+                break;
+            default:
+                LOGGER.warn("Unknown binary drop message version " + binaryFormatVersion);
+                // cannot handle this message -> skip
+                return null;
+        }
+        for (Identity identity : identities) {
+            DropMessage dropMessage;
+            try {
+                dropMessage = binMessage.disassembleMessage(identity);
+            } catch (QblSpoofedSenderException e) {
+                //TODO: Notify the user about the spoofed message
+                return null;
+            }
+            if (dropMessage != null) {
+                Contact sender = contactsByKeyId.get(dropMessage.getSenderKeyId());
+                if (sender == null) {
+                    unknownSenders.add(new HeldDropMessage(dropMessage.getSenderKeyId(), cipherMessage));
+                    return null;
+                }
+                if (dropMessage.registerSender(sender)) {
+                    return dropMessage;
+                }
+                return null;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,143 @@
+package de.qabel.qabelbox.services;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.qabel.core.config.Contact;
+import de.qabel.core.config.Identity;
+import de.qabel.core.crypto.AbstractBinaryDropMessage;
+import de.qabel.core.drop.DropURL;
+
+/**
+ * Sends one drop message to many contacts.
+ * <p>
+ * The message is encrypted for the recipients in chunks on a shared executor. No task waits for
+ * another one: the chunk that finishes last hands all messages to the {@link DropSender} at once,
+ * which stores them in one transaction and sends them grouped by drop server.
+ */
+class DropFanOut {
+
+    private static final String TAG = "DropFanOut";
+    static final int MIN_RECIPIENTS_PER_CHUNK = 4;
+
+    private final AbstractBinaryDropMessage binaryMessage;
+    private final Identity sender;
+    private final List<Contact> recipients;
+    private final DropSender dropSender;
+    private final LocalQabelService.OnSendDropMessagesResult callback;
+    private final byte[][] messages;
+    private final AtomicInteger pendingChunks = new AtomicInteger();
+    private final Map<Contact, Map<DropURL, Boolean>> deliveryStatus = new HashMap<>();
+    private int pendingRecipients;
+
+    DropFanOut(AbstractBinaryDropMessage binaryMessage, Identity sender, List<Contact> recipients,
+               DropSender dropSender, @Nullable LocalQabelService.OnSendDropMessagesResult callback) {
+
+        this.binaryMessage = binaryMessage;
+        this.sender = sender;
+        this.recipients = recipients;
+        this.dropSender = dropSender;
+        this.callback = callback;
+        messages = new byte[recipients.size()][];
+        pendingRecipients = recipients.size();
+    }
+
+    /**
+     * Encrypt and send without blocking
+     *
+     * @param threads number of threads of the executor
+     */
+    void start(Executor executor, int threads) {
+
+        if (recipients.isEmpty()) {
+            if (callback != null) {
+                callback.onSendDropResult(deliveryStatus);
+            }
+            return;
+        }
+        int chunks = Math.max(1, Math.min(threads, recipients.size() / MIN_RECIPIENTS_PER_CHUNK));
+        int chunkSize = (recipients.size() + chunks - 1) / chunks;
+        pendingChunks.set((recipients.size() + chunkSize - 1) / chunkSize);
+        for (int start = 0; start < recipients.size(); start += chunkSize) {
+            final int from = start;
+            final int to = Math.min(start + chunkSize, recipients.size());
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        encrypt(from, to);
+                    } finally {
+                        if (pendingChunks.decrementAndGet() == 0) {
+                            send();
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    private void encrypt(int from, int to) {
+
+        for (int i = from; i < to; i++) {
+            try {
+                messages[i] = binaryMessage.assembleMessageFor(recipients.get(i), sender);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Cannot encrypt message for " + recipients.get(i).getAlias(), e);
+            }
+        }
+    }
+
+    private void send() {
+
+        List<DropSender.Outgoing> outgoing = new ArrayList<>(recipients.size());
+        for (int i = 0; i < recipients.size(); i++) {
+            final Contact recipient = recipients.get(i);
+            if (messages[i] == null) {
+                Map<DropURL, Boolean> failed = new HashMap<>();
+                for (DropURL dropURL : recipient.getDropUrls()) {
+                    failed.put(dropURL, false);
+                }
+                report(recipient, failed);
+                continue;
+            }
+            outgoing.add(new DropSender.Outgoing(recipient.getDropUrls(), messages[i],
+                    new LocalQabelService.OnSendDropMessageResult() {
+                        @Override
+                        public void onSendDropResult(Map<DropURL, Boolean> status) {
+                            report(recipient, status);
+                        }
+                    }));
+        }
+        try {
+            dropSender.send(outgoing);
+        } catch (RuntimeException e) {
+            // nothing was stored or sent
+            Log.e(TAG, "Cannot store messages in outbox", e);
+            for (int i = 0; i < recipients.size(); i++) {
+                if (messages[i] != null) {
+                    report(recipients.get(i), new HashMap<DropURL, Boolean>());
+                }
+            }
+        }
+    }
+
+    private void report(Contact recipient, Map<DropURL, Boolean> status) {
+
+        Map<Contact, Map<DropURL, Boolean>> result;
+        synchronized (this) {
+            deliveryStatus.put(recipient, status);
+            if (--pendingRecipients > 0 || callback == null) {
+                return;
+            }
+            result = new HashMap<>(deliveryStatus);
+        }
+        callback.onSendDropResult(result);
+    }
+}
@@ -0,0 +1,209 @@
+package de.qabel.qabelbox.services;
+
+import android.util.Log;
+
+import java.net.URI;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import de.qabel.qabelbox.communication.DropResult;
+
+/**
+ * Fetches the messages of several drops concurrently.
+ * <p>
+ * At most {@link #MAX_PARALLEL_FETCHES} drops are fetched at once and every fetch gets
+ * {@link #FETCH_TIMEOUT_MS} from the moment it starts. Every drop is reported as soon as it
+ * answered, so a slow or unreachable drop server does not hold back the messages of the others.
+ * Drops that fail or time out are left out.
+ */
+class DropFetcher {
+
+    private static final String TAG = "DropFetcher";
+    static final int MAX_PARALLEL_FETCHES = 4;
+    static final long FETCH_TIMEOUT_MS = 30 * 1000;
+
+    interface Receiver {
+
+        DropResult receive(URI uri, long sinceDate);
+    }
+
+    interface Listener {
+
+        /**
+         * Called on the fetching thread for every drop that answered successfully in time
+         */
+        void onFetched(URI uri, DropResult result);
+    }
+
+    private final Receiver receiver;
+    private final long timeoutNanos;
+    private final ThreadPoolExecutor executor;
+
+    DropFetcher(Receiver receiver) {
+
+        this(receiver, MAX_PARALLEL_FETCHES, FETCH_TIMEOUT_MS);
+    }
+
+    DropFetcher(Receiver receiver, int parallelFetches, long timeoutMs) {
+
+        this.receiver = receiver;
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        executor = new ThreadPoolExecutor(parallelFetches, parallelFetches, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Fetch all drops and wait until each one has answered or timed out
+     *
+     * @param sinceDates drops to fetch, each with the timestamp in ms after which messages are fetched
+     * @return result of every drop that answered successfully in time, in the order they answered
+     */
+    Map<URI, DropResult> fetch(Map<URI, Long> sinceDates) {
+
+        final Map<URI, DropResult> results = new LinkedHashMap<>();
+        fetch(sinceDates, new Listener() {
+            @Override
+            public void onFetched(URI uri, DropResult result) {
+                results.put(uri, result);
+            }
+        });
+        return results;
+    }
+
+    /**
+     * Fetch all drops and report each one as soon as it answered. Returns once every drop has
+     * answered or timed out.
+     *
+     * @param sinceDates drops to fetch, each with the timestamp in ms after which messages are fetched
+     * @param listener   receives the result of every drop that answered successfully in time
+     */
+    void fetch(Map<URI, Long> sinceDates, Listener listener) {
+
+        BlockingQueue<Fetch> done = new LinkedBlockingQueue<>();
+        Set<Fetch> pending = new HashSet<>();
+        for (final Map.Entry<URI, Long> sinceDate : sinceDates.entrySet()) {
+            Fetch fetch = new Fetch(sinceDate.getKey(), done, new Callable<DropResult>() {
+                @Override
+                public DropResult call() throws Exception {
+                    return receiver.receive(sinceDate.getKey(), sinceDate.getValue());
+                }
+            });
+            pending.add(fetch);
+            executor.execute(fetch);
+        }
+
+        try {
+            while (!pending.isEmpty()) {
+                Fetch fetch = done.poll(nextTimeout(pending), TimeUnit.NANOSECONDS);
+                if (fetch == null) {
+                    cancelTimedOut(pending);
+                } else if (pending.remove(fetch)) {
+                    report(fetch, listener);
+                }
+            }
+        } catch (InterruptedException e) {
+            for (Fetch fetch : pending) {
+                fetch.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    void shutdown() {
+
+        executor.shutdownNow();
+    }
+
+    /**
+     * Time until the first running fetch times out. Queued fetches have not used any of their
+     * timeout yet.
+     */
+    private long nextTimeout(Set<Fetch> pending) {
+
+        long now = System.nanoTime();
+        long next = timeoutNanos;
+        for (Fetch fetch : pending) {
+            long started = fetch.started;
+            if (started != 0) {
+                next = Math.min(next, started + timeoutNanos - now);
+            }
+        }
+        return Math.max(next, 0);
+    }
+
+    private void cancelTimedOut(Set<Fetch> pending) {
+
+        long now = System.nanoTime();
+        Iterator<Fetch> iterator = pending.iterator();
+        while (iterator.hasNext()) {
+            Fetch fetch = iterator.next();
+            long started = fetch.started;
+            if (started != 0 && now - started >= timeoutNanos) {
+                Log.w(TAG, "Fetching " + fetch.uri + " timed out");
+                fetch.cancel(true);
+                iterator.remove();
+            }
+        }
+    }
+
+    private static void report(Fetch fetch, Listener listener) {
+
+        DropResult result;
+        try {
+            result = fetch.get();
+        } catch (ExecutionException e) {
+            Log.w(TAG, "Fetching " + fetch.uri + " failed", e.getCause());
+            return;
+        } catch (CancellationException | InterruptedException e) {
+            return;
+        }
+        if (result != null && result.isOk() && result.getData() != null) {
+            listener.onFetched(fetch.uri, result);
+        } else if (result != null && result.getResponseCode() != 304) {
+            Log.w(TAG, "Fetching " + fetch.uri + " failed with " + result.getResponseCode());
+        }
+    }
+
+    /**
+     * Fetch whose timeout starts when a thread picks it up, not while it waits in the queue.
+     * It puts itself into the done queue when it completes.
+     */
+    private static class Fetch extends FutureTask<DropResult> {
+
+        private final URI uri;
+        private final BlockingQueue<Fetch> done;
+        private volatile long started;
+
+        Fetch(URI uri, BlockingQueue<Fetch> done, Callable<DropResult> callable) {
+
+            super(callable);
+            this.uri = uri;
+            this.done = done;
+        }
+
+        @Override
+        public void run() {
+
+            started = System.nanoTime();
+            super.run();
+        }
+
+        @Override
+        protected void done() {
+
+            done.add(this);
+        }
+    }
+}
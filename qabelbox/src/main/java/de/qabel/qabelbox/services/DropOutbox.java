@@ -0,0 +1,144 @@
+package de.qabel.qabelbox.services;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Encrypted drop messages that are not delivered yet, one entry per drop URL.
+ * <p>
+ * Messages are stored before they are sent and removed once the drop server accepted them, so
+ * they survive the death of the process.
+ */
+class DropOutbox extends SQLiteOpenHelper {
+
+    private static final int DATABASE_VERSION = 1;
+    static final String DATABASE_NAME = "DropOutbox.db";
+    private static final String TAG = "DropOutbox";
+
+    private static final String TABLE_OUTBOX = "outbox";
+    private static final String COL_ID = "id";
+    private static final String COL_URL = "url";
+    private static final String COL_MESSAGE = "message";
+    private static final String COL_ATTEMPTS = "attempts";
+    private static final String COL_NEXT_ATTEMPT = "next_attempt";
+
+    private static final String CREATE_TABLE =
+            "CREATE TABLE IF NOT EXISTS " + TABLE_OUTBOX + " (" +
+                    COL_ID + " INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL," +
+                    COL_URL + " TEXT NOT NULL," +
+                    COL_MESSAGE + " BLOB NOT NULL," +
+                    COL_ATTEMPTS + " INTEGER NOT NULL," +
+                    COL_NEXT_ATTEMPT + " LONG NOT NULL);";
+
+    static class Entry {
+
+        final long id;
+        final String url;
+        final byte[] message;
+        int attempts;
+        long nextAttempt;
+
+        Entry(long id, String url, byte[] message, int attempts, long nextAttempt) {
+
+            this.id = id;
+            this.url = url;
+            this.message = message;
+            this.attempts = attempts;
+            this.nextAttempt = nextAttempt;
+        }
+    }
+
+    DropOutbox(Context context, String name) {
+
+        super(context, name, null, DATABASE_VERSION);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase sqLiteDatabase) {
+
+        sqLiteDatabase.execSQL(CREATE_TABLE);
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase sqLiteDatabase, int from, int to) {
+
+    }
+
+    /**
+     * Store the message of every drop URL in one transaction
+     *
+     * @param urls     drop URLs
+     * @param messages message for the drop URL at the same position
+     * @return stored entries in the same order, due immediately
+     */
+    List<Entry> add(List<String> urls, List<byte[]> messages) {
+
+        List<Entry> entries = new ArrayList<>(urls.size());
+        SQLiteDatabase database = getWritableDatabase();
+        database.beginTransaction();
+        try {
+            for (int i = 0; i < urls.size(); i++) {
+                ContentValues values = new ContentValues();
+                values.put(COL_URL, urls.get(i));
+                values.put(COL_MESSAGE, messages.get(i));
+                values.put(COL_ATTEMPTS, 0);
+                values.put(COL_NEXT_ATTEMPT, 0);
+                long id = database.insertOrThrow(TABLE_OUTBOX, null, values);
+                entries.add(new Entry(id, urls.get(i), messages.get(i), 0, 0));
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        return entries;
+    }
+
+    /**
+     * @return all entries that are not delivered yet, the earliest due first
+     */
+    List<Entry> getAll() {
+
+        List<Entry> entries = new ArrayList<>();
+        Cursor cursor = getReadableDatabase().query(TABLE_OUTBOX,
+                new String[]{COL_ID, COL_URL, COL_MESSAGE, COL_ATTEMPTS, COL_NEXT_ATTEMPT},
+                null, null, null, null, COL_NEXT_ATTEMPT + "," + COL_ID);
+        try {
+            while (cursor.moveToNext()) {
+                entries.add(new Entry(cursor.getLong(0), cursor.getString(1), cursor.getBlob(2),
+                        cursor.getInt(3), cursor.getLong(4)));
+            }
+        } finally {
+            cursor.close();
+        }
+        return entries;
+    }
+
+    /**
+     * Store the attempts and the time of the next attempt of the entry
+     */
+    void update(Entry entry) {
+
+        ContentValues values = new ContentValues();
+        values.put(COL_ATTEMPTS, entry.attempts);
+        values.put(COL_NEXT_ATTEMPT, entry.nextAttempt);
+        getWritableDatabase().update(TABLE_OUTBOX, values, COL_ID + "=?", new String[]{String.valueOf(entry.id)});
+    }
+
+    /**
+     * Remove a delivered or undeliverable entry
+     */
+    void remove(Entry entry) {
+
+        int deleted = getWritableDatabase().delete(TABLE_OUTBOX, COL_ID + "=?", new String[]{String.valueOf(entry.id)});
+        if (deleted == 0) {
+            Log.w(TAG, "entry " + entry.id + " was not in the outbox");
+        }
+    }
+}
@@ -0,0 +1,304 @@
+package de.qabel.qabelbox.services;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import de.qabel.core.drop.DropURL;
+import de.qabel.core.exceptions.QblDropInvalidURL;
+import de.qabel.core.http.HTTPResult;
+
+/**
+ * Delivers encrypted drop messages through a {@link DropOutbox}.
+ * <p>
+ * Messages are stored in the outbox before they are sent. At most {@link #MAX_PARALLEL_SENDS}
+ * messages are sent at once. The first attempts of one {@link #send(List)} are split into at most
+ * {@link #MAX_SENDS_PER_SERVER} chains per drop server, so a broadcast to contacts on one server
+ * is sent in parallel without taking every thread from the other servers. A drop that cannot be
+ * reached is retried with an exponential backoff until the drop server accepts the message or
+ * rejects it with a client error. Entries left over by an earlier process are picked up by
+ * {@link #resume()}.
+ */
+class DropSender {
+
+    private static final String TAG = "DropSender";
+    static final int MAX_PARALLEL_SENDS = 4;
+    static final int MAX_SENDS_PER_SERVER = 3;
+    static final long INITIAL_RETRY_DELAY_MS = 30 * 1000;
+    static final long MAX_RETRY_DELAY_MS = 30 * 60 * 1000;
+
+    interface Sender {
+
+        HTTPResult<?> send(DropURL dropURL, byte[] message);
+    }
+
+    /**
+     * Encrypted message for all drop URLs of one recipient
+     */
+    static class Outgoing {
+
+        final Collection<DropURL> dropURLs;
+        final byte[] message;
+        final LocalQabelService.OnSendDropMessageResult callback;
+
+        Outgoing(Collection<DropURL> dropURLs, byte[] message,
+                 @Nullable LocalQabelService.OnSendDropMessageResult callback) {
+
+            this.dropURLs = dropURLs;
+            this.message = message;
+            this.callback = callback;
+        }
+    }
+
+    private final DropOutbox outbox;
+    private final Sender sender;
+    private final long initialRetryDelayMs;
+    private final ScheduledThreadPoolExecutor executor;
+
+    DropSender(DropOutbox outbox, Sender sender) {
+
+        this(outbox, sender, MAX_PARALLEL_SENDS, INITIAL_RETRY_DELAY_MS);
+    }
+
+    DropSender(DropOutbox outbox, Sender sender, int parallelSends, long initialRetryDelayMs) {
+
+        this.outbox = outbox;
+        this.sender = sender;
+        this.initialRetryDelayMs = initialRetryDelayMs;
+        executor = new ScheduledThreadPoolExecutor(parallelSends);
+        executor.setKeepAliveTime(30, TimeUnit.SECONDS);
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Store the message for every drop URL and send it without blocking
+     *
+     * @param callback called once every drop URL accepted or rejected the message. Unreachable
+     *                 drops are retried before, so the callback can come much later, or not at
+     *                 all if the process ends first. The message stays in the outbox then.
+     */
+    void send(Collection<DropURL> dropURLs, byte[] message,
+              @Nullable LocalQabelService.OnSendDropMessageResult callback) {
+
+        send(Collections.singletonList(new Outgoing(dropURLs, message, callback)));
+    }
+
+    /**
+     * Store the messages of several recipients in one transaction and send them without blocking
+     */
+    void send(List<Outgoing> outgoing) {
+
+        Map<String, List<Delivery>> byServer = new LinkedHashMap<>();
+        for (Outgoing message : outgoing) {
+            Round round = new Round(message.dropURLs.size(), message.callback);
+            for (DropURL dropURL : message.dropURLs) {
+                URI uri = dropURL.getUri();
+                String server = uri.getScheme() + "://" + uri.getAuthority();
+                List<Delivery> deliveries = byServer.get(server);
+                if (deliveries == null) {
+                    deliveries = new ArrayList<>();
+                    byServer.put(server, deliveries);
+                }
+                deliveries.add(new Delivery(dropURL, message.message, round));
+            }
+        }
+        List<Delivery> deliveries = new ArrayList<>();
+        for (List<Delivery> serverDeliveries : byServer.values()) {
+            deliveries.addAll(serverDeliveries);
+        }
+        List<String> urls = new ArrayList<>(deliveries.size());
+        List<byte[]> messages = new ArrayList<>(deliveries.size());
+        for (Delivery delivery : deliveries) {
+            urls.add(delivery.dropURL.getUri().toString());
+            messages.add(delivery.message);
+        }
+        List<DropOutbox.Entry> entries = outbox.add(urls, messages);
+        for (int i = 0; i < deliveries.size(); i++) {
+            deliveries.get(i).entry = entries.get(i);
+        }
+        for (List<Delivery> serverDeliveries : byServer.values()) {
+            int chains = Math.min(serverDeliveries.size(), MAX_SENDS_PER_SERVER);
+            for (int i = chains; i < serverDeliveries.size(); i++) {
+                serverDeliveries.get(i - chains).next = serverDeliveries.get(i);
+            }
+            for (int i = 0; i < chains; i++) {
+                schedule(serverDeliveries.get(i), 0);
+            }
+        }
+    }
+
+    /**
+     * Schedule all messages that are still in the outbox
+     */
+    void resume() {
+
+        long now = System.currentTimeMillis();
+        for (DropOutbox.Entry entry : outbox.getAll()) {
+            DropURL dropURL;
+            try {
+                dropURL = new DropURL(entry.url);
+            } catch (URISyntaxException | QblDropInvalidURL e) {
+                Log.w(TAG, "Invalid drop URL in outbox: " + entry.url, e);
+                outbox.remove(entry);
+                continue;
+            }
+            Delivery delivery = new Delivery(dropURL, entry.message, null);
+            delivery.entry = entry;
+            schedule(delivery, Math.max(entry.nextAttempt - now, 0));
+        }
+    }
+
+    void shutdown() {
+
+        executor.shutdownNow();
+    }
+
+    long retryDelay(int attempts) {
+
+        long delay = initialRetryDelayMs << Math.min(Math.max(attempts - 1, 0), 20);
+        return Math.min(delay, Math.max(MAX_RETRY_DELAY_MS, initialRetryDelayMs));
+    }
+
+    /**
+     * Client errors are not fixed by sending the same message again
+     */
+    static boolean isPermanentFailure(int responseCode) {
+
+        return responseCode >= 400 && responseCode < 500 && responseCode != 408 && responseCode != 429;
+    }
+
+    private void schedule(Delivery delivery, long delayMs) {
+
+        try {
+            executor.schedule(delivery, delayMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // shut down, the entries stay in the outbox and are delivered after the next start
+            Log.i(TAG, "Not sending to " + delivery.dropURL + " after shutdown");
+        }
+    }
+
+    /**
+     * Sending of one message to one drop URL
+     */
+    private class Delivery implements Runnable {
+
+        private final DropURL dropURL;
+        private final byte[] message;
+        private DropOutbox.Entry entry;
+        private Round round;
+        private Delivery next;
+
+        Delivery(DropURL dropURL, byte[] message, @Nullable Round round) {
+
+            this.dropURL = dropURL;
+            this.message = message;
+            this.round = round;
+        }
+
+        @Override
+        public void run() {
+
+            Delivery following = takeNext();
+            try {
+                attempt();
+            } finally {
+                if (following != null) {
+                    schedule(following, 0);
+                }
+            }
+        }
+
+        private void attempt() {
+
+            int responseCode;
+            try {
+                responseCode = sender.send(dropURL, message).getResponseCode();
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Sending to " + dropURL + " failed", e);
+                responseCode = 0;
+            }
+            if (responseCode == 200) {
+                outbox.remove(entry);
+                report(true);
+            } else if (isPermanentFailure(responseCode)) {
+                Log.e(TAG, "Drop " + dropURL + " rejected message with " + responseCode);
+                outbox.remove(entry);
+                report(false);
+            } else {
+                entry.attempts++;
+                long delay = retryDelay(entry.attempts);
+                entry.nextAttempt = System.currentTimeMillis() + delay;
+                outbox.update(entry);
+                Log.w(TAG, "Sending to " + dropURL + " failed with " + responseCode
+                        + ", retry " + entry.attempts + " in " + delay + " ms");
+                schedule(this, delay);
+            }
+        }
+
+        /**
+         * The next delivery to the same server is started after the first attempt of this one
+         */
+        @Nullable
+        private Delivery takeNext() {
+
+            Delivery following = next;
+            next = null;
+            return following;
+        }
+
+        /**
+         * Report the final result, deliveries restored by {@link #resume()} have no caller
+         */
+        private void report(boolean delivered) {
+
+            if (round != null) {
+                round.report(dropURL, delivered);
+                round = null;
+            }
+        }
+    }
+
+    /**
+     * Final result on all drop URLs of one message
+     */
+    private static class Round {
+
+        private final Map<DropURL, Boolean> deliveryStatus = new HashMap<>();
+        private final LocalQabelService.OnSendDropMessageResult callback;
+        private int remaining;
+
+        Round(int drops, @Nullable LocalQabelService.OnSendDropMessageResult callback) {
+
+            this.remaining = drops;
+            this.callback = callback;
+            if (drops == 0 && callback != null) {
+                callback.onSendDropResult(deliveryStatus);
+            }
+        }
+
+        void report(DropURL dropURL, boolean delivered) {
+
+            Map<DropURL, Boolean> result;
+            synchronized (this) {
+                deliveryStatus.put(dropURL, delivered);
+                if (--remaining > 0 || callback == null) {
+                    return;
+                }
+                result = new HashMap<>(deliveryStatus);
+            }
+            callback.onSendDropResult(result);
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package de.qabel.qabelbox.services;
+
+/**
+ * Encrypted drop message for one of the identities from a sender that is not a contact yet.
+ * <p>
+ * The drop cursor moves past it like past every other message, so it is kept until the sender
+ * is added as a contact and then decrypted again.
+ */
+public class HeldDropMessage {
+
+    public final String senderKeyId;
+    public final byte[] cipherMessage;
+
+    public HeldDropMessage(String senderKeyId, byte[] cipherMessage) {
+
+        this.senderKeyId = senderKeyId;
+        this.cipherMessage = cipherMessage;
+    }
+}
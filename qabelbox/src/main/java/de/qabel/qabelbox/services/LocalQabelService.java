@@ -21,40 +21,45 @@ import org.spongycastle.util.encoders.Hex;
 
 import java.io.FileNotFoundException;
 import java.net.URI;
-import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingDeque;
 
 import de.qabel.core.config.Contact;
 import de.qabel.core.config.Contacts;
 import de.qabel.core.config.Identities;
 import de.qabel.core.config.Identity;
-import de.qabel.core.crypto.AbstractBinaryDropMessage;
 import de.qabel.core.crypto.BinaryDropMessageV0;
 import de.qabel.core.crypto.CryptoUtils;
 import de.qabel.core.drop.DropMessage;
 import de.qabel.core.drop.DropURL;
-import de.qabel.core.exceptions.QblDropInvalidMessageSizeException;
 import de.qabel.core.exceptions.QblDropPayloadSizeException;
 import de.qabel.core.exceptions.QblInvalidEncryptionKeyException;
-import de.qabel.core.exceptions.QblSpoofedSenderException;
-import de.qabel.core.exceptions.QblVersionMismatchException;
-import de.qabel.core.http.DropHTTP;
 import de.qabel.core.http.HTTPResult;
 import de.qabel.qabelbox.R;
 import de.qabel.qabelbox.activities.MainActivity;
+import de.qabel.qabelbox.communication.DropPoster;
+import de.qabel.qabelbox.communication.DropReceiver;
+import de.qabel.qabelbox.communication.DropResult;
+import de.qabel.qabelbox.config.AppSettings;
+import de.qabel.qabelbox.crypto.CachingKeyPair;
+import de.qabel.qabelbox.crypto.SharedSecretCache;
 import de.qabel.qabelbox.exceptions.QblStorageEntityExistsException;
 import de.qabel.qabelbox.persistence.AndroidPersistence;
 import de.qabel.qabelbox.persistence.QblSQLiteParams;
 import de.qabel.qabelbox.providers.DocumentIdParser;
 import de.qabel.qabelbox.storage.BoxFile;
 import de.qabel.qabelbox.storage.BoxUploadingFile;
+import de.qabel.qabelbox.storage.BoxVolume;
+import de.qabel.qabelbox.storage.BoxVolumeRegistry;
 import de.qabel.qabelbox.storage.TransferManager;
 
 public class LocalQabelService extends Service {
@@ -69,19 +74,36 @@ public class LocalQabelService extends Service {
     private static final String PREF_DEVICE_ID = "PREF_DEVICE_ID";
     private static final int NUM_BYTES_DEVICE_ID = 16;
     private static final int UPLOAD_NOTIFICATION_ID = 162134;
+    private static final int CRYPTO_THREADS = Runtime.getRuntime().availableProcessors();
 
     private final IBinder mBinder = new LocalBinder();
 
     protected static final String DB_NAME = "qabel-service";
     protected static final int DB_VERSION = 1;
     protected AndroidPersistence persistence;
-    private DropHTTP dropHTTP;
+    private DropPoster dropPoster;
+    private DropReceiver dropReceiver;
+    private DropFetcher dropFetcher;
+    private DropOutbox dropOutbox;
+    private DropSender dropSender;
+    private ExecutorService cryptoExecutor;
+    private SharedSecretCache sharedSecretCache;
     private HashMap<String, Map<String, BoxUploadingFile>> pendingUploads;
     private Queue<BoxUploadingFile> uploadingQueue;
     private Map<String, Map<String, BoxFile>> cachedFinishedUploads;
     private DocumentIdParser documentIdParser;
+    private BoxVolumeRegistry volumeRegistry;
+    private AppSettings appSettings;
     private Context self;
 
+    private final SharedPreferences.OnSharedPreferenceChangeListener settingsListener =
+            new SharedPreferences.OnSharedPreferenceChangeListener() {
+                @Override
+                public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+                    volumeRegistry.setSegmentedUploads(appSettings.isSegmentedUploadsEnabled());
+                }
+            };
+
     SharedPreferences sharedPreferences;
 
     protected void setLastActiveIdentityID(String identityID) {
@@ -118,6 +140,19 @@ public class LocalQabelService extends Service {
 
     public void deleteIdentity(Identity identity) {
         persistence.removeEntity(identity.getPersistenceID(), Identity.class);
+        volumeRegistry.delete(identity.getPrimaryKeyPair(), identity.getPrefixes());
+        sharedSecretCache.clear();
+    }
+
+    /**
+     * Get the shared BoxVolume of an identity for the given prefix
+     *
+     * @param identity owner of the volume
+     * @param prefix   prefix of the volume
+     * @return long lived volume, closed when the identity is deleted
+     */
+    public BoxVolume getVolume(Identity identity, String prefix) {
+        return volumeRegistry.get(identity.getPrimaryKeyPair(), prefix, getDeviceID());
     }
 
     /**
@@ -225,53 +260,63 @@ public class LocalQabelService extends Service {
         void onSendDropResult(Map<DropURL, Boolean> deliveryStatus);
     }
 
+    public interface OnSendDropMessagesResult {
+        void onSendDropResult(Map<Contact, Map<DropURL, Boolean>> deliveryStatus);
+    }
+
     /**
-     * Sends {@link DropMessage} to a {@link Contact} in a new thread. Returns without blocking.
+     * Stores the encrypted {@link DropMessage} in the outbox and sends it to all drops of a
+     * {@link Contact} in the background. Returns without blocking on the network, but writes the
+     * outbox database, so it should not be called on the UI thread. Drops that cannot be reached
+     * are retried until the message is delivered, also after a restart.
      *
      * @param dropMessage        {@link DropMessage} to send.
      * @param recipient          {@link Contact} to send {@link DropMessage} to.
      * @param dropResultCallback Callback to Map<DropURL, Boolean> deliveryStatus which contains
-     *                           sending status to DropURLs of the recipient. Can be null if status is irrelevant.
+     *                           whether each DropURL of the recipient accepted the message. It is
+     *                           called once every drop accepted or rejected the message, which can
+     *                           take long while a drop is unreachable. The message is queued when
+     *                           this method returns, so callers must not treat a late callback as
+     *                           a failure. Can be null if status is irrelevant.
      * @throws QblDropPayloadSizeException
      */
     public void sendDropMessage(final DropMessage dropMessage, final Contact recipient,
                                 final Identity identity,
                                 @Nullable final OnSendDropMessageResult dropResultCallback)
             throws QblDropPayloadSizeException {
-        new Thread(new Runnable() {
-            final BinaryDropMessageV0 binaryMessage = new BinaryDropMessageV0(dropMessage);
-            final byte[] messageByteArray = binaryMessage.assembleMessageFor(recipient, identity);
-            HashMap<DropURL, Boolean> deliveryStatus = new HashMap<>();
-
-            @Override
-            public void run() {
-                if (recipient.getDropUrls().size() == 0) {
-                    Log.e(TAG, "no dropurls in recipient");
-                }
-                for (DropURL dropURL : recipient.getDropUrls()) {
-                    HTTPResult<?> dropResult = dropHTTPsend(dropURL, messageByteArray);
-                    if (dropResult.getResponseCode() == 200) {
-                        deliveryStatus.put(dropURL, true);
-                    } else {
-                        deliveryStatus.put(dropURL, false);
-                    }
-                }
-                if (dropResultCallback != null) {
-                    dropResultCallback.onSendDropResult(deliveryStatus);
-                }
-            }
-        }).start();
+        BinaryDropMessageV0 binaryMessage = new BinaryDropMessageV0(dropMessage);
+        byte[] messageByteArray = binaryMessage.assembleMessageFor(recipient,
+                CachingKeyPair.withCachedSecrets(identity, Collections.singleton(recipient), sharedSecretCache));
+        if (recipient.getDropUrls().size() == 0) {
+            Log.e(TAG, "no dropurls in recipient");
+        }
+        dropSender.send(recipient.getDropUrls(), messageByteArray, dropResultCallback);
     }
 
     /**
-     * Send DropMessages via DropHTTP. Method extracted to mock send in LocalQabelServiceTester.
+     * Sends one {@link DropMessage} to many {@link Contact}s. The message is encrypted for the
+     * recipients in parallel and delivered through the outbox like
+     * {@link #sendDropMessage(DropMessage, Contact, Identity, OnSendDropMessageResult)}.
+     * Returns without blocking.
      *
-     * @param dropURL DropURL to send DropMessage to.
-     * @param message Encrypted DropMessage
-     * @return
+     * @param dropMessage        {@link DropMessage} to send.
+     * @param recipients         {@link Contact}s to send {@link DropMessage} to.
+     * @param dropResultCallback Callback with the final sending status of the DropURLs of every
+     *                           recipient, called once all recipients are done. Can be null.
+     * @throws QblDropPayloadSizeException
      */
+    public void sendDropMessage(DropMessage dropMessage, Collection<Contact> recipients,
+                                Identity identity,
+                                @Nullable OnSendDropMessagesResult dropResultCallback)
+            throws QblDropPayloadSizeException {
+        BinaryDropMessageV0 binaryMessage = new BinaryDropMessageV0(dropMessage);
+        Identity sender = CachingKeyPair.withCachedSecrets(identity, recipients, sharedSecretCache);
+        new DropFanOut(binaryMessage, sender, new ArrayList<>(recipients), dropSender, dropResultCallback)
+                .start(cryptoExecutor, CRYPTO_THREADS);
+    }
+
     HTTPResult<?> dropHTTPsend(DropURL dropURL, byte[] message) {
-        return dropHTTP.send(dropURL.getUri(), message);
+        return dropPoster.send(dropURL.getUri(), message);
     }
 
     /**
@@ -280,14 +325,13 @@ public class LocalQabelService extends Service {
      * @return Retrieved, decrypted DropMessages.
      */
     public Collection<DropMessage> retrieveDropMessages(long sinceDate) {
-        Collection<DropMessage> allMessages = new ArrayList<>();
+        Map<URI, Long> sinceDates = new LinkedHashMap<>();
         for (Identity identity : getIdentities().getIdentities()) {
             for (DropURL dropUrl : identity.getDropUrls()) {
-                Collection<DropMessage> results = this.retrieveDropMessages(dropUrl.getUri(), sinceDate);
-                allMessages.addAll(results);
+                sinceDates.put(dropUrl.getUri(), sinceDate);
             }
         }
-        return allMessages;
+        return retrieveDropMessages(sinceDates, null, null);
     }
 
     /**
@@ -296,14 +340,131 @@ public class LocalQabelService extends Service {
      * @return Retrieved, decrypted DropMessages.
      */
     public Collection<DropMessage> retrieveDropMessages(Identity identity, long sinceDate) {
-        Collection<DropMessage> allMessages = new ArrayList<>();
-
+        Map<URI, Long> sinceDates = new LinkedHashMap<>();
         for (DropURL dropUrl : identity.getDropUrls()) {
-            Collection<DropMessage> results = this.retrieveDropMessages(dropUrl.getUri(), sinceDate);
-            allMessages.addAll(results);
+            sinceDates.put(dropUrl.getUri(), sinceDate);
+        }
+        return retrieveDropMessages(sinceDates, null, identity);
+    }
+
+    /**
+     * Retrieves the DropMessages of an Identity that arrived after the last retrieval.
+     * <p>
+     * The cursors hold the Last-Modified time the drop server reported for each drop. Drops
+     * without a cursor are retrieved completely. Afterwards the cursors are advanced for every
+     * drop that answered and cursors of drops the identity no longer has are removed.
+     *
+     * @param cursors Last-Modified time per drop URI, updated in place
+     * @return Retrieved, decrypted DropMessages.
+     */
+    public Collection<DropMessage> retrieveDropMessages(Identity identity, Map<URI, Long> cursors) {
+        return retrieveDropMessages(sinceDates(identity, cursors), cursors, identity);
+    }
+
+    /**
+     * Retrieves the DropMessages of an Identity that arrived after the last retrieval and
+     * reports the messages of every drop as soon as it answered, so a slow drop does not hold
+     * back the others. Returns once every drop answered or timed out.
+     * <p>
+     * Cursors of drops the identity no longer has are removed. The listener advances the cursor
+     * of a drop after it stored its messages and the held messages of unknown senders, which
+     * {@link #decryptHeldDropMessages(Collection)} decrypts once the senders are contacts.
+     *
+     * @param cursors  Last-Modified time per drop URI
+     * @param listener called on the calling thread for every drop that answered
+     */
+    public void retrieveDropMessages(Identity identity, Map<URI, Long> cursors,
+                                     OnDropMessagesRetrieved listener) {
+        fetchDropMessages(sinceDates(identity, cursors), identity, listener);
+    }
 
+    public interface OnDropMessagesRetrieved {
+        /**
+         * @param drop         drop that answered
+         * @param messages       decrypted messages of the drop
+         * @param unknownSenders messages of the drop from senders that are no contacts yet
+         * @param lastModified   Last-Modified time the drop reported, 0 if it reported none
+         */
+        void onDropMessagesRetrieved(URI drop, Collection<DropMessage> messages,
+                                     Collection<HeldDropMessage> unknownSenders, long lastModified);
+    }
+
+    /**
+     * Decrypts held messages again with the current contacts of the active identity
+     *
+     * @return messages whose senders are contacts by now
+     */
+    public Collection<DropMessage> decryptHeldDropMessages(Collection<HeldDropMessage> heldMessages) {
+        List<byte[]> cipherMessages = new ArrayList<>(heldMessages.size());
+        for (HeldDropMessage heldMessage : heldMessages) {
+            cipherMessages.add(heldMessage.cipherMessage);
         }
-        return allMessages;
+        return decryptDropMessages(cipherMessages, getActiveIdentity());
+    }
+
+    private static Map<URI, Long> sinceDates(Identity identity, Map<URI, Long> cursors) {
+        Map<URI, Long> sinceDates = new LinkedHashMap<>();
+        for (DropURL dropUrl : identity.getDropUrls()) {
+            Long cursor = cursors.get(dropUrl.getUri());
+            sinceDates.put(dropUrl.getUri(), cursor == null ? 0L : cursor);
+        }
+        cursors.keySet().retainAll(sinceDates.keySet());
+        return sinceDates;
+    }
+
+    /**
+     * Fetches the drops concurrently. Drops that fail or time out are skipped, so the messages
+     * of all other drops are still returned. Messages of unknown senders are not returned.
+     *
+     * @param cursors   receives the Last-Modified time of every drop that reported one, may be null
+     * @param recipient identity the drops belong to, null if they belong to several identities
+     * @return Retrieved, decrypted DropMessages.
+     */
+    private Collection<DropMessage> retrieveDropMessages(Map<URI, Long> sinceDates,
+                                                         @Nullable final Map<URI, Long> cursors,
+                                                         @Nullable Identity recipient) {
+        final List<DropMessage> messages = new ArrayList<>();
+        fetchDropMessages(sinceDates, recipient, new OnDropMessagesRetrieved() {
+            @Override
+            public void onDropMessagesRetrieved(URI drop, Collection<DropMessage> dropMessages,
+                                                Collection<HeldDropMessage> unknownSenders,
+                                                long lastModified) {
+                messages.addAll(dropMessages);
+                if (cursors != null && lastModified > 0) {
+                    cursors.put(drop, lastModified);
+                }
+            }
+        });
+        return messages;
+    }
+
+    /**
+     * Fetches the drops concurrently and decrypts the messages of every drop as soon as it
+     * answered. Identities and contacts are loaded once, for the first drop with messages.
+     */
+    private void fetchDropMessages(Map<URI, Long> sinceDates, @Nullable final Identity recipient,
+                                   final OnDropMessagesRetrieved listener) {
+        dropFetcher.fetch(sinceDates, new DropFetcher.Listener() {
+            private DropDecryptor decryptor;
+
+            @Override
+            public void onFetched(URI uri, DropResult result) {
+                List<byte[]> cipherMessages = new ArrayList<>(result.getData());
+                Collection<DropMessage> messages;
+                Collection<HeldDropMessage> unknownSenders;
+                if (cipherMessages.isEmpty()) {
+                    messages = new ArrayList<>();
+                    unknownSenders = new ArrayList<>();
+                } else {
+                    if (decryptor == null) {
+                        decryptor = createDecryptor(recipient);
+                    }
+                    messages = decryptor.decrypt(cipherMessages, cryptoExecutor, CRYPTO_THREADS);
+                    unknownSenders = decryptor.takeUnknownSenders();
+                }
+                listener.onDropMessagesRetrieved(uri, messages, unknownSenders, result.getLastModified());
+            }
+        });
     }
 
     /**
@@ -314,67 +475,53 @@ public class LocalQabelService extends Service {
      */
     public Collection<DropMessage> retrieveDropMessages(URI uri, long sinceDate) {
         HTTPResult<Collection<byte[]>> cipherMessages = getDropMessages(uri, sinceDate);
-        Collection<DropMessage> plainMessages = new ArrayList<>();
-
-        List<Contact> ccc = new ArrayList<>(getContacts().getContacts());
-        Collections.shuffle(ccc, new SecureRandom());
-
-        for (byte[] cipherMessage : cipherMessages.getData()) {
-            AbstractBinaryDropMessage binMessage;
-            byte binaryFormatVersion = cipherMessage[0];
-
-            switch (binaryFormatVersion) {
-                case 0:
-                    try {
-                        binMessage = new BinaryDropMessageV0(cipherMessage);
-                    } catch (QblVersionMismatchException e) {
-                        LOGGER.error("Version mismatch in binary drop message", e);
-                        throw new RuntimeException("Version mismatch should not happen", e);
-                    } catch (QblDropInvalidMessageSizeException e) {
-                        LOGGER.info("Binary drop message version 0 with unexpected size discarded.");
-                        // Invalid message uploads may happen with malicious intent
-                        // or by broken clients. Skip.
-                        continue;
-                    }
-                    break;
-                default:
-                    LOGGER.warn("Unknown binary drop message version " + binaryFormatVersion);
-                    // cannot handle this message -> skip
-                    continue;
-            }
-            for (Identity identity : getIdentities().getIdentities()) {
-                DropMessage dropMessage;
-                try {
-                    dropMessage = binMessage.disassembleMessage(identity);
-                } catch (QblSpoofedSenderException e) {
-                    //TODO: Notify the user about the spoofed message
-                    break;
-                }
-                if (dropMessage != null) {
-                    for (Contact c : ccc) {
-                        if (c.getKeyIdentifier().equals(dropMessage.getSenderKeyId())) {
-                            if (dropMessage.registerSender(c)) {
-                                plainMessages.add(dropMessage);
-                                break;
-                            }
-                        }
-                    }
-                    break;
-                }
+        if (cipherMessages.getData() == null) {
+            return new ArrayList<>();
+        }
+        return decryptDropMessages(new ArrayList<>(cipherMessages.getData()), null);
+    }
+
+    /**
+     * Decrypts the messages with identities and contacts loaded once for the whole batch
+     *
+     * @param recipient identity that is tried first, null to try all in any order
+     */
+    private Collection<DropMessage> decryptDropMessages(List<byte[]> cipherMessages,
+                                                        @Nullable Identity recipient) {
+        if (cipherMessages.isEmpty()) {
+            return new ArrayList<>();
+        }
+        return createDecryptor(recipient).decrypt(cipherMessages, cryptoExecutor, CRYPTO_THREADS);
+    }
+
+    /**
+     * Create a decryptor with identities and contacts loaded once for a whole batch
+     *
+     * @param recipient identity that is tried first, null to try all in any order
+     */
+    private DropDecryptor createDecryptor(@Nullable Identity recipient) {
+        Collection<Contact> contacts = getContacts().getContacts();
+        List<Identity> identities = new ArrayList<>();
+        for (Identity identity : getIdentities().getIdentities()) {
+            Identity caching = CachingKeyPair.withCachedSecrets(identity, contacts, sharedSecretCache);
+            if (identity.equals(recipient)) {
+                identities.add(0, caching);
+            } else {
+                identities.add(caching);
             }
         }
-        return plainMessages;
+        return new DropDecryptor(identities, contacts);
     }
 
     /**
-     * Receives DropMessages via DropHTTP. Method extracted to mock receive in LocalQabelServiceTester.
+     * Receives DropMessages via DropReceiver. Method extracted to mock receive in LocalQabelServiceTester.
      *
      * @param uri URI to receive DropMessages from
-     * @return HTTPResult with collection of encrypted DropMessages.
+     * @return DropResult with collection of encrypted DropMessages.
      */
-    HTTPResult<Collection<byte[]>> getDropMessages(URI uri, long sinceDate) {
+    DropResult getDropMessages(URI uri, long sinceDate) {
         Log.v(TAG, "retrieveDropMessage: " + uri.toString() + " at: " + sinceDate);
-        return dropHTTP.receiveMessages(uri, sinceDate);
+        return dropReceiver.receiveMessages(uri, sinceDate);
     }
 
     public class LocalBinder extends Binder {
@@ -520,15 +667,34 @@ public class LocalQabelService extends Service {
     public void onCreate() {
         super.onCreate();
         Log.i(TAG, "LocalQabelService created");
-        dropHTTP = new DropHTTP();
+        dropPoster = new DropPoster();
+        dropReceiver = new DropReceiver();
+        cryptoExecutor = Executors.newFixedThreadPool(CRYPTO_THREADS);
+        sharedSecretCache = new SharedSecretCache();
+        dropFetcher = new DropFetcher(new DropFetcher.Receiver() {
+            @Override
+            public DropResult receive(URI uri, long sinceDate) {
+                return getDropMessages(uri, sinceDate);
+            }
+        });
         initSharedPreferences();
         initAndroidPersistence();
+        initDropSender();
         pendingUploads = new HashMap<>();
         documentIdParser = new DocumentIdParser();
         cachedFinishedUploads = Collections.synchronizedMap(new HashMap<String, Map<String, BoxFile>>());
         uploadingQueue = new LinkedBlockingDeque<>();
+        volumeRegistry = createVolumeRegistry();
+        appSettings = new AppSettings(getApplicationContext());
+        volumeRegistry.setSegmentedUploads(appSettings.isSegmentedUploadsEnabled());
+        appSettings.registerListener(settingsListener);
         self = this;
     }
+
+    protected BoxVolumeRegistry createVolumeRegistry() {
+        return new BoxVolumeRegistry(getApplicationContext());
+    }
+
     protected void initAndroidPersistence() {
        initAndroidPersistence(DB_NAME);
     }
@@ -544,6 +710,22 @@ public class LocalQabelService extends Service {
         this.persistence = androidPersistence;
     }
 
+    protected void initDropSender() {
+        initDropSender(DropOutbox.DATABASE_NAME);
+    }
+
+    protected void initDropSender(String outboxName) {
+        dropOutbox = new DropOutbox(getApplicationContext(), outboxName);
+        dropSender = new DropSender(dropOutbox, new DropSender.Sender() {
+            @Override
+            public HTTPResult<?> send(DropURL dropURL, byte[] message) {
+                return dropHTTPsend(dropURL, message);
+            }
+        });
+        // messages of an earlier process that are not delivered yet
+        dropSender.resume();
+    }
+
     protected void initSharedPreferences() {
         sharedPreferences = getSharedPreferences(this.getClass().getCanonicalName(), MODE_PRIVATE);
         if (!sharedPreferences.getBoolean(PREF_DEVICE_ID_CREATED, false)) {
@@ -561,6 +743,13 @@ public class LocalQabelService extends Service {
 
     @Override
     public void onDestroy() {
+        appSettings.unregisterListener(settingsListener);
+        volumeRegistry.clear();
+        dropFetcher.shutdown();
+        dropSender.shutdown();
+        dropOutbox.close();
+        cryptoExecutor.shutdownNow();
+        sharedSecretCache.clear();
         super.onDestroy();
     }
 
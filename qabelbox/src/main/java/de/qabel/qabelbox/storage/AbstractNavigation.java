@@ -6,15 +6,22 @@ import android.support.annotation.Nullable;
 import android.util.Log;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CountingOutputStream;
 import org.apache.commons.lang3.NotImplementedException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.spongycastle.crypto.InvalidCipherTextException;
+import org.spongycastle.crypto.engines.AESEngine;
+import org.spongycastle.crypto.modes.GCMBlockCipher;
+import org.spongycastle.crypto.params.AEADParameters;
 import org.spongycastle.crypto.params.KeyParameter;
 
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -42,6 +49,10 @@ public abstract class AbstractNavigation implements BoxNavigation {
     private static final Logger logger = LoggerFactory.getLogger(AbstractNavigation.class.getName());
     public static final String BLOCKS_PREFIX = "blocks/";
     private static final String TAG = "AbstractNavigation";
+    private static final int NONCE_SIZE_BYTE = 12;
+    private static final int MAC_SIZE_BIT = 128;
+    private static final int STREAM_BUFFER_SIZE = 8192;
+    private static final int NONCE_PREFIX_SIZE_BYTE = 8;
     private final FileCache cache;
     private final Context context;
     protected final URLs urls;
@@ -188,27 +199,57 @@ public abstract class AbstractNavigation implements BoxNavigation {
         } else {
             currentPath = getParentPath();
         }
+        // Target is root, using DirectoryMetadata from BoxVolume
+        if (target.key == null && target.name.equals("")) {
+            dm = boxVolume.getDirectoryMetadata();
+            dmKey = null;
+        } else {
+            dm = downloadMetadata(target, cryptoUtils, dm.getTempDir());
+            dmKey = target.key;
+        }
+        boxVolume.indexFolder(currentPath, dm);
+    }
+
+    /**
+     * Download and decrypt the metadata of a subfolder without navigating to it.
+     * Safe to call from multiple threads if every thread uses its own CryptoUtils.
+     *
+     * @param target      subfolder
+     * @param cryptoUtils crypto instance of the calling thread
+     * @param tempDir     directory for the decrypted database
+     * @return metadata of the subfolder
+     * @throws QblStorageException if the metadata could not be downloaded or decrypted
+     */
+    DirectoryMetadata downloadMetadata(BoxFolder target, CryptoUtils cryptoUtils, File tempDir)
+            throws QblStorageException {
+        File indexDl = blockingDownload(prefix, target.ref, null);
         try {
-            // Target is root, using DirectoryMetadata from BoxVolume
-            if (target.key == null && target.name.equals("")) {
-                dm = boxVolume.getDirectoryMetadata();
-                dmKey = null;
-            } else {
-                File indexDl = blockingDownload(prefix, target.ref, null);
-                File tmp = File.createTempFile("dir", "db", dm.getTempDir());
-                KeyParameter keyParameter = new KeyParameter(target.key);
-                if (cryptoUtils.decryptFileAuthenticatedSymmetricAndValidateTag(
-                        new FileInputStream(indexDl), tmp, keyParameter)) {
-                    dm = DirectoryMetadata.openDatabase(
-                            tmp, deviceId, target.ref, this.dm.getTempDir());
-                    dmKey = target.key;
-                }
+            File tmp = File.createTempFile("dir", "db", tempDir);
+            KeyParameter keyParameter = new KeyParameter(target.key);
+            if (!cryptoUtils.decryptFileAuthenticatedSymmetricAndValidateTag(
+                    new FileInputStream(indexDl), tmp, keyParameter)) {
+                throw new QblStorageException("Could not decrypt metadata of " + target.name);
             }
+            return DirectoryMetadata.openDatabase(tmp, deviceId, target.ref, tempDir);
         } catch (IOException | InvalidKeyException e) {
             throw new QblStorageException(e);
+        } finally {
+            indexDl.delete();
         }
     }
 
+    File getTempDir() {
+        return dm.getTempDir();
+    }
+
+    void indexFolder(String path, DirectoryMetadata dm) {
+        boxVolume.indexFolder(path, dm);
+    }
+
+    void flushIndex() {
+        boxVolume.getIndex().flush();
+    }
+
     @Override
     public void commit() throws QblStorageException {
         byte[] version = dm.getVersion();
@@ -240,6 +281,8 @@ public abstract class AbstractNavigation implements BoxNavigation {
         // TODO: make a test fail without these
         deleteQueue.clear();
         updatedFiles.clear();
+        boxVolume.indexFolder(currentPath, dm);
+        boxVolume.notifyCommit(currentPath);
     }
 
     protected abstract DirectoryMetadata reloadMetadata() throws QblStorageException;
@@ -281,6 +324,11 @@ public abstract class AbstractNavigation implements BoxNavigation {
 
     protected abstract void uploadDirectoryMetadata() throws QblStorageException;
 
+    @Override
+    public byte[] getVersion() throws QblStorageException {
+        return dm.getVersion();
+    }
+
     @Override
     public BoxNavigation navigate(BoxExternalReference target) {
         throw new NotImplementedException("Externals are not yet implemented!");
@@ -369,7 +417,8 @@ public abstract class AbstractNavigation implements BoxNavigation {
         KeyParameter key = cryptoUtils.generateSymmetricKey();
         String block = UUID.randomUUID().toString();
         BoxFile boxFile = new BoxFile(prefix, block, name, null, 0L, key.getKey());
-        SimpleEntry<Long, Long> mtimeAndSize = uploadEncrypted(content, key, prefix, BLOCKS_PREFIX + block, boxTransferListener);
+        SimpleEntry<Long, Long> mtimeAndSize = uploadEncrypted(content, key, prefix, BLOCKS_PREFIX + block,
+                boxTransferListener, boxVolume.isSegmentedUploads());
         boxFile.mtime = mtimeAndSize.getKey();
         boxFile.size = mtimeAndSize.getValue();
         // Overwrite = delete old file, uploadAndDeleteLocalfile new file
@@ -390,13 +439,28 @@ public abstract class AbstractNavigation implements BoxNavigation {
     protected SimpleEntry<Long, Long> uploadEncrypted(
             InputStream content, KeyParameter key, String prefix, String block,
             @Nullable TransferManager.BoxTransferListener boxTransferListener) throws QblStorageException {
+        return uploadEncrypted(content, key, prefix, block, boxTransferListener, false);
+    }
+
+    /**
+     * @param segmented use the {@link SegmentedBlockCipher} format instead of a single stream
+     */
+    protected SimpleEntry<Long, Long> uploadEncrypted(
+            InputStream content, KeyParameter key, String prefix, String block,
+            @Nullable TransferManager.BoxTransferListener boxTransferListener,
+            boolean segmented) throws QblStorageException {
         try {
             File tempFile = File.createTempFile("uploadAndDeleteLocalfile", "up", dm.getTempDir());
             OutputStream outputStream = new FileOutputStream(tempFile);
-            if (!cryptoUtils.encryptStreamAuthenticatedSymmetric(content, outputStream, key, null)) {
+            if (segmented) {
+                SegmentedBlockCipher.forEncryption(key, SegmentedBlockCipher.DEFAULT_SEGMENT_SIZE,
+                        cryptoUtils.getRandomBytes(NONCE_PREFIX_SIZE_BYTE)).encrypt(content, outputStream);
+                content.close();
+            } else if (!cryptoUtils.encryptStreamAuthenticatedSymmetric(content, outputStream, key, null)) {
                 throw new QblStorageException("Encryption failed");
             }
             outputStream.flush();
+            outputStream.close();
             Long size = tempFile.length();
             Long mtime = blockingUpload(prefix, block, tempFile, boxTransferListener);
             return new SimpleEntry<>(mtime, size);
@@ -420,6 +484,166 @@ public abstract class AbstractNavigation implements BoxNavigation {
         }
     }
 
+    @Override
+    public void download(BoxFile boxFile, final OutputStream out,
+                         @Nullable final TransferManager.BoxTransferListener boxTransferListener) throws QblStorageException {
+        final KeyParameter key = new KeyParameter(boxFile.key);
+        File cached = cache.get(boxFile);
+        cache.close();
+        if (cached != null) {
+            CountingOutputStream written = new CountingOutputStream(out);
+            try {
+                decryptStream(key, new FileInputStream(cached), written);
+                if (boxTransferListener != null) {
+                    boxTransferListener.onProgressChanged(cached.length(), cached.length());
+                    boxTransferListener.onFinished();
+                }
+                return;
+            } catch (IOException e) {
+                cache.remove(boxFile);
+                cache.close();
+                if (written.getByteCount() > 0) {
+                    throw new QblStorageException("Could not decrypt cached file", e);
+                }
+                // nothing reached the reader yet, so the block can be fetched again
+                logger.warn("Could not decrypt cached block " + boxFile.block + ", downloading it", e);
+            }
+        }
+        logger.info("Streaming block: " + boxFile.block);
+        final File download = transferManager.createTempFile();
+        int id = transferManager.downloadStream(boxFile.prefix, BLOCKS_PREFIX + boxFile.block,
+                new TransferManager.BoxStreamHandler() {
+                    @Override
+                    public void onStream(InputStream inputStream, long contentLength) throws IOException {
+                        OutputStream cacheOut = new FileOutputStream(download);
+                        try {
+                            decryptStream(key, new CopyingInputStream(inputStream, cacheOut,
+                                    contentLength, boxTransferListener), out);
+                        } finally {
+                            cacheOut.close();
+                        }
+                    }
+                });
+        boolean success = transferManager.waitFor(id);
+        if (boxTransferListener != null) {
+            boxTransferListener.onFinished();
+        }
+        if (!success) {
+            download.delete();
+            throw new QblStorageNotFound("Streaming failed. Prefix: " + boxFile.prefix + " Block: " + boxFile.block);
+        }
+        cache.put(boxFile, download);
+        cache.close();
+    }
+
+    /**
+     * Decrypt a single stream block written by {@link CryptoUtils#encryptStreamAuthenticatedSymmetric}
+     * or a block in the {@link SegmentedBlockCipher} format.
+     * <p>
+     * Segments are written as soon as they are authenticated. A single stream block is
+     * authenticated only at its end, so it is decrypted into a temporary file first and written
+     * after the tag matched. Nothing unauthenticated ever reaches the output.
+     *
+     * @param key symmetric file key
+     * @param in  encrypted block, closed afterwards
+     * @param out receives the plaintext
+     */
+    private void decryptStream(KeyParameter key, InputStream in, OutputStream out) throws IOException {
+        File temp = null;
+        try {
+            DataInputStream input = new DataInputStream(in);
+            byte[] header = new byte[SegmentedBlockCipher.HEADER_SIZE];
+            input.readFully(header, 0, NONCE_SIZE_BYTE);
+            if (SegmentedBlockCipher.isSegmented(header)) {
+                input.readFully(header, NONCE_SIZE_BYTE, header.length - NONCE_SIZE_BYTE);
+                SegmentedBlockCipher.fromHeader(key, header).decrypt(input, out);
+                return;
+            }
+            byte[] nonce = Arrays.copyOf(header, NONCE_SIZE_BYTE);
+            GCMBlockCipher cipher = new GCMBlockCipher(new AESEngine());
+            cipher.init(false, new AEADParameters(key, MAC_SIZE_BIT, nonce));
+            byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+            // the cipher holds back the tag and at most one block of plaintext
+            byte[] plain = new byte[STREAM_BUFFER_SIZE + cipher.getUnderlyingCipher().getBlockSize()];
+            temp = File.createTempFile("decrypt", "down", dm.getTempDir());
+            OutputStream unverified = new FileOutputStream(temp);
+            try {
+                int read;
+                while ((read = input.read(buffer)) > 0) {
+                    int length = cipher.processBytes(buffer, 0, read, plain, 0);
+                    unverified.write(plain, 0, length);
+                }
+                int length = cipher.doFinal(plain, 0);
+                unverified.write(plain, 0, length);
+            } finally {
+                unverified.close();
+            }
+            InputStream verified = new FileInputStream(temp);
+            try {
+                int read;
+                while ((read = verified.read(buffer)) > 0) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                verified.close();
+            }
+            out.flush();
+        } catch (InvalidCipherTextException | IllegalArgumentException e) {
+            throw new IOException("Decryption failed", e);
+        } finally {
+            in.close();
+            if (temp != null && !temp.delete()) {
+                logger.warn("Could not delete temporary file " + temp);
+            }
+        }
+    }
+
+    /**
+     * Copies the raw cipher text of a stream into the file cache and reports the progress.
+     */
+    private static class CopyingInputStream extends FilterInputStream {
+        private final OutputStream copy;
+        private final long total;
+        @Nullable
+        private final TransferManager.BoxTransferListener listener;
+        private long current;
+
+        CopyingInputStream(InputStream in, OutputStream copy, long total,
+                           @Nullable TransferManager.BoxTransferListener listener) {
+            super(in);
+            this.copy = copy;
+            this.total = total;
+            this.listener = listener;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int data = super.read();
+            if (data != -1) {
+                copy.write(data);
+                progress(1);
+            }
+            return data;
+        }
+
+        @Override
+        public int read(@NonNull byte[] buffer, int offset, int length) throws IOException {
+            int count = super.read(buffer, offset, length);
+            if (count > 0) {
+                copy.write(buffer, offset, count);
+                progress(count);
+            }
+            return count;
+        }
+
+        private void progress(int count) {
+            current += count;
+            if (listener != null) {
+                listener.onProgressChanged(current, total > 0 ? total : current);
+            }
+        }
+    }
+
     /**
      * Creates and uploads a FileMetadata object for a BoxFile. FileMetadata location is written to BoxFile.meta
      * and encryption key to BoxFile.metakey. If BoxFile.meta or BoxFile.metakey is not null, BoxFile will not be
@@ -556,7 +780,14 @@ public abstract class AbstractNavigation implements BoxNavigation {
         KeyParameter key = new KeyParameter(boxFileKey);
         try {
             File temp = File.createTempFile("uploadAndDeleteLocalfile", "down", dm.getTempDir());
-            if (!cryptoUtils.decryptFileAuthenticatedSymmetricAndValidateTag(
+            if (isSegmented(file)) {
+                OutputStream outputStream = new FileOutputStream(temp);
+                try {
+                    decryptStream(key, new FileInputStream(file), outputStream);
+                } finally {
+                    outputStream.close();
+                }
+            } else if (!cryptoUtils.decryptFileAuthenticatedSymmetricAndValidateTag(
                     new FileInputStream(file), temp, key)
                     || checkFile(temp)) {
                 throw new QblStorageException("Decryption failed");
@@ -567,6 +798,16 @@ public abstract class AbstractNavigation implements BoxNavigation {
         }
     }
 
+    private static boolean isSegmented(File file) throws IOException {
+        byte[] head = new byte[SegmentedBlockCipher.HEADER_SIZE];
+        InputStream inputStream = new FileInputStream(file);
+        try {
+            return inputStream.read(head) == head.length && SegmentedBlockCipher.isSegmented(head);
+        } finally {
+            inputStream.close();
+        }
+    }
+
     private boolean checkFile(File file) {
         // because the decrypt method does not raise an exception if it fails.
         return file.length() == 0;
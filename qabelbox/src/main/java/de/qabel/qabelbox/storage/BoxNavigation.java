@@ -6,6 +6,7 @@ import de.qabel.core.crypto.QblECPublicKey;
 import de.qabel.qabelbox.exceptions.QblStorageException;
 
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.List;
 
 public interface BoxNavigation {
@@ -44,6 +45,20 @@ public interface BoxNavigation {
 
     InputStream download(BoxFile file, @Nullable TransferManager.BoxTransferListener boxTransferListener) throws QblStorageException;
 
+    /**
+     * Download the file and write the plaintext into the output stream once it is authenticated.
+     * <p>
+     * Segmented files are written segment by segment while they download. Other files are
+     * authenticated at their end and written completely after that. If a QblStorageException is
+     * thrown after segments were written, the already written data must be discarded.
+     *
+     * @param file                file to download
+     * @param out                 receiver of the plaintext, not closed
+     * @param boxTransferListener optional progress listener
+     * @throws QblStorageException if the download or the decryption failed
+     */
+    void download(BoxFile file, OutputStream out, @Nullable TransferManager.BoxTransferListener boxTransferListener) throws QblStorageException;
+
     BoxExternalReference createFileMetadata(QblECPublicKey owner, BoxFile boxFile) throws QblStorageException;
 
     boolean updateFileMetadata(BoxFile boxFile);
@@ -72,6 +87,13 @@ public interface BoxNavigation {
 
     void reload() throws QblStorageException;
 
+    /**
+     * Version of the currently loaded directory metadata. Changes with every commit.
+     *
+     * @throws QblStorageException
+     */
+    byte[] getVersion() throws QblStorageException;
+
     String getPath();
 
     String getPath(BoxObject object);
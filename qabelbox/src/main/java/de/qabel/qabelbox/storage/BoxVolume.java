@@ -20,7 +20,9 @@ import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArraySet;
 
 import de.qabel.core.crypto.CryptoUtils;
 import de.qabel.core.crypto.DecryptedPlaintext;
@@ -42,7 +44,11 @@ public class BoxVolume {
     private CryptoUtils cryptoUtils;
     private File tempDir;
     private final TransferManager transferManager;
+    private final Set<OnCommitListener> commitListeners = new CopyOnWriteArraySet<>();
     private String prefix;
+    private volatile boolean segmentedUploads;
+    private VolumeIndex index;
+    private ContentIndex contentIndex;
 
     public BoxVolume(
             QblECKeyPair keyPair, String prefix,
@@ -62,6 +68,91 @@ public class BoxVolume {
     }
 
 
+    /**
+     * Release the network resources of this volume.
+     * The volume must not be used afterwards.
+     */
+    public void close() {
+        transferManager.close();
+    }
+
+    /**
+     * Close the volume and delete its local indexes, including pending and later writes to them.
+     * The volume must not be used afterwards.
+     */
+    public void delete() {
+        close();
+        getIndex().delete();
+        getContentIndex().delete();
+    }
+
+    /**
+     * Upload new files in the {@link SegmentedBlockCipher} format, which can be decrypted while
+     * it downloads but can not be read by clients that only know single stream blocks.
+     */
+    public void setSegmentedUploads(boolean segmentedUploads) {
+        this.segmentedUploads = segmentedUploads;
+    }
+
+    public boolean isSegmentedUploads() {
+        return segmentedUploads;
+    }
+
+    /**
+     * @return local index of the folders that have been visited or crawled in this volume
+     */
+    public synchronized VolumeIndex getIndex() {
+        if (index == null) {
+            index = VolumeIndex.forVolume(context, keyPair, prefix);
+        }
+        return index;
+    }
+
+    /**
+     * @return local full text index of the small text files in this volume
+     */
+    public synchronized ContentIndex getContentIndex() {
+        if (contentIndex == null) {
+            contentIndex = ContentIndex.forVolume(context, keyPair, prefix);
+        }
+        return contentIndex;
+    }
+
+    /**
+     * Update the local index with the listing of a folder
+     *
+     * @param path path of the folder
+     * @param dm   current metadata of the folder
+     */
+    void indexFolder(String path, DirectoryMetadata dm) {
+        try {
+            getIndex().updateFolder(path, dm.getVersion(), dm.listFolders(), dm.listFiles());
+        } catch (QblStorageException e) {
+            logger.warn("Could not index " + path, e);
+        }
+    }
+
+    public void addOnCommitListener(OnCommitListener listener) {
+        commitListeners.add(listener);
+    }
+
+    public void removeOnCommitListener(OnCommitListener listener) {
+        commitListeners.remove(listener);
+    }
+
+    /**
+     * Called by the navigations of this volume after the directory metadata of a folder
+     * has been uploaded.
+     *
+     * @param path path of the committed folder
+     */
+    void notifyCommit(String path) {
+        String documentId = getDocumentId(path);
+        for (OnCommitListener listener : commitListeners) {
+            listener.onCommit(this, documentId);
+        }
+    }
+
     public String getDocumentId(String path) {
         return rootId + BoxProvider.DOCID_SEPARATOR + path;
     }
@@ -97,7 +188,9 @@ public class BoxVolume {
     }
 
     public BoxNavigation navigate() throws QblStorageException {
-        return new FolderNavigation(prefix, getDirectoryMetadata(), keyPair, null, deviceId, transferManager,
+        DirectoryMetadata dm = getDirectoryMetadata();
+        indexFolder(PATH_ROOT, dm);
+        return new FolderNavigation(prefix, dm, keyPair, null, deviceId, transferManager,
                 this, PATH_ROOT, null, context);
     }
 
@@ -154,4 +247,15 @@ public class BoxVolume {
             throw new QblStorageException(e);
         }
     }
+
+    public interface OnCommitListener {
+
+        /**
+         * The content of a folder has changed
+         *
+         * @param volume     volume of the folder
+         * @param documentId document id of the committed folder
+         */
+        void onCommit(BoxVolume volume, String documentId);
+    }
 }
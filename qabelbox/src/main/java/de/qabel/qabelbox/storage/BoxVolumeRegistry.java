@@ -0,0 +1,127 @@
+package de.qabel.qabelbox.storage;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import de.qabel.core.crypto.QblECKeyPair;
+import de.qabel.qabelbox.providers.BoxProvider;
+
+/**
+ * Hands out one long lived BoxVolume per (identity, prefix).
+ * <p>
+ * Every BoxVolume owns a TransferManager with its own BlockServer, http client and
+ * connectivity receiver, so volumes are reused instead of being created per request
+ * and have to be closed explicitly when the identity is removed.
+ */
+public class BoxVolumeRegistry {
+
+    private static final String TAG = "BoxVolumeRegistry";
+
+    private final Context context;
+    private final Map<String, BoxVolume> volumes = new HashMap<>();
+    private boolean segmentedUploads;
+
+    public BoxVolumeRegistry(Context context) {
+
+        this.context = context;
+    }
+
+    /**
+     * Get the cached volume for the key pair and prefix or create a new one
+     *
+     * @param keyPair  primary key pair of the identity
+     * @param prefix   prefix of the volume
+     * @param deviceId id of this device
+     * @return shared volume instance
+     */
+    public synchronized BoxVolume get(QblECKeyPair keyPair, String prefix, byte[] deviceId) {
+
+        String key = buildKey(keyPair.getPub().getReadableKeyIdentifier(), prefix);
+        BoxVolume volume = volumes.get(key);
+        if (volume == null) {
+            Log.d(TAG, "Creating volume for " + key);
+            volume = new BoxVolume(keyPair, prefix, deviceId, context);
+            volume.setSegmentedUploads(segmentedUploads);
+            volumes.put(key, volume);
+        }
+        return volume;
+    }
+
+    /**
+     * Upload new files of all volumes in the segmented block format
+     *
+     * @see BoxVolume#setSegmentedUploads(boolean)
+     */
+    public synchronized void setSegmentedUploads(boolean segmentedUploads) {
+
+        this.segmentedUploads = segmentedUploads;
+        for (BoxVolume volume : volumes.values()) {
+            volume.setSegmentedUploads(segmentedUploads);
+        }
+    }
+
+    /**
+     * Close and forget all volumes of an identity
+     *
+     * @param keyIdentifier readable key identifier of the identity
+     */
+    public synchronized void remove(String keyIdentifier) {
+
+        String keyPrefix = keyIdentifier + BoxProvider.DOCID_SEPARATOR;
+        Iterator<Map.Entry<String, BoxVolume>> iterator = volumes.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, BoxVolume> entry = iterator.next();
+            if (entry.getKey().startsWith(keyPrefix)) {
+                Log.d(TAG, "Closing volume " + entry.getKey());
+                entry.getValue().close();
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Close all volumes of an identity and delete their local search indexes.
+     * <p>
+     * The indexes of cached volumes are deleted through the volume, so their pending flushes
+     * and running crawls can not store them again.
+     *
+     * @param keyPair  primary key pair of the identity
+     * @param prefixes prefixes of the volumes of the identity
+     */
+    public synchronized void delete(QblECKeyPair keyPair, List<String> prefixes) {
+
+        String keyIdentifier = keyPair.getPub().getReadableKeyIdentifier();
+        for (String prefix : prefixes) {
+            BoxVolume volume = volumes.remove(buildKey(keyIdentifier, prefix));
+            if (volume != null) {
+                Log.d(TAG, "Deleting volume " + buildKey(keyIdentifier, prefix));
+                volume.delete();
+            } else {
+                VolumeIndex.forVolume(context, keyPair, prefix).delete();
+                ContentIndex.forVolume(context, keyPair, prefix).delete();
+            }
+        }
+        remove(keyIdentifier);
+    }
+
+    /**
+     * Close all volumes
+     */
+    public synchronized void clear() {
+
+        for (BoxVolume volume : volumes.values()) {
+            volume.close();
+        }
+        volumes.clear();
+    }
+
+    private static String buildKey(String keyIdentifier, String prefix) {
+
+        return keyIdentifier + BoxProvider.DOCID_SEPARATOR + prefix;
+    }
+}
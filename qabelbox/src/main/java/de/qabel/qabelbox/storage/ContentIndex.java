@@ -0,0 +1,319 @@
+package de.qabel.qabelbox.storage;
+
+import android.content.Context;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spongycastle.crypto.params.KeyParameter;
+import org.spongycastle.util.encoders.Hex;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.InvalidKeyException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+import de.qabel.core.crypto.QblECKeyPair;
+
+/**
+ * Local full text index of the small text files of a volume.
+ * <p>
+ * Maps the words of every indexed file to its block, so a changed file, which always gets a
+ * new block, is indexed again and the old entry is dropped by {@link #retainBlocks(Collection)}.
+ * Words are folded like names (see {@link TrigramIndex#fold(String)}) and searched by prefix.
+ * The index is stored encrypted with a key derived from the private key of the volume owner.
+ */
+public class ContentIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(ContentIndex.class.getName());
+    private static final String DIRECTORY = "contentindex";
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * Larger files are not indexed
+     */
+    public static final long MAX_FILE_SIZE = 256 * 1024;
+    static final int MAX_TERMS_PER_FILE = 4096;
+    static final int MIN_TERM_LENGTH = 2;
+    static final int MAX_TERM_LENGTH = 32;
+
+    private static final Set<String> TEXT_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "txt", "text", "md", "markdown", "csv", "tsv", "log", "json", "xml", "html", "htm",
+            "ini", "conf", "yml", "yaml", "tex", "vcf", "ics", "java", "py", "js", "css", "sh"));
+    private static final Set<String> MARKUP_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "xml", "html", "htm"));
+    private static final Pattern MARKUP = Pattern.compile("<[^>]*>");
+    private static final Pattern SEPARATORS = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    private final EncryptedFile store;
+    private final Map<String, String[]> termsByBlock = new HashMap<>();
+    private final TreeMap<String, Set<String>> blocksByTerm = new TreeMap<>();
+    private boolean loaded;
+    private boolean dirty;
+    private boolean deleted;
+
+    ContentIndex(File file, File tempDir, KeyParameter key) {
+        store = new EncryptedFile(file, tempDir, key);
+    }
+
+    /**
+     * Create the content index of a volume, the stored index is read on first access
+     */
+    public static ContentIndex forVolume(Context context, QblECKeyPair keyPair, String prefix) {
+        File directory = new File(context.getFilesDir(), DIRECTORY);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            logger.error("Could not create content index directory");
+        }
+        byte[] id = EncryptedFile.derive("qabel content index name", prefix.getBytes(), keyPair.getPub().getKey());
+        byte[] key = EncryptedFile.derive("qabel content index key", prefix.getBytes(), keyPair.getPrivateKey());
+        return new ContentIndex(new File(directory, Hex.toHexString(id)), context.getCacheDir(),
+                new KeyParameter(key));
+    }
+
+    /**
+     * @return true if the file is small enough and its name looks like a text file
+     */
+    public static boolean isIndexable(BoxFile boxFile) {
+        if (boxFile.size == null || boxFile.size > MAX_FILE_SIZE) {
+            return false;
+        }
+        return TEXT_EXTENSIONS.contains(getExtension(boxFile.name));
+    }
+
+    public synchronized boolean isIndexed(String block) {
+        load();
+        return termsByBlock.containsKey(block);
+    }
+
+    /**
+     * Index the decrypted content of a file. Files that are not indexable are ignored.
+     *
+     * @param boxFile file the content belongs to
+     * @param content plaintext of the file, only the first {@link #MAX_FILE_SIZE} bytes are read
+     * @return true if the file has been indexed
+     */
+    public boolean add(BoxFile boxFile, InputStream content) throws IOException {
+        if (!isIndexable(boxFile)) {
+            return false;
+        }
+        String text = readText(content);
+        if (MARKUP_EXTENSIONS.contains(getExtension(boxFile.name))) {
+            text = MARKUP.matcher(text).replaceAll(" ");
+        }
+        put(boxFile.block, tokenize(text));
+        return true;
+    }
+
+    synchronized void put(String block, Collection<String> terms) {
+        if (deleted) {
+            return;
+        }
+        load();
+        removeBlock(block);
+        String[] stored = terms.toArray(new String[terms.size()]);
+        termsByBlock.put(block, stored);
+        for (String term : stored) {
+            Set<String> blocks = blocksByTerm.get(term);
+            if (blocks == null) {
+                blocks = new HashSet<>();
+                blocksByTerm.put(term, blocks);
+            }
+            blocks.add(block);
+        }
+        dirty = true;
+    }
+
+    /**
+     * Drop the content of all files that are not part of the volume anymore
+     *
+     * @param blocks blocks of all current files of the volume
+     */
+    public synchronized void retainBlocks(Collection<String> blocks) {
+        if (deleted) {
+            return;
+        }
+        load();
+        Set<String> retained = new HashSet<>(blocks);
+        Iterator<String> iterator = termsByBlock.keySet().iterator();
+        while (iterator.hasNext()) {
+            String block = iterator.next();
+            if (!retained.contains(block)) {
+                removeTerms(block, termsByBlock.get(block));
+                iterator.remove();
+                dirty = true;
+            }
+        }
+    }
+
+    /**
+     * Find files containing all words of the query, every word also matches longer words
+     * starting with it.
+     *
+     * @return blocks of the matching files
+     */
+    public synchronized Set<String> search(String query) {
+        load();
+        Set<String> result = null;
+        for (String word : tokenize(query)) {
+            Set<String> matches = new HashSet<>();
+            for (Set<String> blocks : blocksByTerm.subMap(word, word + Character.MAX_VALUE).values()) {
+                matches.addAll(blocks);
+            }
+            if (result == null) {
+                result = matches;
+            } else {
+                result.retainAll(matches);
+            }
+            if (result.isEmpty()) {
+                break;
+            }
+        }
+        return result == null ? Collections.<String>emptySet() : result;
+    }
+
+    public synchronized int size() {
+        load();
+        return termsByBlock.size();
+    }
+
+    /**
+     * Store the index if it changed since it was loaded or stored
+     */
+    public synchronized void flush() {
+        if (!dirty || deleted) {
+            return;
+        }
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buffer);
+        try {
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(termsByBlock.size());
+            for (Map.Entry<String, String[]> entry : termsByBlock.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue().length);
+                for (String term : entry.getValue()) {
+                    out.writeUTF(term);
+                }
+            }
+            out.close();
+            store.write(buffer.toByteArray());
+            dirty = false;
+        } catch (IOException | InvalidKeyException e) {
+            logger.error("Could not store content index " + store.getName(), e);
+        }
+    }
+
+    /**
+     * Forget all content and delete the stored index. Content added afterwards is ignored.
+     */
+    public synchronized void delete() {
+        termsByBlock.clear();
+        blocksByTerm.clear();
+        loaded = true;
+        dirty = false;
+        deleted = true;
+        store.delete();
+    }
+
+    /**
+     * Split a text into distinct folded words
+     */
+    static Set<String> tokenize(String text) {
+        Set<String> terms = new LinkedHashSet<>();
+        for (String word : SEPARATORS.split(TrigramIndex.fold(text))) {
+            if (word.length() < MIN_TERM_LENGTH) {
+                continue;
+            }
+            terms.add(word.length() > MAX_TERM_LENGTH ? word.substring(0, MAX_TERM_LENGTH) : word);
+            if (terms.size() >= MAX_TERMS_PER_FILE) {
+                break;
+            }
+        }
+        return terms;
+    }
+
+    private static String readText(InputStream content) throws IOException {
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while (text.size() < MAX_FILE_SIZE
+                && (read = content.read(buffer, 0, (int) Math.min(buffer.length, MAX_FILE_SIZE - text.size()))) > 0) {
+            text.write(buffer, 0, read);
+        }
+        return text.toString("UTF-8");
+    }
+
+    private static String getExtension(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot < 0 ? "" : name.substring(dot + 1).toLowerCase(Locale.ROOT);
+    }
+
+    private void removeBlock(String block) {
+        String[] terms = termsByBlock.remove(block);
+        if (terms != null) {
+            removeTerms(block, terms);
+        }
+    }
+
+    private void removeTerms(String block, String[] terms) {
+        for (String term : terms) {
+            Set<String> blocks = blocksByTerm.get(term);
+            if (blocks != null) {
+                blocks.remove(block);
+                if (blocks.isEmpty()) {
+                    blocksByTerm.remove(term);
+                }
+            }
+        }
+    }
+
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        try {
+            File plain = store.decrypt();
+            if (plain == null) {
+                return;
+            }
+            try (DataInputStream in = new DataInputStream(new FileInputStream(plain))) {
+                if (in.readInt() != FORMAT_VERSION) {
+                    logger.info("Ignoring content index with unknown format");
+                    return;
+                }
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    String block = in.readUTF();
+                    String[] terms = new String[in.readInt()];
+                    for (int t = 0; t < terms.length; t++) {
+                        terms[t] = in.readUTF();
+                    }
+                    put(block, Arrays.asList(terms));
+                }
+                dirty = false;
+            } finally {
+                plain.delete();
+            }
+        } catch (IOException | InvalidKeyException e) {
+            logger.error("Could not read content index " + store.getName(), e);
+            termsByBlock.clear();
+            blocksByTerm.clear();
+        }
+    }
+}
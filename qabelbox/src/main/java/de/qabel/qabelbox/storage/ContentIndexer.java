@@ -0,0 +1,97 @@
+package de.qabel.qabelbox.storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import de.qabel.qabelbox.exceptions.QblStorageException;
+
+/**
+ * Fills the {@link ContentIndex} of a volume with the text files known to its {@link VolumeIndex}.
+ * <p>
+ * Files are downloaded one after another and only as long as the budget allows it. Files that
+ * are already indexed are skipped and files that are not part of the volume index anymore are
+ * dropped, so every run continues where the last one stopped.
+ */
+public class ContentIndexer {
+
+    private static final Logger logger = LoggerFactory.getLogger(ContentIndexer.class.getName());
+    private static final int FLUSH_INTERVAL = 16;
+
+    public interface Budget {
+
+        /**
+         * @return false to stop indexing before the next file
+         */
+        boolean canContinue();
+    }
+
+    private final BoxVolume volume;
+
+    public ContentIndexer(BoxVolume volume) {
+        this.volume = volume;
+    }
+
+    /**
+     * Index the files of the volume that are not indexed yet
+     *
+     * @return number of newly indexed files
+     */
+    public int run(Budget budget) throws QblStorageException {
+        ContentIndex contentIndex = volume.getContentIndex();
+        List<String> blocks = new ArrayList<>();
+        List<BoxFile> pending = new ArrayList<>();
+        for (VolumeIndex.Entry entry : volume.getIndex().getEntries()) {
+            if (entry.folder) {
+                continue;
+            }
+            BoxFile boxFile = (BoxFile) entry.object;
+            blocks.add(boxFile.block);
+            if (ContentIndex.isIndexable(boxFile) && !contentIndex.isIndexed(boxFile.block)) {
+                pending.add(boxFile);
+            }
+        }
+        contentIndex.retainBlocks(blocks);
+        int indexed = 0;
+        try {
+            if (pending.isEmpty()) {
+                return 0;
+            }
+            BoxNavigation navigation = volume.navigate();
+            for (BoxFile boxFile : pending) {
+                if (!budget.canContinue()) {
+                    logger.info("Content indexing paused after " + indexed + " files");
+                    break;
+                }
+                if (index(navigation, contentIndex, boxFile)) {
+                    indexed++;
+                    if (indexed % FLUSH_INTERVAL == 0) {
+                        contentIndex.flush();
+                    }
+                }
+            }
+        } finally {
+            contentIndex.flush();
+        }
+        return indexed;
+    }
+
+    private static boolean index(BoxNavigation navigation, ContentIndex contentIndex, BoxFile boxFile) {
+        try {
+            InputStream content = navigation.download(boxFile, null);
+            try {
+                return contentIndex.add(boxFile, content);
+            } finally {
+                content.close();
+            }
+        } catch (QblStorageException | IOException e) {
+            // a missing block is dropped with the next listing of its folder
+            logger.warn("Could not index content of " + boxFile.name, e);
+            return false;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package de.qabel.qabelbox.storage;
+
+import android.support.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import de.qabel.core.crypto.CryptoUtils;
+
+/**
+ * Local file encrypted with a symmetric key, used for the indexes of a volume.
+ * <p>
+ * The content is authenticated, a file that was written with another key or has been
+ * modified is deleted when it is read.
+ */
+class EncryptedFile {
+
+    private static final Logger logger = LoggerFactory.getLogger(EncryptedFile.class.getName());
+
+    private final File file;
+    private final File tempDir;
+    private final KeyParameter key;
+    private final CryptoUtils cryptoUtils = new CryptoUtils();
+
+    EncryptedFile(File file, File tempDir, KeyParameter key) {
+        this.file = file;
+        this.tempDir = tempDir;
+        this.key = key;
+    }
+
+    /**
+     * Derive a value from a secret of the volume owner
+     *
+     * @param purpose distinguishes values derived from the same secret
+     */
+    static byte[] derive(String purpose, byte[] prefix, byte[] secret) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(purpose.getBytes());
+            md.update(prefix);
+            md.update(secret);
+            return md.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    String getName() {
+        return file.getName();
+    }
+
+    boolean exists() {
+        return file.exists();
+    }
+
+    /**
+     * Decrypt the file into a temporary file, which has to be deleted by the caller
+     *
+     * @return plaintext or null if the file does not exist or could not be authenticated
+     */
+    @Nullable
+    File decrypt() throws IOException, InvalidKeyException {
+        if (!file.exists()) {
+            return null;
+        }
+        File plain = File.createTempFile(file.getName(), "", tempDir);
+        if (!cryptoUtils.decryptFileAuthenticatedSymmetricAndValidateTag(
+                new FileInputStream(file), plain, key)) {
+            logger.warn("Dropping invalid file " + file.getName());
+            plain.delete();
+            file.delete();
+            return null;
+        }
+        return plain;
+    }
+
+    /**
+     * Encrypt the content and atomically replace the file
+     */
+    void write(byte[] content) throws IOException, InvalidKeyException {
+        File tmp = File.createTempFile(file.getName(), "", file.getParentFile());
+        try {
+            OutputStream outputStream = new FileOutputStream(tmp);
+            try {
+                if (!cryptoUtils.encryptStreamAuthenticatedSymmetric(
+                        new ByteArrayInputStream(content), outputStream, key, null)) {
+                    throw new IOException("Encryption failed");
+                }
+            } finally {
+                outputStream.close();
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Could not replace " + file.getName());
+            }
+        } finally {
+            if (tmp.exists()) {
+                tmp.delete();
+            }
+        }
+    }
+
+    void delete() {
+        if (file.exists() && !file.delete()) {
+            logger.warn("Could not delete " + file.getName());
+        }
+    }
+}
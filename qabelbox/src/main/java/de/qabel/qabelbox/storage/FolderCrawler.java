@@ -0,0 +1,133 @@
+package de.qabel.qabelbox.storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import de.qabel.core.crypto.CryptoUtils;
+import de.qabel.qabelbox.exceptions.QblStorageException;
+import de.qabel.qabelbox.providers.BoxProvider;
+
+/**
+ * Walks the folder tree below a navigation with a bounded pool of workers.
+ * <p>
+ * The metadata of every subfolder is downloaded and decrypted as soon as its parent has been
+ * listed, independent of its siblings. The navigation itself is not moved, so no parent
+ * metadata is loaded twice. Every crawled folder is written to the index of the volume, which is
+ * stored once the crawl is done.
+ */
+class FolderCrawler {
+
+    private static final Logger logger = LoggerFactory.getLogger(FolderCrawler.class.getName());
+    static final int DEFAULT_WORKERS = 4;
+
+    interface Listener {
+
+        /**
+         * Called once per folder, possibly from multiple threads at the same time
+         *
+         * @param path    path of the folder, ending with a slash
+         * @param files   files in the folder
+         * @param folders direct subfolders of the folder
+         */
+        void onFolder(String path, List<BoxFile> files, List<BoxFolder> folders);
+    }
+
+    private final AbstractNavigation navigation;
+    private final int workers;
+    private final File tempDir;
+
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicReference<QblStorageException> error = new AtomicReference<>();
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final ThreadLocal<CryptoUtils> cryptoUtils = new ThreadLocal<CryptoUtils>() {
+        @Override
+        protected CryptoUtils initialValue() {
+            return new CryptoUtils();
+        }
+    };
+    private ExecutorService executor;
+    private Listener listener;
+
+    FolderCrawler(AbstractNavigation navigation, int workers) {
+        this.navigation = navigation;
+        this.workers = workers;
+        this.tempDir = navigation.getTempDir();
+    }
+
+    /**
+     * Crawl the current folder of the navigation and all folders below it.
+     * Can only be called once.
+     *
+     * @throws QblStorageException if a folder could not be loaded or the crawl was interrupted
+     */
+    void crawl(Listener listener) throws QblStorageException {
+        this.listener = listener;
+        executor = Executors.newFixedThreadPool(workers);
+        pending.set(1);
+        try {
+            visit(navigation.getPath(), navigation.listFiles(), navigation.listFolders());
+        } catch (QblStorageException e) {
+            error.compareAndSet(null, e);
+        } finally {
+            finishTask();
+        }
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            error.compareAndSet(null, new QblStorageException("Crawl interrupted"));
+        } finally {
+            executor.shutdownNow();
+            // the index is stored once per crawl, also the folders crawled before an error
+            navigation.flushIndex();
+        }
+        if (error.get() != null) {
+            throw error.get();
+        }
+    }
+
+    private void visit(String path, List<BoxFile> files, List<BoxFolder> folders) {
+        listener.onFolder(path, files, folders);
+        for (final BoxFolder folder : folders) {
+            final String folderPath = path + folder.name + BoxProvider.PATH_SEP;
+            pending.incrementAndGet();
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            if (error.get() != null || Thread.currentThread().isInterrupted()) {
+                                return;
+                            }
+                            DirectoryMetadata dm = navigation.downloadMetadata(folder, cryptoUtils.get(), tempDir);
+                            navigation.indexFolder(folderPath, dm);
+                            visit(folderPath, dm.listFiles(), dm.listFolders());
+                        } catch (QblStorageException e) {
+                            logger.warn("Could not crawl " + folderPath, e);
+                            error.compareAndSet(null, e);
+                        } finally {
+                            finishTask();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // the crawl has been aborted
+                pending.decrementAndGet();
+            }
+        }
+    }
+
+    private void finishTask() {
+        if (pending.decrementAndGet() == 0 || error.get() != null) {
+            done.countDown();
+        }
+    }
+}
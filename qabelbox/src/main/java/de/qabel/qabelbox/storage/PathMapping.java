@@ -0,0 +1,85 @@
+package de.qabel.qabelbox.storage;
+
+import android.support.annotation.Nullable;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Absolute paths of the files and folders of a search, looked up in both directions.
+ * <p>
+ * Objects are identified by their storage location, the block of a file and the ref of a
+ * folder, so a clone or a freshly loaded copy of an object maps to the same path.
+ * Not synchronized.
+ */
+public class PathMapping {
+
+    private final Map<String, BoxObject> objects;
+    private final Map<String, String> paths;
+
+    public PathMapping() {
+        objects = new HashMap<>();
+        paths = new HashMap<>();
+    }
+
+    /**
+     * Create a copy of the other mapping
+     */
+    public PathMapping(PathMapping other) {
+        objects = new HashMap<>(other.objects);
+        paths = new HashMap<>(other.paths);
+    }
+
+    public void put(String path, BoxObject object) {
+        BoxObject previous = objects.put(path, object);
+        if (previous != null) {
+            paths.remove(identify(previous));
+        }
+        String id = identify(object);
+        if (id != null) {
+            paths.put(id, path);
+        }
+    }
+
+    @Nullable
+    public BoxObject get(String path) {
+        return objects.get(path);
+    }
+
+    /**
+     * @return absolute path of the object or null if it is not part of the mapping
+     */
+    @Nullable
+    public String getPath(BoxObject object) {
+        String id = identify(object);
+        return id == null ? null : paths.get(id);
+    }
+
+    /**
+     * @return unmodifiable set of all mapped paths
+     */
+    public Set<String> paths() {
+        return Collections.unmodifiableSet(objects.keySet());
+    }
+
+    public int size() {
+        return objects.size();
+    }
+
+    /**
+     * @return stable identity of stored files and folders, null for everything else
+     */
+    @Nullable
+    private static String identify(BoxObject object) {
+        if (object instanceof BoxFile) {
+            BoxFile file = (BoxFile) object;
+            return "file:" + file.prefix + ':' + file.block;
+        }
+        if (object instanceof BoxFolder) {
+            return "folder:" + ((BoxFolder) object).ref;
+        }
+        return null;
+    }
+}
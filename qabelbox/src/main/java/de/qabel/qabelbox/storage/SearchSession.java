@@ -0,0 +1,211 @@
+package de.qabel.qabelbox.storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.qabel.qabelbox.exceptions.QblStorageException;
+
+/**
+ * Name search that follows the input of a search field.
+ * <p>
+ * Every call of {@link #update(String)} starts a new query and makes all older ones stale, stale
+ * queries stop before their next batch. A query that extends the previous one only checks the
+ * previous hits instead of searching all objects again. Results are delivered in batches of
+ * {@link #BATCH_SIZE}, best matches first: exact names, then names starting with the query,
+ * then names with a word starting with the query and finally all other names containing it.
+ * <p>
+ * All work is done on the given executor, which has to run one task at a time.
+ */
+public class SearchSession {
+
+    private static final Logger logger = LoggerFactory.getLogger(SearchSession.class.getName());
+    public static final int BATCH_SIZE = 50;
+
+    public interface Source {
+
+        /**
+         * Load the objects to search in, called once on the executor
+         */
+        List<BoxObject> load() throws QblStorageException;
+    }
+
+    public interface Listener {
+
+        /**
+         * Called on the executor for every batch of a query that is still current
+         *
+         * @param generation query the batch belongs to, see {@link #isCurrent(int)}
+         * @param batch      next results, ordered by rank
+         * @param first      true if older results should be replaced
+         * @param last       true if no more batches follow for this query
+         */
+        void onResults(int generation, List<BoxObject> batch, boolean first, boolean last);
+    }
+
+    private final Executor executor;
+    private final Listener listener;
+    private final AtomicInteger generation = new AtomicInteger();
+    private volatile String latestQuery;
+
+    // only accessed on the executor
+    private List<BoxObject> objects;
+    private TrigramIndex index;
+    private String previousQuery;
+    private int[] previousMatches;
+
+    public SearchSession(Executor executor, Listener listener) {
+        this.executor = executor;
+        this.listener = listener;
+    }
+
+    /**
+     * Load the objects to search in. Queries that arrived earlier are answered afterwards.
+     */
+    public void setSource(final Source source) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    objects = source.load();
+                } catch (QblStorageException e) {
+                    logger.error("Could not load search source", e);
+                    objects = Collections.emptyList();
+                }
+                index = new TrigramIndex(objects);
+                previousQuery = null;
+                previousMatches = null;
+                String query = latestQuery;
+                if (query != null) {
+                    search(generation.get(), query);
+                }
+            }
+        });
+    }
+
+    /**
+     * Search for the query, older queries are cancelled
+     *
+     * @return generation of the new query
+     */
+    public int update(final String query) {
+        latestQuery = query;
+        final int current = generation.incrementAndGet();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                search(current, query);
+            }
+        });
+        return current;
+    }
+
+    /**
+     * @return true if no newer query has been started and the session was not cancelled
+     */
+    public boolean isCurrent(int queryGeneration) {
+        return generation.get() == queryGeneration;
+    }
+
+    /**
+     * Stop the running query, no more results are delivered
+     */
+    public void cancel() {
+        latestQuery = null;
+        generation.incrementAndGet();
+    }
+
+    private void search(int queryGeneration, String query) {
+        if (!isCurrent(queryGeneration) || index == null) {
+            return;
+        }
+        String folded = TrigramIndex.fold(query.trim());
+        int[] matches;
+        if (folded.isEmpty()) {
+            matches = new int[0];
+        } else if (previousQuery != null && folded.contains(previousQuery)) {
+            // everything that contains the longer query also contained the shorter one
+            matches = index.filter(previousMatches, folded);
+        } else {
+            matches = index.search(folded);
+        }
+        previousQuery = folded.isEmpty() ? null : folded;
+        previousMatches = matches;
+        if (!isCurrent(queryGeneration)) {
+            return;
+        }
+        List<BoxObject> ranked = rank(matches, folded);
+        int start = 0;
+        do {
+            if (!isCurrent(queryGeneration)) {
+                return;
+            }
+            int end = Math.min(start + BATCH_SIZE, ranked.size());
+            listener.onResults(queryGeneration, new ArrayList<>(ranked.subList(start, end)),
+                    start == 0, end == ranked.size());
+            start = end;
+        } while (start < ranked.size());
+    }
+
+    private List<BoxObject> rank(int[] matches, String folded) {
+        Hit[] hits = new Hit[matches.length];
+        for (int i = 0; i < matches.length; i++) {
+            String name = index.getFoldedName(matches[i]);
+            hits[i] = new Hit(matches[i], name, rank(name, folded));
+        }
+        Arrays.sort(hits, new Comparator<Hit>() {
+            @Override
+            public int compare(Hit lhs, Hit rhs) {
+                if (lhs.rank != rhs.rank) {
+                    return lhs.rank - rhs.rank;
+                }
+                if (lhs.name.length() != rhs.name.length()) {
+                    return lhs.name.length() - rhs.name.length();
+                }
+                return lhs.name.compareTo(rhs.name);
+            }
+        });
+        List<BoxObject> ranked = new ArrayList<>(hits.length);
+        for (Hit hit : hits) {
+            ranked.add(objects.get(hit.position));
+        }
+        return ranked;
+    }
+
+    /**
+     * @return 0 for the best match, 3 for a name that only contains the query
+     */
+    static int rank(String name, String query) {
+        if (name.equals(query)) {
+            return 0;
+        }
+        if (name.startsWith(query)) {
+            return 1;
+        }
+        for (int start = name.indexOf(query); start > 0; start = name.indexOf(query, start + 1)) {
+            if (!Character.isLetterOrDigit(name.charAt(start - 1))) {
+                return 2;
+            }
+        }
+        return 3;
+    }
+
+    private static class Hit {
+        final int position;
+        final String name;
+        final int rank;
+
+        Hit(int position, String name, int rank) {
+            this.position = position;
+            this.name = name;
+            this.rank = rank;
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package de.qabel.qabelbox.storage;
+
+import org.spongycastle.crypto.InvalidCipherTextException;
+import org.spongycastle.crypto.engines.AESEngine;
+import org.spongycastle.crypto.modes.GCMBlockCipher;
+import org.spongycastle.crypto.params.AEADParameters;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Block format that encrypts a file in fixed size segments which are authenticated independently.
+ * <p>
+ * Layout: magic (8 bytes) | segment size (4 bytes) | nonce prefix (8 bytes) followed by the segments.
+ * Every segment is AES-GCM encrypted with the nonce prefix and the segment index as nonce and the
+ * header plus a last segment flag as associated data, so segments can not be reordered, exchanged
+ * between files or cut off. All segments except the last one contain exactly segment size bytes
+ * of plaintext, which allows to compute the position of every segment in the block.
+ * <p>
+ * Single stream blocks start with a random nonce and are told apart by the magic.
+ */
+public class SegmentedBlockCipher {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024;
+    public static final int TAG_SIZE = 16;
+    private static final byte[] MAGIC = {'Q', 'B', 'L', 'S', 'E', 'G', 0, 1};
+    private static final int NONCE_PREFIX_SIZE = 8;
+    private static final int NONCE_SIZE = NONCE_PREFIX_SIZE + 4;
+    public static final int HEADER_SIZE = MAGIC.length + 4 + NONCE_PREFIX_SIZE;
+    private static final int MAX_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    private final KeyParameter key;
+    private final byte[] header;
+    private final int segmentSize;
+    private final GCMBlockCipher cipher = new GCMBlockCipher(new AESEngine());
+
+    private SegmentedBlockCipher(KeyParameter key, byte[] header, int segmentSize) {
+        this.key = key;
+        this.header = header;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * @param key         symmetric file key
+     * @param segmentSize plaintext bytes per segment
+     * @param noncePrefix 8 random bytes, unique per file
+     */
+    public static SegmentedBlockCipher forEncryption(KeyParameter key, int segmentSize, byte[] noncePrefix) {
+        if (noncePrefix.length != NONCE_PREFIX_SIZE) {
+            throw new IllegalArgumentException("Nonce prefix must be " + NONCE_PREFIX_SIZE + " bytes");
+        }
+        if (segmentSize <= 0 || segmentSize > MAX_SEGMENT_SIZE) {
+            throw new IllegalArgumentException("Invalid segment size " + segmentSize);
+        }
+        byte[] header = ByteBuffer.allocate(HEADER_SIZE)
+                .put(MAGIC)
+                .putInt(segmentSize)
+                .put(noncePrefix)
+                .array();
+        return new SegmentedBlockCipher(key, header, segmentSize);
+    }
+
+    /**
+     * @param key    symmetric file key
+     * @param header first {@link #HEADER_SIZE} bytes of the block
+     * @throws IOException if the header is not a valid segmented block header
+     */
+    public static SegmentedBlockCipher fromHeader(KeyParameter key, byte[] header) throws IOException {
+        if (header.length < HEADER_SIZE || !isSegmented(header)) {
+            throw new IOException("Not a segmented block");
+        }
+        int segmentSize = ByteBuffer.wrap(header, MAGIC.length, 4).getInt();
+        if (segmentSize <= 0 || segmentSize > MAX_SEGMENT_SIZE) {
+            throw new IOException("Invalid segment size " + segmentSize);
+        }
+        return new SegmentedBlockCipher(key, Arrays.copyOf(header, HEADER_SIZE), segmentSize);
+    }
+
+    /**
+     * @param head at least the first 8 bytes of a block
+     * @return true if the block uses the segmented format
+     */
+    public static boolean isSegmented(byte[] head) {
+        if (head.length < MAGIC.length) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (head[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public byte[] getHeader() {
+        return header.clone();
+    }
+
+    private int getEncryptedSegmentSize() {
+        return segmentSize + TAG_SIZE;
+    }
+
+    /**
+     * @return number of plaintext bytes written to out
+     */
+    public synchronized int encryptSegment(int index, boolean last, byte[] in, int length, byte[] out) throws IOException {
+        return process(true, index, last, in, length, out);
+    }
+
+    /**
+     * @return number of plaintext bytes written to out
+     * @throws IOException if the segment is not authentic
+     */
+    public synchronized int decryptSegment(int index, boolean last, byte[] in, int length, byte[] out) throws IOException {
+        return process(false, index, last, in, length, out);
+    }
+
+    private int process(boolean encrypt, int index, boolean last, byte[] in, int length, byte[] out) throws IOException {
+        byte[] nonce = ByteBuffer.allocate(NONCE_SIZE)
+                .put(header, MAGIC.length + 4, NONCE_PREFIX_SIZE)
+                .putInt(index)
+                .array();
+        byte[] associatedData = Arrays.copyOf(header, HEADER_SIZE + 1);
+        associatedData[HEADER_SIZE] = (byte) (last ? 1 : 0);
+        try {
+            cipher.init(encrypt, new AEADParameters(key, TAG_SIZE * 8, nonce, associatedData));
+            int written = cipher.processBytes(in, 0, length, out, 0);
+            return written + cipher.doFinal(out, written);
+        } catch (InvalidCipherTextException | IllegalArgumentException e) {
+            throw new IOException("Segment " + index + " is not authentic", e);
+        }
+    }
+
+    /**
+     * Encrypt the whole input, the header included.
+     */
+    public void encrypt(InputStream in, OutputStream out) throws IOException {
+        out.write(header);
+        byte[] current = new byte[segmentSize];
+        byte[] next = new byte[segmentSize];
+        byte[] encrypted = new byte[getEncryptedSegmentSize()];
+        int currentLength = readSegment(in, current);
+        int index = 0;
+        while (true) {
+            int nextLength = currentLength == segmentSize ? readSegment(in, next) : 0;
+            boolean last = nextLength == 0;
+            int length = encryptSegment(index++, last, current, currentLength, encrypted);
+            out.write(encrypted, 0, length);
+            if (last) {
+                break;
+            }
+            byte[] swap = current;
+            current = next;
+            next = swap;
+            currentLength = nextLength;
+        }
+        out.flush();
+    }
+
+    /**
+     * Decrypt all segments of a block. The header must already be consumed from the input.
+     * Plaintext of every segment is written after it has been authenticated.
+     */
+    public void decrypt(InputStream body, OutputStream out) throws IOException {
+        byte[] current = new byte[getEncryptedSegmentSize()];
+        byte[] next = new byte[getEncryptedSegmentSize()];
+        byte[] plain = new byte[getEncryptedSegmentSize()];
+        int currentLength = readSegment(body, current);
+        int index = 0;
+        while (true) {
+            int nextLength = currentLength == current.length ? readSegment(body, next) : 0;
+            boolean last = nextLength == 0;
+            int length = decryptSegment(index++, last, current, currentLength, plain);
+            out.write(plain, 0, length);
+            if (last) {
+                break;
+            }
+            byte[] swap = current;
+            current = next;
+            next = swap;
+            currentLength = nextLength;
+        }
+        out.flush();
+    }
+
+    private static int readSegment(InputStream in, byte[] buffer) throws IOException {
+        int total = 0;
+        int read;
+        while (total < buffer.length && (read = in.read(buffer, total, buffer.length - total)) != -1) {
+            total += read;
+        }
+        return total;
+    }
+}
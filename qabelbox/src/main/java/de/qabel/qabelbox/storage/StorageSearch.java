@@ -1,13 +1,19 @@
 package de.qabel.qabelbox.storage;
 
+import android.support.annotation.Nullable;
+
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.Date;
-import java.util.Hashtable;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import de.qabel.qabelbox.exceptions.QblStorageException;
+import de.qabel.qabelbox.providers.BoxProvider;
 
 /**
  * Represents a search across a BoxVolume path.
@@ -16,7 +22,84 @@ public class StorageSearch {
 
     private BoxNavigation navigation;
     private List<BoxObject> results;
-    private Hashtable<String, BoxObject> pathMapping = new Hashtable<>();
+    private PathMapping pathMapping = new PathMapping();
+    private final List<Predicate> predicates = new ArrayList<>();
+    private final List<SortKey> sortKeys = new ArrayList<>();
+    private TrigramIndex nameIndex;
+    private List<BoxObject> indexedResults;
+    private String[] foldedNames;
+    private List<BoxObject> foldedResults;
+
+    /**
+     * Receives parts of the result set while the volume is crawled.
+     */
+    public interface PartialResultListener {
+
+        /**
+         * Called from the crawler threads with the content of one folder
+         *
+         * @param path    absolute path of the folder, ending with {@link BoxProvider#PATH_SEP}
+         * @param objects files and folders of the folder
+         */
+        void onPartialResult(String path, List<BoxObject> objects);
+    }
+
+    /**
+     * Condition of a search, evaluated once per object.
+     */
+    public interface Predicate {
+
+        boolean matches(BoxObject o);
+    }
+
+    /**
+     * Sort order of a search. The key is computed once per object and evaluation,
+     * not once per comparison.
+     */
+    public interface SortKey {
+
+        String collationKey(BoxObject o);
+    }
+
+    /**
+     * Result sets from this size on are searched by name with a {@link TrigramIndex}
+     */
+    static final int INDEX_THRESHOLD = 256;
+
+    public static final Predicate FILES = new Predicate() {
+        @Override
+        public boolean matches(BoxObject o) {
+            return o instanceof BoxFile;
+        }
+    };
+
+    public static final Predicate FOLDERS = new Predicate() {
+        @Override
+        public boolean matches(BoxObject o) {
+            return o instanceof BoxFolder;
+        }
+    };
+
+    private static final Predicate NOTHING = new Predicate() {
+        @Override
+        public boolean matches(BoxObject o) {
+            return false;
+        }
+    };
+
+    public static final SortKey NAME = new SortKey() {
+        @Override
+        public String collationKey(BoxObject o) {
+            return o.name;
+        }
+    };
+
+    public static final SortKey NAME_CASE_INSENSITIVE = new SortKey() {
+        @Override
+        public String collationKey(BoxObject o) {
+            return o.name.toLowerCase();
+        }
+    };
 
     /**
      * Inits the results with all available files and directories.
@@ -25,8 +108,34 @@ public class StorageSearch {
      * @throws QblStorageException
      */
     public StorageSearch(BoxNavigation navigation) throws QblStorageException {
+        this(navigation, null);
+    }
+
+    /**
+     * Inits the results with all available files and directories and reports every
+     * crawled folder to the listener.
+     *
+     * @param navigation The path from which on the search should begin
+     * @param listener   Receives the objects of every folder as soon as it is loaded
+     * @throws QblStorageException
+     */
+    public StorageSearch(BoxNavigation navigation, @Nullable PartialResultListener listener)
+            throws QblStorageException {
         this.navigation = navigation;
-        results = collectAll();
+        results = collectAll(listener);
+    }
+
+    /**
+     * Construct a search from the local index of a volume without hitting the storage volume.
+     *
+     * @param index index of the volume, see {@link VolumeIndex#isComplete()}
+     */
+    public StorageSearch(VolumeIndex index) {
+        results = new ArrayList<>();
+        for (VolumeIndex.Entry entry : index.getEntries()) {
+            results.add(entry.object);
+            pathMapping.put(entry.path, entry.object);
+        }
     }
 
     /**
@@ -38,7 +147,7 @@ public class StorageSearch {
         this.results = results;
     }
 
-    public StorageSearch(List<BoxObject> results, Hashtable<String, BoxObject> pathMapping) {
+    public StorageSearch(List<BoxObject> results, PathMapping pathMapping) {
         this.results = results;
         this.pathMapping = pathMapping;
     }
@@ -81,22 +190,48 @@ public class StorageSearch {
 
     /**
      * The flat list of the current resultset.
+     * <p>
+     * Pending filters and sort keys are evaluated here in a single pass over the results.
      *
      * @return The filtered list, all files and dirs if no filter was applied.
      */
     public List<BoxObject> getResults() {
+        evaluate();
         return results;
     }
 
     /**
-     * Table to provide lookup for paths possible.
+     * Lookup between absolute paths and the objects of the search.
      *
-     * @return A Hashtable which provides the absolute path for a given BoxObject.
+     * @return the mapping of all objects found when the search was created
      */
-    public Hashtable<String, BoxObject> getPathMapping() {
+    public PathMapping getPathMapping() {
         return pathMapping;
     }
 
+    /**
+     * Add a condition to the search. Conditions are not evaluated until the results are requested.
+     *
+     * @param predicate condition every result has to match
+     * @return this search
+     */
+    public StorageSearch where(Predicate predicate) {
+        predicates.add(predicate);
+        return this;
+    }
+
+    /**
+     * Sort the results by the given key. Like repeated stable sorts, the key added last
+     * is the primary one and earlier keys only break ties.
+     *
+     * @param sortKey computes the collation key of an object once per evaluation
+     * @return this search
+     */
+    public StorageSearch orderBy(SortKey sortKey) {
+        sortKeys.add(sortKey);
+        return this;
+    }
+
     public StorageSearch filterByNameCaseSensitive(String name) {
         return filterByName(name, true);
     }
@@ -109,29 +244,36 @@ public class StorageSearch {
         return filterByNameCaseInsensitive(name);
     }
 
-    public StorageSearch filterByName(String name, boolean caseSensitive) {
+    public StorageSearch filterByName(final String name, final boolean caseSensitive) {
 
         if (!isValidSearchTerm(name)) {
             return this;
         }
 
         if (!caseSensitive) {
-            name = name.toLowerCase();
+            return where(new NameMatch(name));
         }
+        return where(new Predicate() {
+            @Override
+            public boolean matches(BoxObject o) {
+                return o.name.contains(name);
+            }
+        });
+    }
 
-        List<BoxObject> filtered = new ArrayList<>();
-
-        for (BoxObject o : results) {
-            String objKey = caseSensitive ? o.name : o.name.toLowerCase();
+    /**
+     * Like {@link #filterByName(String)}, but files whose content matched the term are kept as well
+     *
+     * @param name          part of the name
+     * @param contentBlocks blocks of the files found by {@link ContentIndex#search(String)}
+     */
+    public StorageSearch filterByNameOrContent(String name, Set<String> contentBlocks) {
 
-            if (objKey.indexOf(name) >= 0) {
-                filtered.add(o);
-            }
+        if (!isValidSearchTerm(name)) {
+            return this;
         }
 
-        results = filtered;
-
-        return this;
+        return where(new NameMatch(name, contentBlocks));
     }
 
     public StorageSearch filterByMaximumSize(long size) {
@@ -142,52 +284,35 @@ public class StorageSearch {
         return filterBySize(size, true);
     }
 
-    public StorageSearch filterBySize(long size, boolean minSize) {
-
-        List<BoxObject> filtered = new ArrayList<>();
+    public StorageSearch filterBySize(final long size, final boolean minSize) {
 
-        for (BoxObject o : results) {
-            if (o instanceof BoxFile) {
-                BoxFile f = (BoxFile) o;
-
-                if ((minSize && f.size >= size) || (!minSize && f.size <= size)) {
-                    filtered.add(o);
+        return where(new Predicate() {
+            @Override
+            public boolean matches(BoxObject o) {
+                if (!(o instanceof BoxFile)) {
+                    return false;
                 }
+                long fileSize = ((BoxFile) o).size;
+                return minSize ? fileSize >= size : fileSize <= size;
             }
-        }
-
-        results = filtered;
-
-        return this;
+        });
     }
 
     public StorageSearch filterByExtension(String extension) {
 
         if (extension == null) {
-            results.clear();
-
-            return this;
-        }
-
-        if (!extension.startsWith(".")) {
-            extension = "." + extension;
+            return where(NOTHING);
         }
 
-        List<BoxObject> filtered = new ArrayList<>();
+        final String suffix = extension.startsWith(".") ? extension : "." + extension;
 
-        for (BoxObject o : results) {
-            if (o instanceof BoxFile) {
-                BoxFile f = (BoxFile) o;
-
-                if (f.name.toLowerCase().endsWith(extension.toLowerCase())) {
-                    filtered.add(o);
-                }
+        return where(new Predicate() {
+            @Override
+            public boolean matches(BoxObject o) {
+                return o instanceof BoxFile && o.name.regionMatches(true,
+                        o.name.length() - suffix.length(), suffix, 0, suffix.length());
             }
-        }
-
-        results = filtered;
-
-        return this;
+        });
     }
 
     public StorageSearch filterByMinimumDate(Date date) {
@@ -205,44 +330,28 @@ public class StorageSearch {
      * @param minDate
      * @return
      */
-    public StorageSearch filterByDate(Date date, boolean minDate) {
-
-        List<BoxObject> filtered = new ArrayList<>();
+    public StorageSearch filterByDate(Date date, final boolean minDate) {
 
-        for (BoxObject o : results) {
-            if (o instanceof BoxFile) {
-                Date boxDate = new Date(((BoxFile) o).mtime * 1000);
-                boolean isBeforeMinimumDate = boxDate.before(date) && date.getTime() != boxDate.getTime();
-                boolean isAfterMaximumDate = boxDate.after(date);
-                boolean isInvalid = (minDate && isBeforeMinimumDate) || (!minDate && isAfterMaximumDate);
+        final long time = date.getTime();
 
-                if (!isInvalid) {
-                    filtered.add(o);
+        return where(new Predicate() {
+            @Override
+            public boolean matches(BoxObject o) {
+                if (!(o instanceof BoxFile)) {
+                    return false;
                 }
+                long mtime = ((BoxFile) o).mtime * 1000;
+                return minDate ? mtime >= time : mtime <= time;
             }
-        }
-
-        results = filtered;
-
-        return this;
+        });
     }
 
     public StorageSearch filterOnlyFiles() {
-
-        List<BoxObject> filtered = new ArrayList<>();
-        filtered.addAll(StorageSearch.toBoxFiles(results));
-        results = filtered;
-
-        return this;
+        return where(FILES);
     }
 
     public StorageSearch filterOnlyDirectories() {
-
-        List<BoxObject> filtered = new ArrayList<>();
-        filtered.addAll(StorageSearch.toBoxFolders(results));
-        results = filtered;
-
-        return this;
+        return where(FOLDERS);
     }
 
     public String findPathByBoxObject(BoxObject o) {
@@ -251,22 +360,7 @@ public class StorageSearch {
             return null;
         }
 
-        for (String path : pathMapping.keySet()) {
-            BoxObject tgt = pathMapping.get(path);
-
-            //BoxObject does not implement equals (failed as pathMapping-key), but normal equals might work here?
-            if (o instanceof BoxFile && tgt instanceof BoxFile) {
-                if (((BoxFile) o).equals((BoxFile) tgt)) {
-                    return path;
-                }
-            } else if (o instanceof BoxFolder && tgt instanceof BoxFolder) {
-                if (((BoxFolder) o).equals((BoxFolder) tgt)) {
-                    return path;
-                }
-            }
-        }
-
-        return null;
+        return pathMapping.getPath(o);
     }
 
     public BoxObject findByPath(String path) {
@@ -275,7 +369,7 @@ public class StorageSearch {
             return null;
         }
 
-        return pathMapping.containsKey(path) ? pathMapping.get(path) : null;
+        return pathMapping.get(path);
     }
 
     public StorageSearch sortCaseSensitiveByName() {
@@ -287,38 +381,264 @@ public class StorageSearch {
     }
 
     public StorageSearch sortByName(boolean caseSensitive) {
+        return orderBy(caseSensitive ? NAME : NAME_CASE_INSENSITIVE);
+    }
 
-        if (caseSensitive) {
-            Collections.sort(results, new Comparator<BoxObject>() {
-
-                public int compare(BoxObject o1, BoxObject o2) {
-                    String s1 = o1.name;
-                    String s2 = o2.name;
-                    return s1.compareTo(s2);
+    private void evaluate() {
+
+        if (!predicates.isEmpty()) {
+            List<Predicate> plan = new ArrayList<>(predicates);
+            predicates.clear();
+            List<NameMatch> nameMatches = new ArrayList<>();
+            for (Iterator<Predicate> iterator = plan.iterator(); iterator.hasNext(); ) {
+                Predicate predicate = iterator.next();
+                if (predicate instanceof NameMatch) {
+                    nameMatches.add((NameMatch) predicate);
+                    iterator.remove();
                 }
-            });
-        } else {
-            Collections.sort(results, new Comparator<BoxObject>() {
-
-                public int compare(BoxObject o1, BoxObject o2) {
-                    String s1 = o1.name;
-                    String s2 = o2.name;
-                    return s1.toLowerCase().compareTo(s2.toLowerCase());
+            }
+            int[] candidates = null;
+            String[] folded = null;
+            if (!nameMatches.isEmpty()) {
+                if (results.size() >= INDEX_THRESHOLD) {
+                    // name matches are answered by the index, the other conditions only see its hits
+                    for (NameMatch nameMatch : nameMatches) {
+                        int[] positions = getNameIndex().search(nameMatch.term);
+                        if (nameMatch.contentBlocks != null) {
+                            positions = union(positions, findContentPositions(nameMatch.contentBlocks));
+                        }
+                        candidates = candidates == null ? positions : TrigramIndex.intersect(candidates, positions);
+                    }
+                    nameMatches.clear();
+                }
+                folded = getFoldedNames();
+            }
+            Predicate[] rest = plan.toArray(new Predicate[plan.size()]);
+            List<BoxObject> filtered = new ArrayList<>();
+            List<String> filteredFolded = new ArrayList<>();
+            int count = candidates == null ? results.size() : candidates.length;
+            for (int i = 0; i < count; i++) {
+                int position = candidates == null ? i : candidates[i];
+                BoxObject o = results.get(position);
+                if ((nameMatches.isEmpty() || matchesAll(nameMatches, o, folded[position])) && matchesAll(rest, o)) {
+                    filtered.add(o);
+                    if (folded != null) {
+                        filteredFolded.add(folded[position]);
+                    }
                 }
-            });
+            }
+            results = filtered;
+            if (folded != null) {
+                // the next name match on the narrowed results does not fold the names again
+                foldedNames = filteredFolded.toArray(new String[filteredFolded.size()]);
+                foldedResults = results;
+            }
         }
+        if (!sortKeys.isEmpty()) {
+            results = sort(results, sortKeys.toArray(new SortKey[sortKeys.size()]));
+            sortKeys.clear();
+        }
+    }
 
-        return this;
+    private static boolean matchesAll(Predicate[] plan, BoxObject o) {
+        for (Predicate predicate : plan) {
+            if (!predicate.matches(o)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean matchesAll(List<NameMatch> nameMatches, BoxObject o, String folded) {
+        for (NameMatch nameMatch : nameMatches) {
+            if (!nameMatch.matches(o, folded)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return ascending positions of the files of the results with one of the blocks
+     */
+    private int[] findContentPositions(Set<String> contentBlocks) {
+        int count = 0;
+        int[] positions = new int[results.size()];
+        for (int i = 0; i < positions.length; i++) {
+            BoxObject o = results.get(i);
+            if (o instanceof BoxFile && contentBlocks.contains(((BoxFile) o).block)) {
+                positions[count++] = i;
+            }
+        }
+        return Arrays.copyOf(positions, count);
+    }
+
+    /**
+     * @return positions contained in either ascending array, ascending and without duplicates
+     */
+    static int[] union(int[] a, int[] b) {
+        int[] result = new int[a.length + b.length];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length || j < b.length) {
+            if (j == b.length || (i < a.length && a[i] < b[j])) {
+                result[count++] = a[i++];
+            } else if (i == a.length || b[j] < a[i]) {
+                result[count++] = b[j++];
+            } else {
+                result[count++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    private static List<BoxObject> sort(List<BoxObject> objects, SortKey[] sortKeys) {
+
+        Keyed[] keyed = new Keyed[objects.size()];
+        for (int i = 0; i < keyed.length; i++) {
+            BoxObject o = objects.get(i);
+            String[] keys = new String[sortKeys.length];
+            for (int k = 0; k < sortKeys.length; k++) {
+                keys[k] = sortKeys[k].collationKey(o);
+            }
+            keyed[i] = new Keyed(o, keys);
+        }
+        // Arrays.sort is stable for objects, so equal keys keep their previous order
+        Arrays.sort(keyed, new Comparator<Keyed>() {
+            @Override
+            public int compare(Keyed lhs, Keyed rhs) {
+                for (int k = lhs.keys.length - 1; k >= 0; k--) {
+                    int result = lhs.keys[k].compareTo(rhs.keys[k]);
+                    if (result != 0) {
+                        return result;
+                    }
+                }
+                return 0;
+            }
+        });
+        List<BoxObject> sorted = new ArrayList<>(keyed.length);
+        for (Keyed k : keyed) {
+            sorted.add(k.object);
+        }
+        return sorted;
     }
 
-    private List<BoxObject> collectAll() throws QblStorageException {
+    /**
+     * Name index over the current results. It is built on first use and kept until the
+     * results change.
+     */
+    private TrigramIndex getNameIndex() {
+        if (nameIndex == null || indexedResults != results) {
+            nameIndex = new TrigramIndex(results);
+            indexedResults = results;
+        }
+        return nameIndex;
+    }
+
+    /**
+     * Folded names of the current results, each name is folded only once and kept until the
+     * results change
+     */
+    private String[] getFoldedNames() {
+        if (foldedNames == null || foldedResults != results) {
+            foldedNames = new String[results.size()];
+            boolean indexed = nameIndex != null && indexedResults == results;
+            for (int i = 0; i < foldedNames.length; i++) {
+                foldedNames[i] = indexed ? nameIndex.getFoldedName(i) : TrigramIndex.fold(results.get(i).name);
+            }
+            foldedResults = results;
+        }
+        return foldedNames;
+    }
+
+    /**
+     * Case and accent insensitive substring match on the name, see {@link TrigramIndex#fold(String)},
+     * optionally also matching the files with one of the given content blocks.
+     * Within a search it is evaluated against the folded names, not with {@link #matches(BoxObject)}.
+     */
+    private static class NameMatch implements Predicate {
+        final String term;
+        @Nullable
+        final Set<String> contentBlocks;
+
+        NameMatch(String term) {
+            this(term, null);
+        }
+
+        NameMatch(String term, @Nullable Set<String> contentBlocks) {
+            this.term = TrigramIndex.fold(term);
+            this.contentBlocks = contentBlocks;
+        }
+
+        @Override
+        public boolean matches(BoxObject o) {
+            return matches(o, TrigramIndex.fold(o.name));
+        }
+
+        boolean matches(BoxObject o, String folded) {
+            return folded.contains(term) || (contentBlocks != null && o instanceof BoxFile
+                    && contentBlocks.contains(((BoxFile) o).block));
+        }
+    }
+
+    private static class Keyed {
+        final BoxObject object;
+        final String[] keys;
+
+        Keyed(BoxObject object, String[] keys) {
+            this.object = object;
+            this.keys = keys;
+        }
+    }
+
+    private List<BoxObject> collectAll(@Nullable final PartialResultListener listener)
+            throws QblStorageException {
         List<BoxObject> lst = new ArrayList<>();
 
-        addAll(lst);
+        if (!(navigation instanceof AbstractNavigation)) {
+            addAll(lst);
+            return lst;
+        }
+        final Map<String, Listing> listings = new ConcurrentHashMap<>();
+        new FolderCrawler((AbstractNavigation) navigation, FolderCrawler.DEFAULT_WORKERS).crawl(
+                new FolderCrawler.Listener() {
+                    @Override
+                    public void onFolder(String path, List<BoxFile> files, List<BoxFolder> folders) {
+                        listings.put(path, new Listing(files, folders));
+                        if (listener != null) {
+                            List<BoxObject> objects = new ArrayList<>(files.size() + folders.size());
+                            objects.addAll(files);
+                            objects.addAll(folders);
+                            listener.onPartialResult(path, objects);
+                        }
+                    }
+                });
+        // same order as a depth first walk, independent of the order the folders arrived in
+        addAll(lst, navigation.getPath(), listings);
 
         return lst;
     }
 
+    private void addAll(List<BoxObject> lst, String path, Map<String, Listing> listings) {
+        Listing listing = listings.get(path);
+        if (listing == null) {
+            return;
+        }
+        for (BoxFile file : listing.files) {
+            lst.add(file);
+            pathMapping.put(path + file.name, file);
+        }
+        for (BoxFolder folder : listing.folders) {
+            String folderPath = path + folder.name + BoxProvider.PATH_SEP;
+            lst.add(folder);
+            pathMapping.put(folderPath, folder);
+            addAll(lst, folderPath, listings);
+        }
+    }
+
     private void addAll(List<BoxObject> lst) throws QblStorageException {
 
         for (BoxFile file : navigation.listFiles()) {
@@ -338,19 +658,39 @@ public class StorageSearch {
         }
     }
 
+    private static class Listing {
+        final List<BoxFile> files;
+        final List<BoxFolder> folders;
+
+        Listing(List<BoxFile> files, List<BoxFolder> folders) {
+            this.files = files;
+            this.folders = folders;
+        }
+    }
+
     @Override
     public StorageSearch clone() throws CloneNotSupportedException {
-        return new StorageSearch(cloneResultList(getResults()), (Hashtable<String, BoxObject>) getPathMapping().clone());
+        List<BoxObject> current = getResults();
+        StorageSearch clone = new StorageSearch(cloneResultList(current), new PathMapping(pathMapping));
+        if (nameIndex != null && indexedResults == current) {
+            // the clones have the same names in the same order
+            clone.nameIndex = nameIndex;
+            clone.indexedResults = clone.results;
+        }
+        if (foldedNames != null && foldedResults == current) {
+            clone.foldedNames = foldedNames;
+            clone.foldedResults = clone.results;
+        }
+        return clone;
     }
 
     private List<BoxObject> cloneResultList(List<BoxObject> list) throws CloneNotSupportedException {
         List<BoxObject> clone = new ArrayList<>(list.size());
         for (BoxObject item : list) {
-            if (item instanceof BoxFile) {
-                clone.add(((BoxFile) item).clone());
-            }
             if (item instanceof BoxExternalFile) {
                 clone.add(((BoxExternalFile) item).clone());
+            } else if (item instanceof BoxFile) {
+                clone.add(((BoxFile) item).clone());
             } else if (item instanceof BoxExternalFolder) {
                 clone.add(((BoxExternalFolder) item).clone());
             } else if (item instanceof BoxFolder) {
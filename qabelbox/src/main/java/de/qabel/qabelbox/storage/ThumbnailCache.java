@@ -0,0 +1,247 @@
+package de.qabel.qabelbox.storage;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Point;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import org.spongycastle.crypto.params.KeyParameter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.InvalidKeyException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import de.qabel.core.crypto.CryptoUtils;
+
+/**
+ * Local cache of image thumbnails.
+ * <p>
+ * Thumbnails are stored per block and size, encrypted with the key of the file they belong to.
+ * Requested sizes are rounded up to a few fixed sizes, a missing size is scaled down from a
+ * larger cached thumbnail before the original image has to be downloaded.
+ */
+public class ThumbnailCache {
+
+    private static final String TAG = "ThumbnailCache";
+    private static final String DIRECTORY = "thumbnails";
+    public static final int[] SIZES = {128, 256, 512, 1024};
+    public static final int DEFAULT_SIZE = 256;
+    private static final int JPEG_QUALITY = 85;
+    private static final long MAX_CACHE_SIZE = 20 * 1024 * 1024;
+
+    private final File directory;
+    private final File tempDir;
+    private final CryptoUtils cryptoUtils = new CryptoUtils();
+
+    public ThumbnailCache(Context context) {
+
+        directory = new File(context.getCacheDir(), DIRECTORY);
+        tempDir = context.getCacheDir();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.e(TAG, "Could not create thumbnail directory");
+        }
+    }
+
+    /**
+     * @param sizeHint size requested by the client
+     * @return cached size that is at least as large as the hint if possible
+     */
+    public static int getSize(@Nullable Point sizeHint) {
+
+        if (sizeHint == null) {
+            return DEFAULT_SIZE;
+        }
+        int requested = Math.max(sizeHint.x, sizeHint.y);
+        for (int size : SIZES) {
+            if (size >= requested) {
+                return size;
+            }
+        }
+        return SIZES[SIZES.length - 1];
+    }
+
+    public static boolean isImage(String mimeType) {
+
+        return mimeType != null && mimeType.startsWith("image/");
+    }
+
+    private File getFile(BoxFile boxFile, int size) {
+
+        return new File(directory, boxFile.block + "_" + size);
+    }
+
+    /**
+     * Get a decrypted thumbnail. A missing size is created from a larger cached thumbnail.
+     *
+     * @return temporary jpeg file that should be deleted after use or null on a cache miss
+     */
+    @Nullable
+    public File get(BoxFile boxFile, int size) {
+
+        File thumbnail = decrypt(boxFile, size);
+        if (thumbnail != null) {
+            return thumbnail;
+        }
+        for (int larger : SIZES) {
+            if (larger <= size) {
+                continue;
+            }
+            File source = decrypt(boxFile, larger);
+            if (source != null) {
+                boolean stored = put(boxFile, size, source);
+                source.delete();
+                return stored ? decrypt(boxFile, size) : null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Create and store a thumbnail from an image file
+     *
+     * @param boxFile file the image belongs to
+     * @param size    maximal width and height of the thumbnail
+     * @param image   plaintext image
+     * @return false if the image could not be decoded or stored
+     */
+    public boolean put(BoxFile boxFile, int size, File image) {
+
+        Bitmap bitmap = decodeScaled(image, size);
+        if (bitmap == null) {
+            Log.w(TAG, "Could not decode image for " + boxFile.block);
+            return false;
+        }
+        ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, jpeg);
+        bitmap.recycle();
+        File target = getFile(boxFile, size);
+        try {
+            OutputStream outputStream = new FileOutputStream(target);
+            try {
+                if (!cryptoUtils.encryptStreamAuthenticatedSymmetric(
+                        new ByteArrayInputStream(jpeg.toByteArray()), outputStream,
+                        new KeyParameter(boxFile.key), null)) {
+                    throw new IOException("Encryption failed");
+                }
+            } finally {
+                outputStream.close();
+            }
+        } catch (IOException | InvalidKeyException e) {
+            Log.e(TAG, "Could not store thumbnail for " + boxFile.block, e);
+            target.delete();
+            return false;
+        }
+        trim();
+        return true;
+    }
+
+    /**
+     * Remove all thumbnails of a block
+     */
+    public void remove(BoxFile boxFile) {
+
+        for (int size : SIZES) {
+            getFile(boxFile, size).delete();
+        }
+    }
+
+    @Nullable
+    private File decrypt(BoxFile boxFile, int size) {
+
+        File encrypted = getFile(boxFile, size);
+        if (!encrypted.exists()) {
+            return null;
+        }
+        try (FileInputStream in = new FileInputStream(encrypted)) {
+            File plain = File.createTempFile("thumbnail", ".jpg", tempDir);
+            if (cryptoUtils.decryptFileAuthenticatedSymmetricAndValidateTag(
+                    in, plain, new KeyParameter(boxFile.key))
+                    && plain.length() > 0) {
+                encrypted.setLastModified(System.currentTimeMillis());
+                return plain;
+            }
+            Log.w(TAG, "Dropping invalid thumbnail " + encrypted.getName());
+            plain.delete();
+            encrypted.delete();
+        } catch (IOException | InvalidKeyException e) {
+            Log.e(TAG, "Could not decrypt thumbnail " + encrypted.getName(), e);
+        }
+        return null;
+    }
+
+    @Nullable
+    static Bitmap decodeScaled(File image, int size) {
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(image.getAbsolutePath(), options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        int sampleSize = 1;
+        while (options.outWidth / (sampleSize * 2) >= size && options.outHeight / (sampleSize * 2) >= size) {
+            sampleSize *= 2;
+        }
+        BitmapFactory.Options decodeOptions = new BitmapFactory.Options();
+        decodeOptions.inSampleSize = sampleSize;
+        Bitmap bitmap = BitmapFactory.decodeFile(image.getAbsolutePath(), decodeOptions);
+        if (bitmap == null) {
+            return null;
+        }
+        int longestSide = Math.max(bitmap.getWidth(), bitmap.getHeight());
+        if (longestSide <= size) {
+            return bitmap;
+        }
+        float scale = (float) size / longestSide;
+        Bitmap scaled = Bitmap.createScaledBitmap(bitmap,
+                Math.max(1, Math.round(bitmap.getWidth() * scale)),
+                Math.max(1, Math.round(bitmap.getHeight() * scale)), true);
+        if (scaled != bitmap) {
+            bitmap.recycle();
+        }
+        return scaled;
+    }
+
+    /**
+     * Delete the least recently used thumbnails until the cache fits into its size limit
+     */
+    private synchronized void trim() {
+
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        if (total <= MAX_CACHE_SIZE) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+
+                long left = lhs.lastModified();
+                long right = rhs.lastModified();
+                return left < right ? -1 : (left == right ? 0 : 1);
+            }
+        });
+        for (File file : files) {
+            if (total <= MAX_CACHE_SIZE) {
+                break;
+            }
+            total -= file.length();
+            file.delete();
+        }
+    }
+}
@@ -13,10 +13,12 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import de.qabel.qabelbox.QabelBoxApplication;
 import de.qabel.qabelbox.communication.BlockServer;
@@ -36,7 +38,7 @@ public class TransferManager {
     public TransferManager(File tempDir) {
         this.tempDir = tempDir;
         latches = new ConcurrentHashMap<>();
-        errors = new HashMap<>();
+        errors = Collections.synchronizedMap(new HashMap<Integer, Exception>());
 
         context = QabelBoxApplication.getInstance().getApplicationContext();
         blockServer = new BlockServer(context);
@@ -93,10 +95,6 @@ public class TransferManager {
         return id;
     }
 
-    public Exception lookupError(int transferId) {
-        return errors.get(transferId);
-    }
-
     /**
      * download file from server
      *
@@ -139,6 +137,54 @@ public class TransferManager {
         return id;
     }
 
+    /**
+     * download file from server and hand the response stream to the handler while it is received.
+     * The handler is called at most once, retries after the stream has been started are ignored.
+     *
+     * @param prefix  prefix from identity
+     * @param name    file name with directory
+     * @param handler consumer of the response body
+     * @return new download id
+     */
+    public int downloadStream(String prefix, final String name, final BoxStreamHandler handler) {
+
+        Log.d(TAG, "download stream " + prefix + " " + name);
+
+        final int id = blockServer.getNextId();
+        final AtomicBoolean started = new AtomicBoolean(false);
+        latches.put(id, new CountDownLatch(1));
+        blockServer.downloadFile(context, prefix, name, new RequestCallback() {
+            @Override
+            public void onError(Exception e, @Nullable Response response) {
+                if (started.get()) {
+                    return;
+                }
+                errors.put(id, e);
+                latches.get(id).countDown();
+            }
+
+            @Override
+            public void onSuccess(int statusCode, Response response) {
+                if (!started.compareAndSet(false, true)) {
+                    Log.w(TAG, "Ignoring repeated response for stream " + name);
+                    response.body().close();
+                    return;
+                }
+                try {
+                    handler.onStream(response.body().byteStream(), response.body().contentLength());
+                } catch (IOException e) {
+                    Log.e(TAG, "Error handling stream from Server", e);
+                    errors.put(id, e);
+                } finally {
+                    response.body().close();
+                }
+                latches.get(id).countDown();
+            }
+        });
+
+        return id;
+    }
+
     /**
      * read stream from server
      *
@@ -179,20 +225,39 @@ public class TransferManager {
      */
     public boolean waitFor(int id) {
 
-        logger.info("Waiting for " + id);
         try {
-            latches.get(id).await();
-            logger.info("Waiting for " + id + " finished");
-            Exception e = errors.get(id);
-            if (e != null) {
-                logger.warn("Error found waiting for " + id, e);
-            }
-            return e == null;
+            return waitForError(id) == null;
         } catch (InterruptedException e) {
             return false;
         }
     }
 
+    /**
+     * Wait for the transfer and forget it, the id can not be waited for again
+     *
+     * @return error of the transfer or null if it succeeded
+     */
+    @Nullable
+    public Exception waitForError(int id) throws InterruptedException {
+
+        logger.info("Waiting for " + id);
+        latches.get(id).await();
+        latches.remove(id);
+        logger.info("Waiting for " + id + " finished");
+        Exception e = errors.remove(id);
+        if (e != null) {
+            logger.warn("Error found waiting for " + id, e);
+        }
+        return e;
+    }
+
+
+    /**
+     * Release the BlockServer of this TransferManager. Pending transfers are not cancelled.
+     */
+    public void close() {
+        blockServer.shutdown();
+    }
 
     public int delete(String prefix, String name) {
         Log.d(TAG, "delete " + prefix + " " + name);
@@ -214,6 +279,15 @@ public class TransferManager {
         return id;
     }
 
+    public interface BoxStreamHandler {
+
+        /**
+         * @param inputStream   response body, closed after the handler returned
+         * @param contentLength length of the body or -1 if unknown
+         */
+        void onStream(InputStream inputStream, long contentLength) throws IOException;
+    }
+
     public interface BoxTransferListener {
 
         void onProgressChanged(long bytesCurrent, long bytesTotal);
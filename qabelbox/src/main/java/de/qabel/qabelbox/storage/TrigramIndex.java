@@ -0,0 +1,185 @@
+package de.qabel.qabelbox.storage;
+
+import java.text.Normalizer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Substring index over the names of a list of files and folders.
+ * <p>
+ * Every name is folded (see {@link #fold(String)}) and split into all of its three character
+ * sequences. A search intersects the position lists of the trigrams of the search term and
+ * only compares the remaining candidates, so the cost depends on the number of hits instead of
+ * the number of indexed names. Terms shorter than three characters are compared against the
+ * precomputed folded names.
+ * <p>
+ * The index is immutable and can be shared between threads.
+ */
+public class TrigramIndex {
+
+    private static final Pattern COMBINING_MARKS = Pattern.compile("\\p{Mn}+");
+    private static final int[] NO_POSITIONS = new int[0];
+    static final int N = 3;
+
+    private final String[] foldedNames;
+    private final Map<Long, int[]> postings;
+
+    /**
+     * Index the names of the objects
+     *
+     * @param objects objects to index, the positions in this list are returned by searches
+     */
+    public TrigramIndex(List<? extends BoxObject> objects) {
+        foldedNames = new String[objects.size()];
+        Map<Long, PositionList> lists = new HashMap<>();
+        for (int i = 0; i < foldedNames.length; i++) {
+            String folded = fold(objects.get(i).name);
+            foldedNames[i] = folded;
+            for (int start = 0; start + N <= folded.length(); start++) {
+                Long trigram = trigram(folded, start);
+                PositionList list = lists.get(trigram);
+                if (list == null) {
+                    list = new PositionList();
+                    lists.put(trigram, list);
+                }
+                list.add(i);
+            }
+        }
+        postings = new HashMap<>(lists.size() * 4 / 3 + 1);
+        for (Map.Entry<Long, PositionList> entry : lists.entrySet()) {
+            postings.put(entry.getKey(), entry.getValue().toArray());
+        }
+    }
+
+    /**
+     * @return number of indexed names
+     */
+    public int size() {
+        return foldedNames.length;
+    }
+
+    /**
+     * Find all names containing the term, ignoring case and accents
+     *
+     * @param term search term
+     * @return positions of the matching objects in ascending order
+     */
+    public int[] search(String term) {
+        String folded = fold(term);
+        if (folded.length() < N) {
+            return scan(folded);
+        }
+        int[] candidates = null;
+        for (int start = 0; start + N <= folded.length(); start++) {
+            int[] positions = postings.get(trigram(folded, start));
+            if (positions == null) {
+                return NO_POSITIONS;
+            }
+            candidates = candidates == null ? positions : intersect(candidates, positions);
+            if (candidates.length == 0) {
+                return NO_POSITIONS;
+            }
+        }
+        // trigrams only narrow down the candidates, their order within the name is not checked
+        return filter(candidates, folded);
+    }
+
+    /**
+     * @param position position of the object in the indexed list
+     * @return folded name of the object
+     */
+    public String getFoldedName(int position) {
+        return foldedNames[position];
+    }
+
+    /**
+     * Keep the positions whose name contains the term, used to narrow an earlier result
+     *
+     * @param positions ascending positions
+     * @param folded    already folded search term
+     * @return matching positions in ascending order
+     */
+    public int[] filter(int[] positions, String folded) {
+        int count = 0;
+        int[] matches = new int[positions.length];
+        for (int position : positions) {
+            if (foldedNames[position].contains(folded)) {
+                matches[count++] = position;
+            }
+        }
+        return Arrays.copyOf(matches, count);
+    }
+
+    /**
+     * Normalize a name for comparisons: compatibility decomposition, combining marks removed
+     * and lower case, so "Résumé", "RESUME" and "resume" are the same.
+     */
+    public static String fold(String name) {
+        String decomposed = Normalizer.normalize(name, Normalizer.Form.NFKD);
+        return COMBINING_MARKS.matcher(decomposed).replaceAll("").toLowerCase(Locale.ROOT);
+    }
+
+    private int[] scan(String folded) {
+        int count = 0;
+        int[] matches = new int[foldedNames.length];
+        for (int i = 0; i < foldedNames.length; i++) {
+            if (foldedNames[i].contains(folded)) {
+                matches[count++] = i;
+            }
+        }
+        return Arrays.copyOf(matches, count);
+    }
+
+    private static Long trigram(String s, int start) {
+        return ((long) s.charAt(start) << 32) | ((long) s.charAt(start + 1) << 16) | s.charAt(start + 2);
+    }
+
+    /**
+     * @return positions contained in both ascending arrays
+     */
+    static int[] intersect(int[] a, int[] b) {
+        int[] result = new int[Math.min(a.length, b.length)];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                result[count++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    /**
+     * Growing list of ascending positions without boxing every element
+     */
+    private static class PositionList {
+        private int[] positions = new int[4];
+        private int size;
+
+        void add(int position) {
+            // a trigram that occurs twice in a name is only recorded once
+            if (size > 0 && positions[size - 1] == position) {
+                return;
+            }
+            if (size == positions.length) {
+                positions = Arrays.copyOf(positions, size * 2);
+            }
+            positions[size++] = position;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(positions, size);
+        }
+    }
+}
@@ -0,0 +1,577 @@
+package de.qabel.qabelbox.storage;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spongycastle.crypto.params.KeyParameter;
+import org.spongycastle.util.encoders.Hex;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.InvalidKeyException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import de.qabel.core.crypto.QblECKeyPair;
+import de.qabel.qabelbox.providers.BoxProvider;
+
+/**
+ * Local index of all files and folders in a volume.
+ * <p>
+ * The index is filled with the folder listings that are seen while navigating, committing and
+ * crawling. The version of the directory metadata is stored per folder, so a listing that did not
+ * change since it was indexed costs nothing. The index is stored encrypted with a key derived
+ * from the private key of the volume owner, including the file keys needed to open results.
+ * <p>
+ * Updates only change the index in memory. It is stored {@link #FLUSH_DELAY_MS} after the first
+ * unsaved update or by {@link #flush()}, so a crawl or a series of navigations writes the file
+ * once instead of once per folder.
+ */
+public class VolumeIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(VolumeIndex.class.getName());
+    private static final String DIRECTORY = "volumeindex";
+    private static final int FORMAT_VERSION = 2;
+    private static final String PATH_SEP = BoxProvider.PATH_SEP;
+    private static final byte TYPE_FILE = 0;
+    private static final byte TYPE_FOLDER = 1;
+    static final long FLUSH_DELAY_MS = 5000;
+    private static final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor();
+
+    private final EncryptedFile store;
+    private final TreeMap<String, Entry> entries = new TreeMap<>();
+    private final Map<String, byte[]> versions = new HashMap<>();
+    private boolean loaded;
+    private boolean dirty;
+    private boolean deleted;
+    @Nullable
+    private ScheduledFuture<?> scheduledFlush;
+    // number of changes, a flush does not overwrite the file with an older state
+    private long generation;
+    private long storedGeneration;
+
+    VolumeIndex(File file, File tempDir, KeyParameter key) {
+        store = new EncryptedFile(file, tempDir, key);
+    }
+
+    /**
+     * Create the index of a volume, the stored index is read on first access
+     */
+    public static VolumeIndex forVolume(Context context, QblECKeyPair keyPair, String prefix) {
+        File directory = new File(context.getFilesDir(), DIRECTORY);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            logger.error("Could not create index directory");
+        }
+        byte[] id = EncryptedFile.derive("qabel volume index name", prefix.getBytes(), keyPair.getPub().getKey());
+        byte[] key = EncryptedFile.derive("qabel volume index key", prefix.getBytes(), keyPair.getPrivateKey());
+        return new VolumeIndex(new File(directory, Hex.toHexString(id)), context.getCacheDir(),
+                new KeyParameter(key));
+    }
+
+    /**
+     * Replace the indexed content of a folder without version information
+     *
+     * @see #updateFolder(String, byte[], List, List)
+     */
+    public void updateFolder(String folderPath, List<BoxFolder> folders, List<BoxFile> files) {
+        updateFolder(folderPath, null, folders, files);
+    }
+
+    /**
+     * Replace the indexed content of a folder. Entries below subfolders that are not part
+     * of the listing anymore are removed as well.
+     *
+     * @param folderPath path of the folder, ending with a slash
+     * @param version    version of the directory metadata, the update is skipped if the
+     *                   folder has already been indexed with this version
+     */
+    public synchronized void updateFolder(String folderPath, @Nullable byte[] version,
+                                          List<BoxFolder> folders, List<BoxFile> files) {
+        if (deleted) {
+            return;
+        }
+        load();
+        if (version != null && Arrays.equals(version, versions.get(folderPath))) {
+            return;
+        }
+        Map<String, Entry> listing = new TreeMap<>();
+        for (BoxFolder folder : folders) {
+            String path = folderPath + folder.name + PATH_SEP;
+            listing.put(path, new Entry(path, folder));
+        }
+        for (BoxFile boxFile : files) {
+            String path = folderPath + boxFile.name;
+            listing.put(path, new Entry(path, boxFile));
+        }
+        boolean changed = !Arrays.equals(version, versions.get(folderPath));
+        Set<String> removedFolders = new HashSet<>();
+        Iterator<Map.Entry<String, Entry>> iterator = children(entries, folderPath).entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Entry> child = iterator.next();
+            String relative = child.getKey().substring(folderPath.length());
+            int separator = relative.indexOf(PATH_SEP);
+            if (separator != -1 && separator != relative.length() - 1) {
+                // deeper entry, kept as long as its parent is listed
+                continue;
+            }
+            if (!listing.containsKey(child.getKey())) {
+                if (child.getValue().folder) {
+                    removedFolders.add(child.getKey());
+                }
+                iterator.remove();
+                changed = true;
+            }
+        }
+        for (String removed : removedFolders) {
+            children(entries, removed).clear();
+            Iterator<String> versionIterator = versions.keySet().iterator();
+            while (versionIterator.hasNext()) {
+                if (versionIterator.next().startsWith(removed)) {
+                    versionIterator.remove();
+                }
+            }
+        }
+        for (Entry entry : listing.values()) {
+            if (!entry.equals(entries.put(entry.path, entry))) {
+                changed = true;
+            }
+        }
+        if (version != null) {
+            versions.put(folderPath, version);
+        }
+        if (changed) {
+            markDirty();
+        }
+    }
+
+    private void markDirty() {
+        dirty = true;
+        generation++;
+        if (scheduledFlush != null) {
+            return;
+        }
+        scheduledFlush = flusher.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (VolumeIndex.this) {
+                    scheduledFlush = null;
+                }
+                flush();
+            }
+        }, FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private static <T> SortedMap<String, T> children(TreeMap<String, T> map, String folderPath) {
+        return map.subMap(folderPath, folderPath + Character.MAX_VALUE);
+    }
+
+    /**
+     * @return true if every known folder of the volume has been indexed
+     */
+    public synchronized boolean isComplete() {
+        load();
+        if (!versions.containsKey(PATH_SEP)) {
+            return false;
+        }
+        for (Entry entry : entries.values()) {
+            if (entry.folder && !versions.containsKey(entry.path)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param query part of the name, case insensitive
+     * @param limit maximal number of results
+     * @return matching files and folders, ordered by path
+     */
+    public List<Entry> search(String query, int limit) {
+        return query(new Query().nameContains(query).limit(limit));
+    }
+
+    /**
+     * @return entries matching all conditions of the query, ordered by path
+     */
+    public synchronized List<Entry> query(Query query) {
+        load();
+        List<Entry> result = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            if (query.matches(entry)) {
+                result.add(entry);
+                if (result.size() >= query.limit) {
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return all entries, ordered by path
+     */
+    public List<Entry> getEntries() {
+        return query(new Query());
+    }
+
+    /**
+     * @param limit maximal number of results
+     * @return files ordered by mtime, newest first
+     */
+    public synchronized List<Entry> recent(int limit) {
+        load();
+        List<Entry> files = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            if (!entry.folder) {
+                files.add(entry);
+            }
+        }
+        Collections.sort(files, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry lhs, Entry rhs) {
+                return lhs.mtime < rhs.mtime ? 1 : (lhs.mtime == rhs.mtime ? 0 : -1);
+            }
+        });
+        return files.subList(0, Math.min(limit, files.size()));
+    }
+
+    public synchronized int size() {
+        load();
+        return entries.size();
+    }
+
+    /**
+     * Forget all entries and delete the stored index. Later updates are ignored, so neither a
+     * pending flush nor a running crawl can store the index again.
+     */
+    public synchronized void delete() {
+        entries.clear();
+        versions.clear();
+        loaded = true;
+        dirty = false;
+        deleted = true;
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+        generation++;
+        synchronized (store) {
+            store.delete();
+            storedGeneration = generation;
+        }
+    }
+
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        try {
+            File plain = store.decrypt();
+            if (plain == null) {
+                return;
+            }
+            try {
+                readEntries(new DataInputStream(new FileInputStream(plain)));
+            } finally {
+                plain.delete();
+            }
+        } catch (IOException | InvalidKeyException e) {
+            logger.error("Could not read index " + store.getName(), e);
+            entries.clear();
+            versions.clear();
+        }
+    }
+
+    private void readEntries(DataInputStream in) throws IOException {
+        try {
+            if (in.readInt() != FORMAT_VERSION) {
+                logger.info("Ignoring index with unknown format");
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                byte type = in.readByte();
+                String name = in.readUTF();
+                Entry entry;
+                if (type == TYPE_FOLDER) {
+                    entry = new Entry(path, new BoxFolder(in.readUTF(), name, readBytes(in)));
+                } else {
+                    entry = new Entry(path, new BoxFile(in.readUTF(), in.readUTF(), name,
+                            in.readLong(), in.readLong(), readBytes(in), readString(in), readBytes(in)));
+                }
+                entries.put(path, entry);
+            }
+            int folders = in.readInt();
+            for (int i = 0; i < folders; i++) {
+                versions.put(in.readUTF(), readBytes(in));
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Store the index if it changed since it was loaded or stored. The entries are copied under
+     * the lock of the index, encrypting and writing the file does not block updates.
+     */
+    public void flush() {
+        byte[] plain;
+        long flushedGeneration;
+        synchronized (this) {
+            if (!dirty || deleted) {
+                return;
+            }
+            try {
+                plain = serialize();
+            } catch (IOException e) {
+                logger.error("Could not serialize index " + store.getName(), e);
+                return;
+            }
+            flushedGeneration = generation;
+            dirty = false;
+        }
+        synchronized (store) {
+            if (flushedGeneration <= storedGeneration) {
+                return;
+            }
+            try {
+                store.write(plain);
+                storedGeneration = flushedGeneration;
+                return;
+            } catch (IOException | InvalidKeyException e) {
+                logger.error("Could not store index " + store.getName(), e);
+            }
+        }
+        synchronized (this) {
+            dirty = true;
+        }
+    }
+
+    private byte[] serialize() throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(entries.size());
+        for (Entry entry : entries.values()) {
+            out.writeUTF(entry.path);
+            if (entry.object instanceof BoxFolder) {
+                BoxFolder folder = (BoxFolder) entry.object;
+                out.writeByte(TYPE_FOLDER);
+                out.writeUTF(folder.name);
+                out.writeUTF(folder.ref);
+                writeBytes(out, folder.key);
+            } else {
+                BoxFile boxFile = (BoxFile) entry.object;
+                out.writeByte(TYPE_FILE);
+                out.writeUTF(boxFile.name);
+                out.writeUTF(boxFile.prefix);
+                out.writeUTF(boxFile.block);
+                out.writeLong(entry.size);
+                out.writeLong(entry.mtime);
+                writeBytes(out, boxFile.key);
+                writeString(out, boxFile.meta);
+                writeBytes(out, boxFile.metakey);
+            }
+        }
+        out.writeInt(versions.size());
+        for (Map.Entry<String, byte[]> version : versions.entrySet()) {
+            out.writeUTF(version.getKey());
+            writeBytes(out, version.getValue());
+        }
+        out.close();
+        return buffer.toByteArray();
+    }
+
+    private static void writeBytes(DataOutputStream out, @Nullable byte[] bytes) throws IOException {
+        out.writeInt(bytes == null ? -1 : bytes.length);
+        if (bytes != null) {
+            out.write(bytes);
+        }
+    }
+
+    @Nullable
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static void writeString(DataOutputStream out, @Nullable String string) throws IOException {
+        out.writeBoolean(string != null);
+        if (string != null) {
+            out.writeUTF(string);
+        }
+    }
+
+    @Nullable
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    static String fold(String name) {
+        return TrigramIndex.fold(name);
+    }
+
+    /**
+     * Conditions for {@link #query(Query)}, all given conditions have to match.
+     */
+    public static class Query {
+        private String contains;
+        private String startsWith;
+        private long minSize = Long.MIN_VALUE;
+        private long maxSize = Long.MAX_VALUE;
+        private long minMtime = Long.MIN_VALUE;
+        private long maxMtime = Long.MAX_VALUE;
+        private boolean filesOnly;
+        private int limit = Integer.MAX_VALUE;
+
+        /**
+         * @param part part of the name, case insensitive
+         */
+        public Query nameContains(String part) {
+            contains = fold(part);
+            return this;
+        }
+
+        /**
+         * @param prefix start of the name, case insensitive
+         */
+        public Query nameStartsWith(String prefix) {
+            startsWith = fold(prefix);
+            return this;
+        }
+
+        /**
+         * Only files with a size between min and max bytes, both inclusive
+         */
+        public Query sizeBetween(long min, long max) {
+            minSize = min;
+            maxSize = max;
+            filesOnly = true;
+            return this;
+        }
+
+        /**
+         * Only files modified between min and max seconds since epoch, both inclusive
+         */
+        public Query mtimeBetween(long min, long max) {
+            minMtime = min;
+            maxMtime = max;
+            filesOnly = true;
+            return this;
+        }
+
+        public Query filesOnly() {
+            filesOnly = true;
+            return this;
+        }
+
+        public Query limit(int limit) {
+            this.limit = limit;
+            return this;
+        }
+
+        boolean matches(Entry entry) {
+            if (filesOnly && entry.folder) {
+                return false;
+            }
+            if (!entry.folder && (entry.size < minSize || entry.size > maxSize
+                    || entry.mtime < minMtime || entry.mtime > maxMtime)) {
+                return false;
+            }
+            if (startsWith != null && !entry.foldedName.startsWith(startsWith)) {
+                return false;
+            }
+            return contains == null || entry.foldedName.contains(contains);
+        }
+    }
+
+    public static class Entry {
+        /**
+         * Path in the volume, folders end with a slash
+         */
+        public final String path;
+        public final String name;
+        public final boolean folder;
+        public final long size;
+        /**
+         * Seconds since epoch
+         */
+        public final long mtime;
+        /**
+         * BoxFile or BoxFolder as found in the directory metadata
+         */
+        public final BoxObject object;
+        final String foldedName;
+
+        Entry(String path, BoxFolder folder) {
+            this.path = path;
+            this.name = folder.name;
+            this.folder = true;
+            this.size = 0;
+            this.mtime = 0;
+            this.object = folder;
+            this.foldedName = fold(name);
+        }
+
+        Entry(String path, BoxFile boxFile) {
+            this.path = path;
+            this.name = boxFile.name;
+            this.folder = false;
+            this.size = boxFile.size == null ? 0 : boxFile.size;
+            this.mtime = boxFile.mtime == null ? 0 : boxFile.mtime;
+            this.object = boxFile;
+            this.foldedName = fold(name);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            Entry entry = (Entry) o;
+
+            return path.equals(entry.path) && name.equals(entry.name) && object.equals(entry.object);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = path.hashCode();
+            result = 31 * result + object.hashCode();
+            return result;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return path;
+        }
+    }
+}
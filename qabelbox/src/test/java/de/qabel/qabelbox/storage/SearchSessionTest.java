@@ -0,0 +1,156 @@
+package de.qabel.qabelbox.storage;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SearchSessionTest {
+
+    private final LinkedList<Runnable> queue = new LinkedList<>();
+    private final List<String> names = new ArrayList<>();
+    private final List<Integer> batchSizes = new ArrayList<>();
+    private int lastGeneration;
+    private boolean lastBatchSeen;
+    private List<BoxObject> objects;
+    private SearchSession session;
+
+    @Before
+    public void setUp() {
+        objects = new ArrayList<>();
+        objects.add(file("my report.txt"));
+        objects.add(file("reports 2016.pdf"));
+        objects.add(file("Report"));
+        objects.add(file("unreported.doc"));
+        objects.add(file("notes.txt"));
+        session = new SearchSession(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                queue.add(command);
+            }
+        }, new SearchSession.Listener() {
+            @Override
+            public void onResults(int generation, List<BoxObject> batch, boolean first, boolean last) {
+                if (first) {
+                    names.clear();
+                    batchSizes.clear();
+                }
+                for (BoxObject boxObject : batch) {
+                    names.add(boxObject.name);
+                }
+                batchSizes.add(batch.size());
+                lastGeneration = generation;
+                lastBatchSeen = last;
+            }
+        });
+    }
+
+    private void setSource() {
+        session.setSource(new SearchSession.Source() {
+            @Override
+            public List<BoxObject> load() {
+                return objects;
+            }
+        });
+    }
+
+    private static BoxFile file(String name) {
+        return new BoxFile("prefix", "block" + name, name, 42L, 1L, new byte[]{1});
+    }
+
+    private void runAll() {
+        while (!queue.isEmpty()) {
+            queue.removeFirst().run();
+        }
+    }
+
+    @Test
+    public void testRanking() {
+        setSource();
+        int generation = session.update("report");
+        runAll();
+        assertEquals(generation, lastGeneration);
+        assertTrue(lastBatchSeen);
+        assertEquals("Report", names.get(0));
+        assertEquals("reports 2016.pdf", names.get(1));
+        assertEquals("my report.txt", names.get(2));
+        assertEquals("unreported.doc", names.get(3));
+        assertEquals(4, names.size());
+    }
+
+    @Test
+    public void testNarrowing() {
+        setSource();
+        session.update("rep");
+        runAll();
+        assertEquals(4, names.size());
+        session.update("repo");
+        session.update("reports");
+        runAll();
+        assertEquals(1, names.size());
+        assertEquals("reports 2016.pdf", names.get(0));
+        session.update("not");
+        runAll();
+        assertEquals(1, names.size());
+        assertEquals("notes.txt", names.get(0));
+    }
+
+    @Test
+    public void testStaleQueriesAreDropped() {
+        setSource();
+        runAll();
+        int first = session.update("notes");
+        int second = session.update("report");
+        assertFalse(session.isCurrent(first));
+        assertTrue(session.isCurrent(second));
+        runAll();
+        assertEquals(second, lastGeneration);
+        assertEquals(4, names.size());
+        assertEquals(1, batchSizes.size());
+
+        session.update("notes");
+        session.cancel();
+        runAll();
+        assertEquals(4, names.size());
+    }
+
+    @Test
+    public void testQueryBeforeSourceIsLoaded() {
+        int generation = session.update("notes");
+        setSource();
+        runAll();
+        assertEquals(generation, lastGeneration);
+        assertEquals(1, names.size());
+    }
+
+    @Test
+    public void testBatches() {
+        setSource();
+        for (int i = 0; i < 2 * SearchSession.BATCH_SIZE + 1; i++) {
+            objects.add(file("batch " + i));
+        }
+        session.update("batch");
+        runAll();
+        assertEquals(2 * SearchSession.BATCH_SIZE + 1, names.size());
+        assertEquals(3, batchSizes.size());
+        assertEquals(SearchSession.BATCH_SIZE, (int) batchSizes.get(0));
+        assertEquals(1, (int) batchSizes.get(2));
+        assertTrue(lastBatchSeen);
+        assertEquals("batch 0", names.get(0));
+    }
+
+    @Test
+    public void testRank() {
+        assertEquals(0, SearchSession.rank("report", "report"));
+        assertEquals(1, SearchSession.rank("reports", "report"));
+        assertEquals(2, SearchSession.rank("my report", "report"));
+        assertEquals(3, SearchSession.rank("unreported", "report"));
+    }
+}
@@ -0,0 +1,124 @@
+package de.qabel.qabelbox.storage;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TrigramIndexTest {
+
+    private List<BoxObject> objects;
+    private TrigramIndex index;
+
+    @Before
+    public void setUp() {
+        objects = new ArrayList<>();
+        objects.add(file("Résumé 2016.pdf"));
+        objects.add(file("holiday.JPG"));
+        objects.add(new BoxFolder("ref", "Holidays", new byte[]{1}));
+        objects.add(file("notes.txt"));
+        objects.add(file("ﬁle with ligature"));
+        index = new TrigramIndex(objects);
+    }
+
+    private static BoxFile file(String name) {
+        return new BoxFile("prefix", "block" + name, name, 42L, 1L, new byte[]{1});
+    }
+
+    @Test
+    public void testFold() {
+        assertEquals("resume", TrigramIndex.fold("RÉSUMÉ"));
+        assertEquals("file", TrigramIndex.fold("ﬁle"));
+    }
+
+    @Test
+    public void testSubstringSearch() {
+        assertArrayEquals(new int[]{1, 2}, index.search("HOLIDAY"));
+        assertArrayEquals(new int[]{0}, index.search("resume"));
+        assertArrayEquals(new int[]{0}, index.search("sumé 20"));
+        assertArrayEquals(new int[]{4}, index.search("file"));
+        assertArrayEquals(new int[0], index.search("missing"));
+    }
+
+    @Test
+    public void testTrigramsInWrongOrder() {
+        // every trigram of "abcde" is part of the name, but not the term itself
+        TrigramIndex index = new TrigramIndex(Arrays.asList(file("abcd bcde")));
+        assertArrayEquals(new int[0], index.search("abcde"));
+        assertArrayEquals(new int[]{0}, index.search("cd bc"));
+    }
+
+    @Test
+    public void testShortTerms() {
+        assertArrayEquals(new int[]{1, 2}, index.search("ho"));
+        assertArrayEquals(new int[]{0, 2, 3}, index.search("S"));
+    }
+
+    @Test
+    public void testLargeSearch() {
+        List<BoxObject> many = new ArrayList<>();
+        for (int i = 0; i < StorageSearch.INDEX_THRESHOLD * 4; i++) {
+            many.add(file("file-" + i + ".bin"));
+        }
+        many.add(file("Résumé.pdf"));
+        List<BoxObject> results = new StorageSearch(many)
+                .filterByName("resume")
+                .getResults();
+        assertEquals(Arrays.asList(many.get(many.size() - 1)), results);
+        results = new StorageSearch(many)
+                .filterByName("FILE-10")
+                .filterByName("1.bin")
+                .getResults();
+        // file-101, file-1001, file-1011 and file-1021, in the original order
+        assertEquals(4, results.size());
+        assertEquals("file-101.bin", results.get(0).name);
+        assertEquals("file-1021.bin", results.get(3).name);
+    }
+
+    @Test
+    public void testNarrowingAnEvaluatedSearch() {
+        List<BoxObject> many = new ArrayList<>();
+        for (int i = 0; i < StorageSearch.INDEX_THRESHOLD * 4; i++) {
+            many.add(file((i % 2 == 0 ? "Résumé-" : "file-") + i + ".bin"));
+        }
+        StorageSearch search = new StorageSearch(many).filterByName("RESUME-1");
+        // the even ones of 10-19, 100-199 and 1000-1023
+        assertEquals(67, search.getResults().size());
+        // the narrowed results are below the index threshold and keep their folded names
+        List<BoxObject> results = search.filterByName("sumé-10").getResults();
+        assertEquals(18, results.size());
+        assertEquals("Résumé-10.bin", results.get(0).name);
+        assertEquals(Arrays.asList(objects.get(0)),
+                new StorageSearch(objects).filterByName("RÉSUMÉ").filterByName("2016").getResults());
+    }
+
+    @Test
+    public void testNameOrContentSearch() {
+        List<BoxObject> many = new ArrayList<>();
+        for (int i = 0; i < StorageSearch.INDEX_THRESHOLD * 4; i++) {
+            many.add(file("file-" + i + ".txt"));
+        }
+        Set<String> contentBlocks = new HashSet<>(Arrays.asList(
+                ((BoxFile) many.get(3)).block, ((BoxFile) many.get(1000)).block));
+        List<BoxObject> results = new StorageSearch(many)
+                .filterByNameOrContent("file-10", contentBlocks)
+                .getResults();
+        // 10, 100-109 and 1000-1023 by name, 3 by content, in the original order
+        assertEquals(36, results.size());
+        assertEquals("file-3.txt", results.get(0).name);
+        assertEquals("file-10.txt", results.get(1).name);
+        // below the index threshold the same condition is compared per object
+        results = new StorageSearch(new ArrayList<>(many.subList(0, 200)))
+                .filterByNameOrContent("file-10", contentBlocks)
+                .getResults();
+        assertEquals(12, results.size());
+        assertEquals("file-3.txt", results.get(0).name);
+    }
+}